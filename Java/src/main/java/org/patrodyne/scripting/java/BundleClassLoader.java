@@ -0,0 +1,80 @@
+// PatroDyne: Patron Supported Dynamic Executables, http://patrodyne.org
+// Released under LGPL license. See terms at http://www.gnu.org.
+package org.patrodyne.scripting.java;
+
+import java.net.URLClassLoader;
+import java.nio.ByteBuffer;
+import java.security.ProtectionDomain;
+
+/**
+ * <p>Load the classes of one script from a {@link ScriptBundle}.</p>
+ *
+ * <p>Classes are defined on demand, directly from the mapped region of the
+ * bundle; then, the search is performed as a URLClassLoader. Unlike the
+ * {@link MemoryClassLoader}, this loader must stay open while the script
+ * runs, because its classes are not defined up front.</p>
+ *
+ * @author Rick O'Sullivan
+ */
+public final class BundleClassLoader
+	extends URLClassLoader
+{
+	static
+	{
+		ClassLoader.registerAsParallelCapable();
+	}
+
+	private final ScriptBundle bundle;
+	/**
+	 * Get the bundle of the script.
+	 * @return The script bundle.
+	 */
+	public ScriptBundle getBundle()
+	{
+		return bundle;
+	}
+
+	private final String key;
+	/**
+	 * Get the key of the script in the bundle.
+	 * @return The script key.
+	 */
+	public String getKey()
+	{
+		return key;
+	}
+
+	/**
+	 * Construct with a bundle, script key and class path.
+	 *
+	 * @param bundle The bundle of the script.
+	 * @param key The key of the script in the bundle.
+	 * @param classPath Directories and jars for class loading.
+	 * @param parentLoader The parent class loader for delegation.
+	 */
+	public BundleClassLoader(ScriptBundle bundle, String key, String classPath, ClassLoader parentLoader)
+	{
+		super(MemoryClassLoader.toURLs(classPath), parentLoader);
+		this.bundle = bundle;
+		this.key = key;
+	}
+
+	/**
+	 * Find class by class name. If the class is in the script's bundle
+	 * entry, it is defined from the mapped byte code; otherwise, the search
+	 * is performed as a URLClassLoader.
+	 *
+	 * @return A Class for the given class name.
+	 */
+	@Override
+	protected Class<?> findClass(String className)
+		throws ClassNotFoundException
+	{
+		ByteBuffer bytecode = getBundle().getBytecode(getKey(), className);
+		if ( bytecode != null )
+			return defineClass(className, bytecode, (ProtectionDomain) null);
+		else
+			return super.findClass(className);
+	}
+}
+// vi:set tabstop=4 hardtabs=4 shiftwidth=4:
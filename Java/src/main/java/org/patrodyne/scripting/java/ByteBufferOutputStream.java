@@ -0,0 +1,121 @@
+// PatroDyne: Patron Supported Dynamic Executables, http://patrodyne.org
+// Released under LGPL license. See terms at http://www.gnu.org.
+package org.patrodyne.scripting.java;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * <p>An output stream that writes into a growable buffer from a
+ * {@link ByteBufferPool}.</p>
+ *
+ * <p>When the buffer is full, a buffer of twice the capacity is acquired,
+ * the written bytes are moved into it and the full buffer is released.
+ * After the stream is closed, {@link #toByteBuffer()} hands the written
+ * bytes to the caller, who then owns the buffer and releases it to the
+ * pool when done.</p>
+ *
+ * @author Rick O'Sullivan
+ */
+public class ByteBufferOutputStream
+	extends OutputStream
+{
+	private ByteBufferPool pool;
+	/**
+	 * Get the pool from which buffers are acquired.
+	 * @return A byte buffer pool.
+	 */
+	public ByteBufferPool getPool()
+	{
+		return pool;
+	}
+	private void setPool(ByteBufferPool pool)
+	{
+		this.pool = pool;
+	}
+
+	private ByteBuffer buffer;
+	private ByteBuffer getBuffer()
+	{
+		return buffer;
+	}
+	private void setBuffer(ByteBuffer buffer)
+	{
+		this.buffer = buffer;
+	}
+
+	/**
+	 * Construct with a pool and an initial capacity.
+	 *
+	 * @param pool The pool from which buffers are acquired.
+	 * @param capacity The initial capacity, in bytes.
+	 */
+	public ByteBufferOutputStream(ByteBufferPool pool, int capacity)
+	{
+		setPool(pool);
+		setBuffer(pool.acquire(capacity));
+	}
+
+	/**
+	 * Construct with a pool and the minimum pooled capacity.
+	 * @param pool The pool from which buffers are acquired.
+	 */
+	public ByteBufferOutputStream(ByteBufferPool pool)
+	{
+		this(pool, ByteBufferPool.MIN_CAPACITY);
+	}
+
+	@Override
+	public void write(int b)
+	{
+		ensureRemaining(1);
+		getBuffer().put((byte) b);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len)
+	{
+		ensureRemaining(len);
+		getBuffer().put(b, off, len);
+	}
+
+	/**
+	 * Get the number of bytes written.
+	 * @return The size of the written bytes.
+	 */
+	public int size()
+	{
+		return getBuffer().position();
+	}
+
+	/**
+	 * Get the written bytes, from position zero to their size. The caller
+	 * owns the returned buffer and this stream can no longer be written.
+	 *
+	 * @return A buffer of the written bytes, ready to be read.
+	 */
+	public ByteBuffer toByteBuffer()
+	{
+		ByteBuffer written = getBuffer();
+		setBuffer(null);
+		written.flip();
+		return written;
+	}
+
+	// Grow the buffer to hold the given number of additional bytes.
+	private void ensureRemaining(int length)
+	{
+		ByteBuffer full = getBuffer();
+		if ( full.remaining() >= length )
+			return;
+		int capacity = full.capacity();
+		while ( capacity - full.position() < length )
+			capacity = (capacity <= (Integer.MAX_VALUE >> 1)) ? capacity << 1 : Integer.MAX_VALUE;
+		ByteBuffer grown = getPool().acquire(capacity);
+		full.flip();
+		grown.put(full);
+		getPool().release(full);
+		setBuffer(grown);
+	}
+}
+// vi:set tabstop=4 hardtabs=4 shiftwidth=4:
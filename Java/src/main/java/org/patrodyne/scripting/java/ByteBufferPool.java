@@ -0,0 +1,181 @@
+// PatroDyne: Patron Supported Dynamic Executables, http://patrodyne.org
+// Released under LGPL license. See terms at http://www.gnu.org.
+package org.patrodyne.scripting.java;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * <p>A pool of byte buffers for compiled byte code.</p>
+ *
+ * <p>Buffers are pooled by capacity, in powers of two from
+ * {@link #MIN_CAPACITY} to {@link #MAX_CAPACITY}; larger buffers are
+ * allocated on demand and left to the garbage collector. Each size keeps
+ * at most {@link #getMaxRetained()} released buffers.</p>
+ *
+ * <p>The {@link #getStandard() standard} pool allocates heap buffers unless
+ * the system property <code>org.patrodyne.scripting.java.buffers.direct</code>
+ * is true, in which case the buffers are allocated off-heap and the byte
+ * code never occupies the Java heap.</p>
+ *
+ * <p>This class is thread-safe.</p>
+ *
+ * @author Rick O'Sullivan
+ */
+public class ByteBufferPool
+{
+	/** Represents the name of the system property to allocate direct buffers. */
+	public static final String BUFFERS_DIRECT = JavaCodeScriptEngine.SYSPROP_PREFIX + "buffers.direct";
+	/** The capacity of the smallest pooled buffer. */
+	public static final int MIN_CAPACITY = 1024;
+	/** The capacity of the largest pooled buffer. */
+	public static final int MAX_CAPACITY = 1024 * 1024;
+	/** The default maximum number of released buffers kept for each size. */
+	public static final int DEFAULT_MAX_RETAINED = 32;
+
+	private static final ByteBufferPool standard = new ByteBufferPool(Boolean.getBoolean(BUFFERS_DIRECT));
+	/**
+	 * Get the pool shared by every compilation.
+	 * @return The standard byte buffer pool.
+	 */
+	public static ByteBufferPool getStandard()
+	{
+		return standard;
+	}
+
+	private boolean direct;
+	/**
+	 * Are the buffers allocated off-heap?
+	 * @return True when the buffers are direct.
+	 */
+	public boolean isDirect()
+	{
+		return direct;
+	}
+	private void setDirect(boolean direct)
+	{
+		this.direct = direct;
+	}
+
+	private int maxRetained = DEFAULT_MAX_RETAINED;
+	/**
+	 * Get the maximum number of released buffers kept for each size.
+	 * @return The maximum number of retained buffers.
+	 */
+	public int getMaxRetained()
+	{
+		return maxRetained;
+	}
+	/**
+	 * Set the maximum number of released buffers kept for each size.
+	 * @param maxRetained The maximum number of retained buffers.
+	 */
+	public void setMaxRetained(int maxRetained)
+	{
+		this.maxRetained = maxRetained;
+	}
+
+	// The released buffers of each size, smallest first.
+	private List<Deque<ByteBuffer>> released;
+	private List<Deque<ByteBuffer>> getReleased()
+	{
+		return released;
+	}
+	private void setReleased(List<Deque<ByteBuffer>> released)
+	{
+		this.released = released;
+	}
+
+	/**
+	 * Construct a pool of heap or direct buffers.
+	 * @param direct True to allocate the buffers off-heap.
+	 */
+	public ByteBufferPool(boolean direct)
+	{
+		setDirect(direct);
+		int sizes = Integer.numberOfTrailingZeros(MAX_CAPACITY) - Integer.numberOfTrailingZeros(MIN_CAPACITY) + 1;
+		List<Deque<ByteBuffer>> deques = new ArrayList<Deque<ByteBuffer>>(sizes);
+		for (int index = 0; index < sizes; ++index)
+			deques.add(new ArrayDeque<ByteBuffer>());
+		setReleased(deques);
+	}
+
+	/**
+	 * Acquire an empty buffer of at least the given capacity.
+	 *
+	 * @param capacity The minimum capacity, in bytes.
+	 *
+	 * @return A cleared buffer, from the pool when one is available.
+	 */
+	public ByteBuffer acquire(int capacity)
+	{
+		if ( capacity > MAX_CAPACITY )
+			return allocate(capacity);
+		int index = sizeIndex(capacity);
+		ByteBuffer buffer = null;
+		Deque<ByteBuffer> deque = getReleased().get(index);
+		synchronized (deque)
+		{
+			buffer = deque.pollFirst();
+		}
+		if ( buffer == null )
+			buffer = allocate(MIN_CAPACITY << index);
+		buffer.clear();
+		return buffer;
+	}
+
+	/**
+	 * Release a buffer to the pool. The caller must not use the buffer,
+	 * or any view of it, after its release.
+	 *
+	 * @param buffer A buffer acquired from this pool.
+	 */
+	public void release(ByteBuffer buffer)
+	{
+		int capacity = buffer.capacity();
+		if ( (buffer.isDirect() != isDirect()) || buffer.isReadOnly() ||
+			(capacity < MIN_CAPACITY) || (capacity > MAX_CAPACITY) || (Integer.bitCount(capacity) != 1) )
+			return;
+		Deque<ByteBuffer> deque = getReleased().get(sizeIndex(capacity));
+		synchronized (deque)
+		{
+			if ( deque.size() < getMaxRetained() )
+				deque.addFirst(buffer);
+		}
+	}
+
+	/**
+	 * Get the number of released buffers kept by this pool.
+	 * @return The number of retained buffers.
+	 */
+	public int size()
+	{
+		int size = 0;
+		for (Deque<ByteBuffer> deque : getReleased())
+		{
+			synchronized (deque)
+			{
+				size += deque.size();
+			}
+		}
+		return size;
+	}
+
+	private ByteBuffer allocate(int capacity)
+	{
+		return isDirect() ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+	}
+
+	// The index of the smallest pooled size that holds the given capacity.
+	private static int sizeIndex(int capacity)
+	{
+		if ( capacity <= MIN_CAPACITY )
+			return 0;
+		int size = Integer.highestOneBit(capacity - 1) << 1;
+		return Integer.numberOfTrailingZeros(size) - Integer.numberOfTrailingZeros(MIN_CAPACITY);
+	}
+}
+// vi:set tabstop=4 hardtabs=4 shiftwidth=4:
@@ -0,0 +1,258 @@
+// PatroDyne: Patron Supported Dynamic Executables, http://patrodyne.org
+// Released under LGPL license. See terms at http://www.gnu.org.
+package org.patrodyne.scripting.java;
+
+import java.lang.ref.SoftReference;
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>An in-process cache of compiled scripts, shared by every engine
+ * created from one {@link JavaCodeScriptEngineFactory}.</p>
+ *
+ * <p>Entries are keyed by a digest of the script source, the compiler
+ * options, the main class name, the add main directive and a fingerprint
+ * (size and modification time) of the files on the source path and class
+ * path, so that changing a helper source or a jar compiles the script again.
+ * Scripts on paths too large to fingerprint cheaply are not cached.</p>
+ *
+ * <p>Each entry holds the compiled byte code and a soft reference to the
+ * loaded script class; therefore, classes that are no longer used can still
+ * be unloaded under memory pressure, after which the byte code is defined
+ * again, without recompiling.</p>
+ *
+ * <p>The cache is bounded by its number of entries, evicting the least
+ * recently used entry when full. Lookups do not lock: each entry records
+ * when it was last used and the eviction, on a put, removes the entry used
+ * longest ago. The bound is taken from the system property
+ * <code>org.patrodyne.scripting.java.classCache.size</code>, default 512.</p>
+ *
+ * @author Rick O'Sullivan
+ */
+public class ClassCache
+{
+	/** Represents the name of the system property for the maximum number of entries. */
+	public static final String CLASS_CACHE_SIZE = JavaCodeScriptEngine.SYSPROP_PREFIX + "classCache.size";
+	/** The default maximum number of entries. */
+	public static final int DEFAULT_CLASS_CACHE_SIZE = 512;
+
+	// A compiled script: its byte code and, when reused, its class.
+	private static class CachedScript
+	{
+		private final Map<String, byte[]> bytecode;
+		private volatile SoftReference<Class<?>> clazz;
+		private volatile long lastUsed;
+
+		private CachedScript(Map<String, byte[]> bytecode)
+		{
+			this.bytecode = bytecode;
+		}
+	}
+
+	private ConcurrentMap<String, CachedScript> entries;
+	private ConcurrentMap<String, CachedScript> getEntries()
+	{
+		return entries;
+	}
+	private void setEntries(ConcurrentMap<String, CachedScript> entries)
+	{
+		this.entries = entries;
+	}
+
+	private int maxEntries;
+	private int getMaxEntries()
+	{
+		return maxEntries;
+	}
+	private void setMaxEntries(int maxEntries)
+	{
+		this.maxEntries = maxEntries;
+	}
+
+	// The time between the recorded uses of an entry, which keeps
+	// concurrent hits on one entry from writing its use each time.
+	private static final long USE_RESOLUTION = TimeUnit.MILLISECONDS.toNanos(1);
+
+	/**
+	 * Construct with a maximum number of entries.
+	 *
+	 * @param maxEntries The maximum number of cached scripts.
+	 */
+	public ClassCache(int maxEntries)
+	{
+		setEntries(new ConcurrentHashMap<String, CachedScript>());
+		setMaxEntries(maxEntries);
+	}
+
+	/** Construct with the maximum number of entries from a system property or default. */
+	public ClassCache()
+	{
+		this(defaultMaxEntries());
+	}
+
+	/**
+	 * Compute the cache key for a compilation.
+	 *
+	 * @param sourceName The file name to identify the source in diagnostics, etc.
+	 * @param source The script source, before any main method is added.
+	 * @param addMain True, when the source is wrapped in a main class.
+	 * @param mainClassName The configured main class name or null.
+	 * @param options The compiler options.
+	 * @param sourcePath The location of additional .java source files.
+	 * @param classPath The location of additional .class files.
+	 *
+	 * @return A hexadecimal digest or null when the paths are too large to fingerprint.
+	 */
+	public String key(String sourceName, String source, boolean addMain, String mainClassName,
+		String[] options, String sourcePath, String classPath)
+	{
+		MessageDigest md = ScriptCache.newDigest();
+		ScriptCache.update(md, sourceName);
+		ScriptCache.update(md, source);
+		ScriptCache.update(md, Boolean.toString(addMain));
+		ScriptCache.update(md, mainClassName);
+		if ( options != null )
+		{
+			for (String option : options)
+				ScriptCache.update(md, option);
+		}
+		ScriptCache.update(md, "-sourcepath");
+		if ( !ScriptCache.fingerprint(md, sourcePath) )
+			return null;
+		ScriptCache.update(md, "-classpath");
+		if ( !ScriptCache.fingerprint(md, classPath) )
+			return null;
+		return ScriptCache.toHex(md.digest());
+	}
+
+	/**
+	 * Get a copy of the cached byte code for the given key.
+	 *
+	 * @param key A cache key.
+	 *
+	 * @return A new memory map of class name and byte code pairs or null when the key is not cached.
+	 */
+	public Map<String, byte[]> getBytecode(String key)
+	{
+		CachedScript entry = use(key);
+		if ( entry != null )
+			return new HashMap<String, byte[]>(entry.bytecode);
+		else
+			return null;
+	}
+
+	/**
+	 * Get the cached class for the given key, when it was loaded
+	 * from the same parent class loader and has not been reclaimed.
+	 *
+	 * @param key A cache key.
+	 * @param parentLoader The parent class loader for delegation.
+	 *
+	 * @return A script class or null.
+	 */
+	public Class<?> getClass(String key, ClassLoader parentLoader)
+	{
+		CachedScript entry = use(key);
+		if ( (entry != null) && (entry.clazz != null) )
+		{
+			// The script class loader delegates to the parent loader.
+			Class<?> clazz = entry.clazz.get();
+			if ( (clazz != null) && (clazz.getClassLoader().getParent() == parentLoader) )
+				return clazz;
+		}
+		return null;
+	}
+
+	/**
+	 * Put compiled byte code into the cache.
+	 *
+	 * @param key A cache key.
+	 * @param memoryMap A memory map of class name and byte code pairs.
+	 */
+	public void putBytecode(String key, Map<String, byte[]> memoryMap)
+	{
+		if ( !getEntries().containsKey(key) )
+		{
+			CachedScript entry = new CachedScript(Collections.unmodifiableMap(new HashMap<String, byte[]>(memoryMap)));
+			entry.lastUsed = System.nanoTime();
+			if ( getEntries().putIfAbsent(key, entry) == null )
+				evict();
+		}
+	}
+
+	/**
+	 * Associate a loaded script class with cached byte code.
+	 *
+	 * @param key A cache key.
+	 * @param clazz The script class.
+	 */
+	public void putClass(String key, Class<?> clazz)
+	{
+		CachedScript entry = getEntries().get(key);
+		if ( entry != null )
+			entry.clazz = new SoftReference<Class<?>>(clazz);
+	}
+
+	/**
+	 * Get the number of cached scripts.
+	 * @return The number of entries.
+	 */
+	public int size()
+	{
+		return getEntries().size();
+	}
+
+	/** Remove every entry from the cache. */
+	public void clear()
+	{
+		getEntries().clear();
+	}
+
+	// Get an entry and record its use.
+	private CachedScript use(String key)
+	{
+		CachedScript entry = getEntries().get(key);
+		if ( entry != null )
+		{
+			long now = System.nanoTime();
+			if ( now - entry.lastUsed >= USE_RESOLUTION )
+				entry.lastUsed = now;
+		}
+		return entry;
+	}
+
+	// Remove the entries used longest ago, while the cache is over its bound.
+	private void evict()
+	{
+		while ( getEntries().size() > getMaxEntries() )
+		{
+			Map.Entry<String, CachedScript> eldest = null;
+			for (Map.Entry<String, CachedScript> entry : getEntries().entrySet())
+			{
+				if ( (eldest == null) || (entry.getValue().lastUsed - eldest.getValue().lastUsed < 0) )
+					eldest = entry;
+			}
+			if ( eldest == null )
+				break;
+			getEntries().remove(eldest.getKey(), eldest.getValue());
+		}
+	}
+
+	private static int defaultMaxEntries()
+	{
+		try
+		{
+			return Integer.parseInt(System.getProperty(CLASS_CACHE_SIZE, Integer.toString(DEFAULT_CLASS_CACHE_SIZE)));
+		}
+		catch (NumberFormatException nfe)
+		{
+			return DEFAULT_CLASS_CACHE_SIZE;
+		}
+	}
+}
+// vi:set tabstop=4 hardtabs=4 shiftwidth=4:
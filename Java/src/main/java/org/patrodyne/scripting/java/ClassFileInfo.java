@@ -0,0 +1,446 @@
+// PatroDyne: Patron Supported Dynamic Executables, http://patrodyne.org
+// Released under LGPL license. See terms at http://www.gnu.org.
+package org.patrodyne.scripting.java;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * <p>The header of a class file: its name, access flags, super class,
+ * methods and the classes it refers to, read from the byte code without
+ * defining the class.</p>
+ *
+ * <p>The referenced classes are taken from the class constants and from
+ * the type descriptors of the constant pool, so they include every class
+ * the byte code could link to.</p>
+ *
+ * @author Rick O'Sullivan
+ */
+public class ClassFileInfo
+{
+	private static final int MAGIC = 0xCAFEBABE;
+
+	// Constant pool tags.
+	private static final int CONSTANT_UTF8 = 1;
+	private static final int CONSTANT_INTEGER = 3;
+	private static final int CONSTANT_FLOAT = 4;
+	private static final int CONSTANT_LONG = 5;
+	private static final int CONSTANT_DOUBLE = 6;
+	private static final int CONSTANT_CLASS = 7;
+	private static final int CONSTANT_STRING = 8;
+	private static final int CONSTANT_FIELDREF = 9;
+	private static final int CONSTANT_METHODREF = 10;
+	private static final int CONSTANT_INTERFACEMETHODREF = 11;
+	private static final int CONSTANT_NAMEANDTYPE = 12;
+	private static final int CONSTANT_METHODHANDLE = 15;
+	private static final int CONSTANT_METHODTYPE = 16;
+	private static final int CONSTANT_DYNAMIC = 17;
+	private static final int CONSTANT_INVOKEDYNAMIC = 18;
+	private static final int CONSTANT_MODULE = 19;
+	private static final int CONSTANT_PACKAGE = 20;
+
+	/** The descriptor of a main method. */
+	public static final String MAIN_DESCRIPTOR = "([Ljava/lang/String;)V";
+
+	private String className;
+	/**
+	 * Get the binary name of this class, for example <code>a.b.C$D</code>.
+	 * @return The binary class name.
+	 */
+	public String getClassName()
+	{
+		return className;
+	}
+	private void setClassName(String className)
+	{
+		this.className = className;
+	}
+
+	private String superName;
+	/**
+	 * Get the binary name of the super class.
+	 * @return The binary super class name or null for java.lang.Object.
+	 */
+	public String getSuperName()
+	{
+		return superName;
+	}
+	private void setSuperName(String superName)
+	{
+		this.superName = superName;
+	}
+
+	private int accessFlags;
+	/**
+	 * Get the access flags of this class, as in {@link Modifier}.
+	 * @return The class access flags.
+	 */
+	public int getAccessFlags()
+	{
+		return accessFlags;
+	}
+	private void setAccessFlags(int accessFlags)
+	{
+		this.accessFlags = accessFlags;
+	}
+
+	private List<Member> methods;
+	/**
+	 * Get the methods declared by this class.
+	 * @return The declared methods.
+	 */
+	public List<Member> getMethods()
+	{
+		return methods;
+	}
+	private void setMethods(List<Member> methods)
+	{
+		this.methods = methods;
+	}
+
+	private Set<String> referencedClasses;
+	/**
+	 * Get the binary names of the classes this class refers to,
+	 * excluding arrays, primitives and this class.
+	 * @return A sorted set of binary class names.
+	 */
+	public Set<String> getReferencedClasses()
+	{
+		return referencedClasses;
+	}
+	private void setReferencedClasses(Set<String> referencedClasses)
+	{
+		this.referencedClasses = referencedClasses;
+	}
+
+	/**
+	 * A method or field: its name, descriptor and access flags.
+	 */
+	public static class Member
+	{
+		private final String name;
+		private final String descriptor;
+		private final int accessFlags;
+
+		private Member(String name, String descriptor, int accessFlags)
+		{
+			this.name = name;
+			this.descriptor = descriptor;
+			this.accessFlags = accessFlags;
+		}
+
+		/** @return The member name. */
+		public String getName()
+		{
+			return name;
+		}
+
+		/** @return The member type descriptor. */
+		public String getDescriptor()
+		{
+			return descriptor;
+		}
+
+		/** @return The member access flags, as in {@link Modifier}. */
+		public int getAccessFlags()
+		{
+			return accessFlags;
+		}
+	}
+
+	/**
+	 * Read the header of a class file.
+	 *
+	 * @param bytecode The class file bytes.
+	 *
+	 * @throws IOException When the bytes are not a well formed class file.
+	 */
+	public ClassFileInfo(byte[] bytecode)
+		throws IOException
+	{
+		this(new DataInputStream(new ByteArrayInputStream(bytecode)));
+	}
+
+	/**
+	 * Read the header of a class file from a buffer, from its position to
+	 * its limit. The position of the buffer is left as is.
+	 *
+	 * @param bytecode A buffer of the class file bytes.
+	 *
+	 * @throws IOException When the bytes are not a well formed class file.
+	 */
+	public ClassFileInfo(ByteBuffer bytecode)
+		throws IOException
+	{
+		this(new DataInputStream(new BufferInputStream(bytecode.duplicate())));
+	}
+
+	private ClassFileInfo(DataInputStream in)
+		throws IOException
+	{
+		if ( in.readInt() != MAGIC )
+			throw new IOException("not a class file");
+		in.readUnsignedShort(); // minor version
+		in.readUnsignedShort(); // major version
+
+		// Read the constant pool, keeping the strings and class and type references.
+		int count = in.readUnsignedShort();
+		String[] utf8 = new String[count];
+		int[] classIndex = new int[count];
+		List<Integer> descriptorIndexes = new ArrayList<Integer>();
+		for (int index = 1; index < count; ++index)
+		{
+			int tag = in.readUnsignedByte();
+			switch (tag)
+			{
+				case CONSTANT_UTF8:
+					utf8[index] = in.readUTF();
+					break;
+				case CONSTANT_CLASS:
+					classIndex[index] = in.readUnsignedShort();
+					break;
+				case CONSTANT_METHODTYPE:
+					descriptorIndexes.add(in.readUnsignedShort());
+					break;
+				case CONSTANT_NAMEANDTYPE:
+					in.readUnsignedShort();
+					descriptorIndexes.add(in.readUnsignedShort());
+					break;
+				case CONSTANT_STRING:
+				case CONSTANT_MODULE:
+				case CONSTANT_PACKAGE:
+					in.readUnsignedShort();
+					break;
+				case CONSTANT_METHODHANDLE:
+					in.readUnsignedByte();
+					in.readUnsignedShort();
+					break;
+				case CONSTANT_INTEGER:
+				case CONSTANT_FLOAT:
+				case CONSTANT_FIELDREF:
+				case CONSTANT_METHODREF:
+				case CONSTANT_INTERFACEMETHODREF:
+				case CONSTANT_DYNAMIC:
+				case CONSTANT_INVOKEDYNAMIC:
+					in.readInt();
+					break;
+				case CONSTANT_LONG:
+				case CONSTANT_DOUBLE:
+					in.readLong();
+					++index; // occupies two entries
+					break;
+				default:
+					throw new IOException("unknown constant pool tag "+tag);
+			}
+		}
+
+		setAccessFlags(in.readUnsignedShort());
+		setClassName(toBinaryName(utf8[classIndex[in.readUnsignedShort()]]));
+		int superIndex = in.readUnsignedShort();
+		if ( superIndex != 0 )
+			setSuperName(toBinaryName(utf8[classIndex[superIndex]]));
+		int interfaces = in.readUnsignedShort();
+		for (int index = 0; index < interfaces; ++index)
+			in.readUnsignedShort();
+
+		// Fields and methods: their descriptors are references too.
+		List<String> descriptors = new ArrayList<String>();
+		for (Member field : readMembers(in, utf8))
+			descriptors.add(field.getDescriptor());
+		List<Member> methodList = readMembers(in, utf8);
+		for (Member method : methodList)
+			descriptors.add(method.getDescriptor());
+		setMethods(Collections.unmodifiableList(methodList));
+
+		// Collect the referenced classes.
+		Set<String> references = new TreeSet<String>();
+		for (int index = 1; index < count; ++index)
+		{
+			if ( (classIndex[index] != 0) && (utf8[classIndex[index]] != null) )
+				addDescriptor(references, utf8[classIndex[index]], true);
+		}
+		for (int index : descriptorIndexes)
+		{
+			if ( utf8[index] != null )
+				descriptors.add(utf8[index]);
+		}
+		for (String descriptor : descriptors)
+			addDescriptor(references, descriptor, false);
+		references.remove(getClassName());
+		setReferencedClasses(Collections.unmodifiableSet(references));
+	}
+
+	/**
+	 * Does this class declare a <code>public static void main(String[])</code> method?
+	 * @return True when this class declares a main method.
+	 */
+	public boolean hasMainMethod()
+	{
+		for (Member method : getMethods())
+		{
+			if ( "main".equals(method.getName()) && MAIN_DESCRIPTOR.equals(method.getDescriptor()) )
+			{
+				int flags = method.getAccessFlags();
+				if ( Modifier.isPublic(flags) && Modifier.isStatic(flags) )
+					return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Find the class to run among compiled classes: a public class with a
+	 * main method, otherwise any class with a main method.
+	 *
+	 * @param memoryMap A memory map of class name and byte code pairs.
+	 *
+	 * @return The name of the main class or null when no class has a main method.
+	 * @throws IOException When the byte code is not a well formed class file.
+	 */
+	public static String findMainClass(Map<String, byte[]> memoryMap)
+		throws IOException
+	{
+		List<ClassFileInfo> infos = new ArrayList<ClassFileInfo>(memoryMap.size());
+		for (byte[] bytecode : memoryMap.values())
+			infos.add(new ClassFileInfo(bytecode));
+		return findMainClass(infos);
+	}
+
+	/**
+	 * Find the class to run among compiled classes held in buffers: a public
+	 * class with a main method, otherwise any class with a main method.
+	 *
+	 * @param bufferMap A map of class name and byte code buffer pairs.
+	 *
+	 * @return The name of the main class or null when no class has a main method.
+	 * @throws IOException When the byte code is not a well formed class file.
+	 */
+	public static String findBufferedMainClass(Map<String, ByteBuffer> bufferMap)
+		throws IOException
+	{
+		List<ClassFileInfo> infos = new ArrayList<ClassFileInfo>(bufferMap.size());
+		for (ByteBuffer bytecode : bufferMap.values())
+			infos.add(new ClassFileInfo(bytecode));
+		return findMainClass(infos);
+	}
+
+	private static String findMainClass(Collection<ClassFileInfo> infos)
+	{
+		String candidate = null;
+		for (ClassFileInfo info : infos)
+		{
+			if ( info.hasMainMethod() )
+			{
+				if ( Modifier.isPublic(info.getAccessFlags()) )
+					return info.getClassName();
+				else if ( candidate == null )
+					candidate = info.getClassName();
+			}
+		}
+		return candidate;
+	}
+
+	// Read the fields or methods, skipping their attributes.
+	private static List<Member> readMembers(DataInputStream in, String[] utf8)
+		throws IOException
+	{
+		int count = in.readUnsignedShort();
+		List<Member> members = new ArrayList<Member>(count);
+		for (int index = 0; index < count; ++index)
+		{
+			int flags = in.readUnsignedShort();
+			String name = utf8[in.readUnsignedShort()];
+			String descriptor = utf8[in.readUnsignedShort()];
+			members.add(new Member(name, descriptor, flags));
+			skipAttributes(in);
+		}
+		return members;
+	}
+
+	private static void skipAttributes(DataInputStream in)
+		throws IOException
+	{
+		int attributes = in.readUnsignedShort();
+		for (int index = 0; index < attributes; ++index)
+		{
+			in.readUnsignedShort();
+			int length = in.readInt();
+			if ( in.skipBytes(length) != length )
+				throw new IOException("truncated class file");
+		}
+	}
+
+	// Add the classes named by an internal name or a type descriptor.
+	private static void addDescriptor(Set<String> references, String descriptor, boolean internalName)
+	{
+		if ( internalName && (descriptor.charAt(0) != '[') )
+		{
+			references.add(toBinaryName(descriptor));
+			return;
+		}
+		int start = descriptor.indexOf('L');
+		while ( start >= 0 )
+		{
+			int end = descriptor.indexOf(';', start);
+			if ( end < 0 )
+				break;
+			references.add(toBinaryName(descriptor.substring(start + 1, end)));
+			start = descriptor.indexOf('L', end);
+		}
+	}
+
+	private static String toBinaryName(String internalName)
+	{
+		return internalName.replace('/', '.');
+	}
+
+	// Read a buffer, from its position to its limit, as a stream.
+	private static class BufferInputStream
+		extends InputStream
+	{
+		private final ByteBuffer buffer;
+
+		private BufferInputStream(ByteBuffer buffer)
+		{
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read()
+		{
+			return buffer.hasRemaining() ? (buffer.get() & 0xFF) : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len)
+		{
+			if ( len == 0 )
+				return 0;
+			if ( !buffer.hasRemaining() )
+				return -1;
+			int count = Math.min(len, buffer.remaining());
+			buffer.get(b, off, count);
+			return count;
+		}
+
+		@Override
+		public long skip(long n)
+		{
+			int count = (int) Math.max(0, Math.min(n, buffer.remaining()));
+			buffer.position(buffer.position() + count);
+			return count;
+		}
+	}
+}
+// vi:set tabstop=4 hardtabs=4 shiftwidth=4:
@@ -0,0 +1,168 @@
+// PatroDyne: Patron Supported Dynamic Executables, http://patrodyne.org
+// Released under LGPL license. See terms at http://www.gnu.org.
+package org.patrodyne.scripting.java;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p>A growing, in-memory store of compiled classes.</p>
+ *
+ * <p>A compilation given a store compiles against the stored classes, as if
+ * they were on the class path, and adds the classes it generates to the
+ * store. Code generators and multi-stage scripts can thereby compile each
+ * step against the output of the earlier steps, without compiling them
+ * again and without writing them to disk.</p>
+ *
+ * <p>The stored classes are defined by one class loader per parent loader
+ * and class path; therefore, every step sees the same class objects. A class is defined
+ * once by each loader: when a later step compiles a class of the same name,
+ * the store keeps the new byte code for javac but a loader that has already
+ * defined the class keeps its first definition.</p>
+ *
+ * <p>This class is thread-safe.</p>
+ *
+ * @author Rick O'Sullivan
+ */
+public class ClassStore
+{
+	// The stored byte code, by binary class name.
+	private Map<String, byte[]> classes = new ConcurrentHashMap<String, byte[]>();
+	private Map<String, byte[]> getClasses()
+	{
+		return classes;
+	}
+
+	// The class loaders of the stored classes, by parent loader and class
+	// path; a loader is kept while the classes of a script refer to it.
+	private Map<ClassLoader, Map<String, WeakReference<MemoryClassLoader>>> loaders =
+		new WeakHashMap<ClassLoader, Map<String, WeakReference<MemoryClassLoader>>>();
+	private Map<ClassLoader, Map<String, WeakReference<MemoryClassLoader>>> getLoaders()
+	{
+		return loaders;
+	}
+
+	/**
+	 * Add compiled classes to this store, replacing those of the same name.
+	 * @param memoryMap A memory map of class name and byte code pairs.
+	 */
+	public synchronized void putAll(Map<String, byte[]> memoryMap)
+	{
+		getClasses().putAll(memoryMap);
+		for (Map<String, WeakReference<MemoryClassLoader>> classPathLoaders : getLoaders().values())
+		{
+			for (WeakReference<MemoryClassLoader> reference : classPathLoaders.values())
+			{
+				MemoryClassLoader loader = reference.get();
+				if ( loader != null )
+				{
+					// A loader keeps the definition of a class it has defined.
+					for (Map.Entry<String, byte[]> entry : memoryMap.entrySet())
+						loader.addClass(entry.getKey(), entry.getValue());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Get the byte code of a stored class.
+	 * @param className The binary class name.
+	 * @return The class byte code or null when the class is not stored.
+	 */
+	public byte[] getBytecode(String className)
+	{
+		return getClasses().get(className);
+	}
+
+	/**
+	 * Get the names of the stored classes.
+	 * @return An unmodifiable view of the binary class names.
+	 */
+	public Set<String> getClassNames()
+	{
+		return Collections.unmodifiableSet(getClasses().keySet());
+	}
+
+	/**
+	 * List the stored classes of a package.
+	 *
+	 * @param packageName A package name, empty for the unnamed package.
+	 * @param recurse True to include the classes of sub-packages.
+	 *
+	 * @return The binary names of the classes in the package.
+	 */
+	public List<String> list(String packageName, boolean recurse)
+	{
+		List<String> classNames = new ArrayList<String>();
+		String prefix = packageName.isEmpty() ? "" : packageName + ".";
+		for (String className : getClasses().keySet())
+		{
+			if ( className.startsWith(prefix) )
+			{
+				if ( recurse || (className.indexOf('.', prefix.length()) < 0) )
+					classNames.add(className);
+			}
+		}
+		return classNames;
+	}
+
+	/**
+	 * Get the number of stored classes.
+	 * @return The number of classes.
+	 */
+	public int size()
+	{
+		return getClasses().size();
+	}
+
+	/**
+	 * Get the class loader of the stored classes for the given parent loader,
+	 * without a class path.
+	 *
+	 * @param parentLoader The parent class loader for delegation.
+	 *
+	 * @return A class loader shared by the scripts with the same parent loader.
+	 */
+	public MemoryClassLoader getClassLoader(ClassLoader parentLoader)
+	{
+		return getClassLoader(parentLoader, null);
+	}
+
+	/**
+	 * Get the class loader of the stored classes for the given parent loader
+	 * and class path. The loader defines each stored class on first use,
+	 * including classes added after the loader was created, and loads other
+	 * classes from the class path.
+	 *
+	 * @param parentLoader The parent class loader for delegation.
+	 * @param classPath Directories and jars for class loading, or null.
+	 *
+	 * @return A class loader shared by the scripts with the same parent loader and class path.
+	 */
+	public synchronized MemoryClassLoader getClassLoader(ClassLoader parentLoader, String classPath)
+	{
+		Map<String, WeakReference<MemoryClassLoader>> classPathLoaders = getLoaders().get(parentLoader);
+		if ( classPathLoaders == null )
+		{
+			classPathLoaders = new HashMap<String, WeakReference<MemoryClassLoader>>();
+			getLoaders().put(parentLoader, classPathLoaders);
+		}
+		String classPathKey = (classPath != null) ? classPath : "";
+		WeakReference<MemoryClassLoader> reference = classPathLoaders.get(classPathKey);
+		MemoryClassLoader loader = (reference != null) ? reference.get() : null;
+		if ( loader == null )
+		{
+			loader = new MemoryClassLoader(getClasses(), classPath, parentLoader);
+			classPathLoaders.put(classPathKey, new WeakReference<MemoryClassLoader>(loader));
+		}
+		return loader;
+	}
+}
+// vi:set tabstop=4 hardtabs=4 shiftwidth=4:
@@ -0,0 +1,198 @@
+// PatroDyne: Patron Supported Dynamic Executables, http://patrodyne.org
+// Released under LGPL license. See terms at http://www.gnu.org.
+package org.patrodyne.scripting.java;
+
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+
+/**
+ * <p>The outcome of compiling one source: its byte code, when the compilation
+ * succeeds, and the compiler diagnostics reported for it.</p>
+ *
+ * <p>The byte code of a source compiled alone stays in the pooled buffers
+ * where javac wrote it until it is either {@link #takeBufferMap() taken},
+ * to be defined without a copy, or copied into the {@link #getMemoryMap()
+ * memory map}, which releases the buffers.</p>
+ *
+ * @author Rick O'Sullivan
+ */
+public class CompilationResult
+{
+	private String sourceName;
+	/**
+	 * Get the file name that identifies the source.
+	 * @return The source name.
+	 */
+	public String getSourceName()
+	{
+		return sourceName;
+	}
+	private void setSourceName(String sourceName)
+	{
+		this.sourceName = sourceName;
+	}
+
+	private Map<String, byte[]> memoryMap;
+	/**
+	 * Get the class name and byte code pairs compiled from the source,
+	 * including classes compiled from the source path on its behalf.
+	 *
+	 * @return A memory map of class name and byte code pairs or null when compilation fails.
+	 */
+	public synchronized Map<String, byte[]> getMemoryMap()
+	{
+		if ( (memoryMap == null) && (bufferMap != null) )
+		{
+			setMemoryMap(toMemoryMap(bufferMap, getBufferPool()));
+			setBufferMap(null, null);
+		}
+		return memoryMap;
+	}
+	void setMemoryMap(Map<String, byte[]> memoryMap)
+	{
+		this.memoryMap = memoryMap;
+	}
+
+	private Map<String, ByteBuffer> bufferMap;
+	/**
+	 * <p>Take the class name and byte code buffer pairs compiled from the
+	 * source. The caller owns the buffers and releases each one to the
+	 * {@link #getBufferPool() buffer pool} when its class is defined; after
+	 * this call, the result no longer holds the byte code.</p>
+	 *
+	 * @return A buffer map of class name and byte code pairs or null when
+	 *         the compilation failed or the byte code was copied.
+	 */
+	public synchronized Map<String, ByteBuffer> takeBufferMap()
+	{
+		Map<String, ByteBuffer> taken = bufferMap;
+		bufferMap = null;
+		return taken;
+	}
+	synchronized void setBufferMap(Map<String, ByteBuffer> bufferMap, ByteBufferPool bufferPool)
+	{
+		this.bufferMap = bufferMap;
+		this.bufferPool = bufferPool;
+	}
+
+	private ByteBufferPool bufferPool;
+	/**
+	 * Get the pool of the byte code buffers.
+	 * @return A byte buffer pool or null when the result holds no buffers.
+	 */
+	public ByteBufferPool getBufferPool()
+	{
+		return bufferPool;
+	}
+
+	private Map<String, URI> origins;
+	/**
+	 * Get the source file of each class compiled from the source path.
+	 * @return A map of class names and source file URIs.
+	 */
+	public Map<String, URI> getOrigins()
+	{
+		if ( origins == null )
+			setOrigins(new HashMap<String, URI>());
+		return origins;
+	}
+	void setOrigins(Map<String, URI> origins)
+	{
+		this.origins = origins;
+	}
+
+	private List<Diagnostic<? extends JavaFileObject>> diagnostics;
+	/**
+	 * Get the errors, warnings and notes reported for the source, including
+	 * diagnostics not attributed to any one source.
+	 *
+	 * @return A list of compiler diagnostics.
+	 */
+	public List<Diagnostic<? extends JavaFileObject>> getDiagnostics()
+	{
+		if ( diagnostics == null )
+			setDiagnostics(new ArrayList<Diagnostic<? extends JavaFileObject>>());
+		return diagnostics;
+	}
+	void setDiagnostics(List<Diagnostic<? extends JavaFileObject>> diagnostics)
+	{
+		this.diagnostics = diagnostics;
+	}
+
+	private CompilationTiming timing;
+	/**
+	 * Get the timing report of the compilation; a batch of sources shares one report.
+	 * @return The compilation timing report.
+	 */
+	public CompilationTiming getTiming()
+	{
+		return timing;
+	}
+	void setTiming(CompilationTiming timing)
+	{
+		this.timing = timing;
+	}
+
+	/**
+	 * Construct a result for the named source.
+	 * @param sourceName The file name that identifies the source.
+	 */
+	public CompilationResult(String sourceName)
+	{
+		setSourceName(sourceName);
+	}
+
+	/**
+	 * Did the source compile without errors?
+	 * @return True when the byte code is available.
+	 */
+	public synchronized boolean isSuccess()
+	{
+		return (memoryMap != null) || (bufferMap != null);
+	}
+
+	/**
+	 * Copy byte code buffers into byte arrays and release the buffers.
+	 *
+	 * @param bufferMap A buffer map of class name and byte code pairs.
+	 * @param bufferPool The pool of the buffers.
+	 *
+	 * @return A memory map of class name and byte code pairs.
+	 */
+	static Map<String, byte[]> toMemoryMap(Map<String, ByteBuffer> bufferMap, ByteBufferPool bufferPool)
+	{
+		Map<String, byte[]> memoryMap = copyMemoryMap(bufferMap);
+		for (ByteBuffer buffer : bufferMap.values())
+			bufferPool.release(buffer);
+		return memoryMap;
+	}
+
+	/**
+	 * Copy byte code buffers into byte arrays; the buffers are kept, so
+	 * that the classes can still be defined from them.
+	 *
+	 * @param bufferMap A buffer map of class name and byte code pairs.
+	 *
+	 * @return A memory map of class name and byte code pairs.
+	 */
+	static Map<String, byte[]> copyMemoryMap(Map<String, ByteBuffer> bufferMap)
+	{
+		Map<String, byte[]> memoryMap = new HashMap<String, byte[]>(bufferMap.size() * 2);
+		for (Map.Entry<String, ByteBuffer> entry : bufferMap.entrySet())
+		{
+			ByteBuffer buffer = entry.getValue();
+			byte[] bytecode = new byte[buffer.remaining()];
+			buffer.duplicate().get(bytecode);
+			memoryMap.put(entry.getKey(), bytecode);
+		}
+		return memoryMap;
+	}
+}
+// vi:set tabstop=4 hardtabs=4 shiftwidth=4:
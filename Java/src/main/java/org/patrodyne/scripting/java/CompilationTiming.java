@@ -0,0 +1,175 @@
+// PatroDyne: Patron Supported Dynamic Executables, http://patrodyne.org
+// Released under LGPL license. See terms at http://www.gnu.org.
+package org.patrodyne.scripting.java;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.tools.JavaFileObject;
+
+import com.sun.source.util.TaskEvent;
+import com.sun.source.util.TaskListener;
+
+/**
+ * <p>A timing report for a compilation: the time javac spent in each phase,
+ * in total and per compilation unit, and the number of class files it listed
+ * and read from each location.</p>
+ *
+ * <p>The phases are those of {@link TaskEvent.Kind}: <code>PARSE</code>,
+ * <code>ENTER</code>, <code>ANALYZE</code>, <code>GENERATE</code>, etc.
+ * The enclosing <code>COMPILATION</code> and <code>ANNOTATION_PROCESSING</code>
+ * phases overlap the others. Sources compiled from the source path appear as
+ * compilation units too.</p>
+ *
+ * @author Rick O'Sullivan
+ */
+public class CompilationTiming
+{
+	// Represents a phase event without a source file.
+	private static final String NO_UNIT = "(none)";
+
+	private long total;
+	/**
+	 * Get the wall time of the compilation tasks, in nanoseconds.
+	 * @return The total compilation time.
+	 */
+	public long getTotal()
+	{
+		return total;
+	}
+	void addTotal(long nanos)
+	{
+		total += nanos;
+	}
+
+	private Map<String, Long> phases = new LinkedHashMap<String, Long>();
+	/**
+	 * Get the time spent in each phase, in nanoseconds.
+	 * @return A map of phase names and times, in order of first occurrence.
+	 */
+	public Map<String, Long> getPhases()
+	{
+		return Collections.unmodifiableMap(phases);
+	}
+
+	private Map<String, Map<String, Long>> units = new LinkedHashMap<String, Map<String, Long>>();
+	/**
+	 * Get the time spent in each phase for each compilation unit, in nanoseconds.
+	 * @return A map of source names to maps of phase names and times.
+	 */
+	public Map<String, Map<String, Long>> getUnits()
+	{
+		return Collections.unmodifiableMap(units);
+	}
+
+	private Map<String, Integer> classesRead = new TreeMap<String, Integer>();
+	/**
+	 * Get the number of class files read, by location: the class path, the
+	 * system modules, etc.
+	 * @return A map of location names and counts.
+	 */
+	public Map<String, Integer> getClassesRead()
+	{
+		return Collections.unmodifiableMap(classesRead);
+	}
+	synchronized void addClassRead(String location)
+	{
+		Integer count = classesRead.get(location);
+		classesRead.put(location, (count != null) ? count + 1 : 1);
+	}
+
+	private int classesListed;
+	/**
+	 * Get the number of class files listed while javac scanned packages.
+	 * @return The number of class files listed.
+	 */
+	public int getClassesListed()
+	{
+		return classesListed;
+	}
+	synchronized void addClassesListed(int count)
+	{
+		classesListed += count;
+	}
+
+	/**
+	 * Create a task listener that records phase times in this report.
+	 * @return A new task listener.
+	 */
+	public TaskListener createListener()
+	{
+		return new TaskListener()
+		{
+			// The start time of each phase in progress, by phase and unit.
+			private Map<String, Long> started = new HashMap<String, Long>();
+
+			@Override
+			public void started(TaskEvent event)
+			{
+				started.put(event.getKind()+":"+unit(event), System.nanoTime());
+			}
+
+			@Override
+			public void finished(TaskEvent event)
+			{
+				Long start = started.remove(event.getKind()+":"+unit(event));
+				if ( start != null )
+					add(event.getKind().name(), unit(event), System.nanoTime() - start);
+			}
+		};
+	}
+
+	private synchronized void add(String phase, String unit, long nanos)
+	{
+		Long time = phases.get(phase);
+		phases.put(phase, (time != null) ? time + nanos : nanos);
+		Map<String, Long> unitPhases = units.get(unit);
+		if ( unitPhases == null )
+		{
+			unitPhases = new LinkedHashMap<String, Long>();
+			units.put(unit, unitPhases);
+		}
+		time = unitPhases.get(phase);
+		unitPhases.put(phase, (time != null) ? time + nanos : nanos);
+	}
+
+	private static String unit(TaskEvent event)
+	{
+		JavaFileObject source = event.getSourceFile();
+		return (source != null) ? source.getName() : NO_UNIT;
+	}
+
+	/**
+	 * Format this report as a table of milliseconds.
+	 * @return A human readable timing report.
+	 */
+	@Override
+	public synchronized String toString()
+	{
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("Compilation> %.1f ms%n", millis(getTotal())));
+		for (Map.Entry<String, Long> phase : phases.entrySet())
+			sb.append(String.format("  %-22s %10.1f ms%n", phase.getKey(), millis(phase.getValue())));
+		for (Map.Entry<String, Map<String, Long>> unit : units.entrySet())
+		{
+			if ( NO_UNIT.equals(unit.getKey()) )
+				continue;
+			sb.append(String.format("Unit> %s%n", unit.getKey()));
+			for (Map.Entry<String, Long> phase : unit.getValue().entrySet())
+				sb.append(String.format("  %-22s %10.1f ms%n", phase.getKey(), millis(phase.getValue())));
+		}
+		sb.append(String.format("Classes> listed %d%n", getClassesListed()));
+		for (Map.Entry<String, Integer> read : classesRead.entrySet())
+			sb.append(String.format("  read from %-30s %8d%n", read.getKey(), read.getValue()));
+		return sb.toString();
+	}
+
+	private static double millis(long nanos)
+	{
+		return nanos / 1e6;
+	}
+}
+// vi:set tabstop=4 hardtabs=4 shiftwidth=4:
@@ -2,17 +2,40 @@
 // Released under LGPL license. See terms at http://www.gnu.org.
 package org.patrodyne.scripting.java;
 
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.LineNumberReader;
 import java.io.Reader;
+import java.io.StringWriter;
+import java.net.URLClassLoader;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 import javax.script.ScriptContext;
 import javax.script.ScriptEngine;
-import javax.script.ScriptEngineFactory;
 import javax.script.ScriptException;
 import javax.script.SimpleScriptContext;
 
@@ -27,6 +50,16 @@ public class Execute implements ScriptReader
 	public static String DIRECTIVE_COMMENT = "//";
 	public static String DIRECTIVE_PROPERTY = DIRECTIVE_COMMENT+"=";
 
+	// Commands
+	public static String COMMAND_CACHE_STATS = "--cache-stats";
+	public static String COMMAND_CACHE_PURGE = "--cache-purge";
+	public static String COMMAND_WATCH = "--watch";
+	public static String COMMAND_BUNDLE = "--bundle";
+	public static String COMMAND_REPL = "--repl";
+
+	// Quiet period to collect the events of one save, in milliseconds.
+	private static final long WATCH_SETTLE = 50;
+
 	private Properties properties;
 	/**
 	 * Get properties for Maven/Aether configuration.
@@ -81,6 +114,23 @@ public class Execute implements ScriptReader
 		return options;
 	}
 
+	private ScriptEngine scriptEngine;
+	// Get or create the script engine; it keeps its compiler warm between runs.
+	private ScriptEngine getScriptEngine()
+	{
+		if ( scriptEngine == null )
+			scriptEngine = new JavaCodeScriptEngineFactory(this).getScriptEngine();
+		return scriptEngine;
+	}
+
+	// Forget the directives of the previous run.
+	private void reset()
+	{
+		setProperties(null);
+		verbose = null;
+		options = null;
+	}
+
 	/**
 	 * Entry point for command line invocation of the JavaCode
 	 * Script Engine.
@@ -91,13 +141,162 @@ public class Execute implements ScriptReader
     {
     	if ( args.length > 0 )
     	{
-    		Execute executor = new Execute();
-    		executor.run(args);
+    		if ( COMMAND_WATCH.equals(args[0]) && (args.length > 1) )
+    			new Execute().watch(Arrays.copyOfRange(args, 1, args.length));
+    		else if ( COMMAND_REPL.equals(args[0]) )
+    			new Execute().repl(Arrays.copyOfRange(args, 1, args.length));
+    		else if ( COMMAND_BUNDLE.equals(args[0]) && (args.length > 2) )
+    		{
+    			if ( !bundle(Paths.get(args[1]), Paths.get(args[2])) )
+    				System.exit(1);
+    		}
+    		else if ( !cache(args[0]) )
+    		{
+    			Execute executor = new Execute();
+    			executor.run(args);
+    		}
     	}
     	else
+    	{
     		errorln("Usage: java -jar patrodyne-scripting-java-X.X.X.jar <filename> [args]");
+    		errorln("       java -jar patrodyne-scripting-java-X.X.X.jar "+COMMAND_WATCH+" <filename> [args]");
+    		errorln("       java -jar patrodyne-scripting-java-X.X.X.jar "+COMMAND_BUNDLE+" <directory> <bundlefile>");
+    		errorln("       java -jar patrodyne-scripting-java-X.X.X.jar "+COMMAND_REPL+" [filename]");
+    		errorln("       java -jar patrodyne-scripting-java-X.X.X.jar "+COMMAND_CACHE_STATS+"|"+COMMAND_CACHE_PURGE);
+    	}
     }
 
+	/**
+	 * Perform a byte code cache command: print statistics or purge entries.
+	 *
+	 * @param command A command line option.
+	 * @return True when the option is a cache command; otherwise, false.
+	 */
+	public static boolean cache(String command)
+	{
+		if ( COMMAND_CACHE_STATS.equals(command) || COMMAND_CACHE_PURGE.equals(command) )
+		{
+			ScriptCache cache = new ScriptCache();
+			try
+			{
+				if ( COMMAND_CACHE_PURGE.equals(command) )
+					System.out.println("Purged "+cache.purge()+" entries from "+cache.getDirectory());
+				else
+					cache.printStatistics(System.out);
+			}
+			catch (IOException ioe)
+			{
+				errorln("cannot access cache "+cache.getDirectory(), ioe);
+			}
+			return true;
+		}
+		else
+			return false;
+	}
+
+	/**
+	 * <p>Compile every script under a directory, in parallel, into a bundle
+	 * file; see {@link ScriptBundle}.</p>
+	 *
+	 * <p>Each script is loaded with its directives, as it would be run, and
+	 * compiled with its own options and the source and class paths of the
+	 * system properties, which are part of its key. Scripts that fail to
+	 * compile, or have no main method, are left out; they are compiled as
+	 * usual when run.</p>
+	 *
+	 * @param dir The root directory of the scripts.
+	 * @param file The bundle file to write.
+	 *
+	 * @return True when every script is in the bundle; otherwise, false.
+	 */
+	public static boolean bundle(Path dir, Path file)
+	{
+		try
+		{
+			// Load the scripts, grouped by compiler options.
+			final List<Path> paths = new ArrayList<Path>();
+			Files.walkFileTree(dir, new SimpleFileVisitor<Path>()
+			{
+				@Override
+				public FileVisitResult visitFile(Path path, BasicFileAttributes attrs)
+				{
+					if ( attrs.isRegularFile() && path.toString().endsWith(".java") )
+						paths.add(path);
+					return FileVisitResult.CONTINUE;
+				}
+			});
+			Collections.sort(paths);
+			String sourcePath = System.getProperty(JavaCodeScriptEngine.SYSPROP_PREFIX + JavaCodeScriptEngine.SOURCEPATH);
+			String classPath = System.getProperty(JavaCodeScriptEngine.SYSPROP_PREFIX + JavaCodeScriptEngine.CLASSPATH);
+			JavaCodeScriptEngineFactory factory = new JavaCodeScriptEngineFactory();
+			Map<List<String>, Map<String, String>> groups = new LinkedHashMap<List<String>, Map<String, String>>();
+			Map<String, String> keys = new HashMap<String, String>();
+			for (Path path : paths)
+			{
+				Execute reader = new Execute();
+				String script;
+				try (Reader in = Files.newBufferedReader(path))
+				{
+					script = reader.loadScript(in);
+				}
+				String name = dir.relativize(path).toString().replace(File.separatorChar, '/');
+				String key = ScriptBundle.key(script, reader.getAddMain(), reader.getOptions(), sourcePath, classPath);
+				if ( key == null )
+					continue;
+				keys.put(name, key);
+				if ( reader.getAddMain() )
+					script = factory.getProgram(script.split("[\\r\\n]+"));
+				List<String> options = Arrays.asList(reader.getOptions());
+				Map<String, String> group = groups.get(options);
+				if ( group == null )
+				{
+					group = new LinkedHashMap<String, String>();
+					groups.put(options, group);
+				}
+				group.put(name, script);
+			}
+
+			// Compile each group in batches. Scripts in a batch may declare the
+			// same class names, so retry the failed scripts one at a time.
+			ParallelCompiler compiler = new ParallelCompiler();
+			ParallelCompiler retry = new ParallelCompiler(compiler.getCompiler());
+			retry.setBatchSize(1);
+			Map<String, Map<String, byte[]>> scripts = new LinkedHashMap<String, Map<String, byte[]>>();
+			for (Map.Entry<List<String>, Map<String, String>> group : groups.entrySet())
+			{
+				String[] options = group.getKey().toArray(new String[0]);
+				Map<String, CompilationResult> results = 
+					compiler.compileAll(group.getValue(), new StringWriter(), sourcePath, classPath, options);
+				Map<String, String> failed = new LinkedHashMap<String, String>();
+				for (Map.Entry<String, CompilationResult> result : results.entrySet())
+				{
+					if ( result.getValue().isSuccess() )
+						scripts.put(keys.get(result.getKey()), result.getValue().getMemoryMap());
+					else
+						failed.put(result.getKey(), group.getValue().get(result.getKey()));
+				}
+				if ( !failed.isEmpty() )
+				{
+					results = retry.compileAll(failed, null, sourcePath, classPath, options);
+					for (Map.Entry<String, CompilationResult> result : results.entrySet())
+					{
+						if ( result.getValue().isSuccess() )
+							scripts.put(keys.get(result.getKey()), result.getValue().getMemoryMap());
+					}
+				}
+			}
+
+			int count = ScriptBundle.write(file, scripts);
+			System.out.println("Bundled "+count+" of "+paths.size()+" scripts from "+dir+" into "+file);
+			return count == paths.size();
+		}
+		catch (IOException | ScriptException ex)
+		{
+			errorln("cannot bundle "+dir, ex);
+			return false;
+		}
+	}
+
 	/**
 	 * Load a Java source script into a string, parse directives
 	 * and skip shebang, when present.
@@ -139,6 +338,153 @@ public class Execute implements ScriptReader
 		return script.toString();
 	}
 
+	/**
+	 * <p>Run a program, then run it again in this JVM each time the script,
+	 * or a Java source on the source path, changes; until interrupted.</p>
+	 *
+	 * <p>Each run recompiles with the same warm compiler, loads the classes
+	 * with a new class loader and discards the old one. When the source path
+	 * cache is enabled, by a directive or property, only changed helpers and
+	 * their dependents are recompiled. The program's main method must return
+	 * before the next run can start.</p>
+	 *
+	 * @param args The script file name and its arguments.
+	 */
+	public void watch(String[] args)
+	{
+		Path scriptFile = new File(args[0]).getAbsoluteFile().toPath();
+		try (WatchService watcher = FileSystems.getDefault().newWatchService())
+		{
+			// Watch the script's directory and the source path directories.
+			Set<Path> sourceDirs = new HashSet<Path>();
+			String sourcePath = System.getProperty(JavaCodeScriptEngine.SYSPROP_PREFIX + JavaCodeScriptEngine.SOURCEPATH);
+			if ( sourcePath != null )
+			{
+				for (String entry : sourcePath.split(File.pathSeparator))
+				{
+					Path dir = new File(entry).getAbsoluteFile().toPath();
+					if ( Files.isDirectory(dir) )
+						registerAll(watcher, dir, sourceDirs);
+				}
+			}
+			scriptFile.getParent().register(watcher, StandardWatchEventKinds.ENTRY_CREATE, 
+				StandardWatchEventKinds.ENTRY_MODIFY);
+			
+			errorln("Watching "+scriptFile+((sourcePath != null) ? " and "+sourcePath : "")+", press Ctrl-C to stop.");
+			while ( true )
+			{
+				long start = System.nanoTime();
+				reset();
+				run(args);
+				getConsole().println("watch: ran in "+TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)+" ms");
+				awaitChange(watcher, scriptFile, sourceDirs);
+				// A source saved in place leaves its directory unchanged.
+				ScriptCache.clearFingerprints();
+			}
+		}
+		catch (IOException ioe)
+		{
+			errorln("cannot watch script", ioe);
+		}
+		catch (InterruptedException ie)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * <p>Read, evaluate and print snippets interactively, see {@link Repl}.</p>
+	 *
+	 * <p>The directives of the optional script configure the session, for
+	 * example its compiler options; the rest of the script is ignored. The
+	 * classes of the class path are loaded by one parent loader, shared by
+	 * every snippet.</p>
+	 *
+	 * @param args The optional script file name.
+	 */
+	public void repl(String[] args)
+	{
+		ScriptContext ctx = new SimpleScriptContext();
+		if ( args.length > 0 )
+		{
+			try (Reader reader = new FileReader(args[0]))
+			{
+				loadScript(reader);
+			}
+			catch (IOException | ScriptException ex)
+			{
+				errorln("cannot read script", ex);
+				return;
+			}
+		}
+		getConsole().setVerbose(getVerbose());
+		ctx.setAttribute(JavaCodeScriptEngine.OPTIONS, getOptions(), ScriptContext.ENGINE_SCOPE);
+		String classPath = System.getProperty(JavaCodeScriptEngine.SYSPROP_PREFIX + JavaCodeScriptEngine.CLASSPATH);
+		try (URLClassLoader parentLoader = 
+			new URLClassLoader(MemoryClassLoader.toURLs(classPath), getClass().getClassLoader()))
+		{
+			ctx.setAttribute(JavaCodeScriptEngine.PARENTLOADER, parentLoader, ScriptContext.ENGINE_SCOPE);
+			BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+			new Repl(getScriptEngine(), ctx).run(in, getConsole().getOutput());
+		}
+		catch (IOException ioe)
+		{
+			errorln("cannot read snippet", ioe);
+		}
+	}
+
+	// Block until the script or a source changes, then let the events of one save settle.
+	private void awaitChange(WatchService watcher, Path scriptFile, Set<Path> sourceDirs)
+		throws IOException, InterruptedException
+	{
+		boolean changed = false;
+		WatchKey key = watcher.take();
+		while ( key != null )
+		{
+			Path dir = (Path) key.watchable();
+			for (WatchEvent<?> event : key.pollEvents())
+			{
+				if ( event.kind() == StandardWatchEventKinds.OVERFLOW )
+				{
+					changed = true;
+					continue;
+				}
+				Path path = dir.resolve((Path) event.context());
+				if ( path.equals(scriptFile) )
+					changed = true;
+				else if ( sourceDirs.contains(dir) )
+				{
+					if ( Files.isDirectory(path) )
+						registerAll(watcher, path, sourceDirs);
+					else if ( path.toString().endsWith(".java") )
+						changed = true;
+				}
+			}
+			key.reset();
+			key = changed ? watcher.poll(WATCH_SETTLE, TimeUnit.MILLISECONDS) : watcher.take();
+		}
+	}
+
+	// Watch a source directory and its sub-directories.
+	private static void registerAll(final WatchService watcher, Path root, final Set<Path> sourceDirs)
+		throws IOException
+	{
+		Files.walkFileTree(root, new SimpleFileVisitor<Path>()
+		{
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs)
+				throws IOException
+			{
+				if ( sourceDirs.add(dir) )
+				{
+					dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, 
+						StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+				}
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
 	// Chop off the directive's head.
 	private String chop(String s, String head)
 	{
@@ -154,11 +500,13 @@ public class Execute implements ScriptReader
 		// Verify script exists.
 		if ( scriptFile.exists() )
 		{
-			// Create a script engine manager and use this instance as the ScriptReader.
-			ScriptEngineFactory factory = new JavaCodeScriptEngineFactory(this);
+			// Profile the phases of this run, when enabled by the directives.
+			StartupProfiler profiler = new StartupProfiler();
+			profiler.setScriptName(scriptFile.getName());
+			String profilerSetting = null;
 
-			// Create a script engine.
-			ScriptEngine engine = factory.getScriptEngine();
+			// Get a script engine whose factory uses this instance as the ScriptReader.
+			ScriptEngine engine = getScriptEngine();
 
 			// Create a simple script context.
 			ScriptContext ctx = new SimpleScriptContext();
@@ -179,7 +527,9 @@ public class Execute implements ScriptReader
 			try (Reader reader = new FileReader(scriptFile))
 			{
 				// Load script into a string and parse directives.
+				profiler.begin("directives");
 				String script = loadScript(reader);
+				profiler.end("directives");
 
 				// Set scripting context attribute to add a Main method.
 				ctx.setAttribute(JavaCodeScriptEngine.ADDMAIN, getAddMain(), ScriptContext.ENGINE_SCOPE);
@@ -188,10 +538,21 @@ public class Execute implements ScriptReader
 				getConsole().setVerbose(getVerbose());
 
 				// Add scripting context attributes.
+				profilerSetting = StartupProfiler.getSetting(getProperties());
+				if ( profilerSetting != null )
+					ctx.setAttribute(JavaCodeScriptEngine.PROFILER, profiler, ScriptContext.ENGINE_SCOPE);
 				ctx.setAttribute(JavaCodeScriptEngine.OPTIONS, getOptions(), ScriptContext.ENGINE_SCOPE);
+				if ( getProperties().containsKey(JavaCodeScriptEngine.CACHE) )
+					ctx.setAttribute(JavaCodeScriptEngine.CACHE, getProperties().getProperty(JavaCodeScriptEngine.CACHE), ScriptContext.ENGINE_SCOPE);
+				if ( getProperties().containsKey(JavaCodeScriptEngine.TIERED) )
+					ctx.setAttribute(JavaCodeScriptEngine.TIERED, getProperties().getProperty(JavaCodeScriptEngine.TIERED), ScriptContext.ENGINE_SCOPE);
+				if ( getProperties().containsKey(JavaCodeScriptEngine.SOURCEPATHCACHE.toLowerCase()) )
+					ctx.setAttribute(JavaCodeScriptEngine.SOURCEPATHCACHE, getProperties().getProperty(JavaCodeScriptEngine.SOURCEPATHCACHE.toLowerCase()), ScriptContext.ENGINE_SCOPE);
 
 				// Execute script code using a file reader.
+				profiler.begin("eval");
 				engine.eval(script, ctx);
+				profiler.end("eval");
 			}
 			catch (ScriptException sex)
 			{
@@ -201,6 +562,8 @@ public class Execute implements ScriptReader
 			{
 				errorln("cannot read script", ioe);
 			}
+			if ( profilerSetting != null )
+				profiler.report(profilerSetting);
 		}
 		else
 			errorln("script does not exist: "+scriptFile);
@@ -0,0 +1,521 @@
+// PatroDyne: Patron Supported Dynamic Executables, http://patrodyne.org
+// Released under LGPL license. See terms at http://www.gnu.org.
+package org.patrodyne.scripting.java;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>Implement an interface with a generated class whose methods call
+ * method handles.</p>
+ *
+ * <p>The generated class declares each abstract method of the interface;
+ * the body of each method loads its arguments and calls one
+ * {@link MethodHandle#invokeExact} on the handle at the same position in
+ * {@link #getMethods()}, so that the call is a plain virtual call the JIT
+ * can inline, without reflection, boxing or a {@link java.lang.reflect.Proxy}.
+ * The class is written once per interface, in the class loader of the
+ * interface, and shared by every instance.</p>
+ *
+ * <p>This class is thread-safe.</p>
+ *
+ * @author Rick O'Sullivan
+ */
+public final class InterfaceAdapter<T>
+{
+	private static final int MAGIC = 0xCAFEBABE;
+	private static final int VERSION = 52; // Java 8: straight-line code needs no stack map
+
+	// Constant pool tags.
+	private static final int CONSTANT_UTF8 = 1;
+	private static final int CONSTANT_INTEGER = 3;
+	private static final int CONSTANT_CLASS = 7;
+	private static final int CONSTANT_FIELDREF = 9;
+	private static final int CONSTANT_METHODREF = 10;
+	private static final int CONSTANT_NAMEANDTYPE = 12;
+
+	// Access flags.
+	private static final int ACC_PUBLIC = 0x0001;
+	private static final int ACC_PRIVATE = 0x0002;
+	private static final int ACC_FINAL = 0x0010;
+	private static final int ACC_SUPER = 0x0020;
+	private static final int ACC_SYNTHETIC = 0x1000;
+
+	// Op codes.
+	private static final int ICONST_0 = 0x03;
+	private static final int BIPUSH = 0x10;
+	private static final int SIPUSH = 0x11;
+	private static final int LDC_W = 0x13;
+	private static final int ILOAD = 0x15;
+	private static final int LLOAD = 0x16;
+	private static final int FLOAD = 0x17;
+	private static final int DLOAD = 0x18;
+	private static final int ALOAD = 0x19;
+	private static final int AALOAD = 0x32;
+	private static final int IRETURN = 0xAC;
+	private static final int LRETURN = 0xAD;
+	private static final int FRETURN = 0xAE;
+	private static final int DRETURN = 0xAF;
+	private static final int ARETURN = 0xB0;
+	private static final int RETURN = 0xB1;
+	private static final int GETFIELD = 0xB4;
+	private static final int PUTFIELD = 0xB5;
+	private static final int INVOKEVIRTUAL = 0xB6;
+	private static final int INVOKESPECIAL = 0xB7;
+	private static final int WIDE = 0xC4;
+
+	private static final String HANDLES = "handles";
+	private static final String HANDLES_DESCRIPTOR = "[Ljava/lang/invoke/MethodHandle;";
+
+	private static final AtomicInteger adapters = new AtomicInteger();
+
+	private static final ClassValue<InterfaceAdapter<?>> interfaceAdapters = new ClassValue<InterfaceAdapter<?>>()
+	{
+		@Override
+		protected InterfaceAdapter<?> computeValue(Class<?> type)
+		{
+			return new InterfaceAdapter<Object>(type);
+		}
+	};
+
+	/**
+	 * Get the adapter of an interface.
+	 *
+	 * @param type A public interface.
+	 *
+	 * @return The adapter shared by every caller.
+	 * @throws IllegalArgumentException When the type is not a public interface.
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> InterfaceAdapter<T> forInterface(Class<T> type)
+	{
+		if ( (type == null) || !type.isInterface() )
+			throw new IllegalArgumentException("not an interface: "+type);
+		if ( !Modifier.isPublic(type.getModifiers()) )
+			throw new IllegalArgumentException("not a public interface: "+type.getName());
+		return (InterfaceAdapter<T>) interfaceAdapters.get(type);
+	}
+
+	private Class<T> type;
+	/**
+	 * Get the implemented interface.
+	 * @return The interface type.
+	 */
+	public Class<T> getType()
+	{
+		return type;
+	}
+	private void setType(Class<T> type)
+	{
+		this.type = type;
+	}
+
+	private List<Method> methods;
+	/**
+	 * Get the abstract methods of the interface, one for each distinct name
+	 * and descriptor, in the order of the handles of {@link #newInstance}.
+	 * @return An unmodifiable list of methods.
+	 */
+	public List<Method> getMethods()
+	{
+		return methods;
+	}
+	private void setMethods(List<Method> methods)
+	{
+		this.methods = methods;
+	}
+
+	private Constructor<?> constructor;
+	private Constructor<?> getConstructor()
+	{
+		return constructor;
+	}
+	private void setConstructor(Constructor<?> constructor)
+	{
+		this.constructor = constructor;
+	}
+
+	@SuppressWarnings("unchecked")
+	private InterfaceAdapter(Class<?> type)
+	{
+		setType((Class<T>) type);
+		setMethods(Collections.unmodifiableList(abstractMethods(type)));
+		String className = InterfaceAdapter.class.getName()+"$"+type.getSimpleName()+"$"+adapters.incrementAndGet();
+		try
+		{
+			byte[] bytecode = write(className.replace('.', '/'));
+			// The adapter sees the interface, and the types of its methods,
+			// from the class loader of the interface.
+			MemoryClassLoader loader = new MemoryClassLoader(Collections.singletonMap(className, bytecode),
+				null, type.getClassLoader());
+			setConstructor(loader.load(className).getConstructor(MethodHandle[].class));
+		}
+		catch (IOException | ReflectiveOperationException ex)
+		{
+			throw new IllegalStateException("cannot implement "+type.getName(), ex);
+		}
+	}
+
+	/**
+	 * Get the type a handle must have for a method: the parameter and
+	 * return types of the method, exactly.
+	 *
+	 * @param method A method of {@link #getMethods()}.
+	 *
+	 * @return The method type of the handle.
+	 */
+	public static MethodType methodType(Method method)
+	{
+		return MethodType.methodType(method.getReturnType(), method.getParameterTypes());
+	}
+
+	/**
+	 * Create an implementation of the interface.
+	 *
+	 * @param handles One handle for each method of {@link #getMethods()}, in
+	 * the same order, of exactly the type given by {@link #methodType(Method)}.
+	 *
+	 * @return A new instance of the generated class.
+	 * @throws IllegalArgumentException When a handle is missing or has the wrong type.
+	 */
+	public T newInstance(MethodHandle[] handles)
+	{
+		if ( handles.length != getMethods().size() )
+			throw new IllegalArgumentException("expected "+getMethods().size()+" handles: "+handles.length);
+		for (int index = 0; index < handles.length; ++index)
+		{
+			if ( !methodType(getMethods().get(index)).equals(handles[index].type()) )
+				throw new IllegalArgumentException("handle "+index+" is not a "+methodType(getMethods().get(index)));
+		}
+		try
+		{
+			return getType().cast(getConstructor().newInstance(new Object[] { handles.clone() }));
+		}
+		catch (ReflectiveOperationException roe)
+		{
+			throw new IllegalStateException(roe);
+		}
+	}
+
+	// The methods to implement: abstract, not implemented by Object and
+	// distinct by name and descriptor.
+	private static List<Method> abstractMethods(Class<?> type)
+	{
+		Map<String, Method> methods = new LinkedHashMap<String, Method>();
+		for (Method method : type.getMethods())
+		{
+			int modifiers = method.getModifiers();
+			if ( Modifier.isAbstract(modifiers) && !Modifier.isStatic(modifiers) && !isObjectMethod(method) )
+			{
+				String key = method.getName()+descriptor(method.getParameterTypes(), method.getReturnType());
+				if ( !methods.containsKey(key) )
+					methods.put(key, method);
+			}
+		}
+		return new ArrayList<Method>(methods.values());
+	}
+
+	private static boolean isObjectMethod(Method method)
+	{
+		try
+		{
+			Method objectMethod = Object.class.getMethod(method.getName(), method.getParameterTypes());
+			return Modifier.isPublic(objectMethod.getModifiers());
+		}
+		catch (NoSuchMethodException nsme)
+		{
+			return false;
+		}
+	}
+
+	// Write the class file of the adapter.
+	private byte[] write(String internalName)
+		throws IOException
+	{
+		ConstantPool pool = new ConstantPool();
+		int thisClass = pool.classRef(internalName);
+		int superClass = pool.classRef("java/lang/Object");
+		int interfaceClass = pool.classRef(getType().getName().replace('.', '/'));
+		int handlesField = pool.memberRef(CONSTANT_FIELDREF, internalName, HANDLES, HANDLES_DESCRIPTOR);
+		int objectInit = pool.memberRef(CONSTANT_METHODREF, "java/lang/Object", "<init>", "()V");
+		int code = pool.utf8("Code");
+
+		ByteArrayOutputStream methodBytes = new ByteArrayOutputStream();
+		DataOutputStream methodsOut = new DataOutputStream(methodBytes);
+
+		// The constructor stores the handles.
+		methodsOut.writeShort(ACC_PUBLIC);
+		methodsOut.writeShort(pool.utf8("<init>"));
+		methodsOut.writeShort(pool.utf8("("+HANDLES_DESCRIPTOR+")V"));
+		methodsOut.writeShort(1);
+		CodeWriter init = new CodeWriter();
+		init.load(ALOAD, 0);
+		init.op(INVOKESPECIAL).u2(objectInit);
+		init.load(ALOAD, 0);
+		init.load(ALOAD, 1);
+		init.op(PUTFIELD).u2(handlesField);
+		init.op(RETURN);
+		init.writeTo(methodsOut, code, 2, 2);
+
+		// Each method calls its handle with its own arguments.
+		for (int index = 0; index < getMethods().size(); ++index)
+		{
+			Method method = getMethods().get(index);
+			Class<?>[] parameterTypes = method.getParameterTypes();
+			String descriptor = descriptor(parameterTypes, method.getReturnType());
+			methodsOut.writeShort(ACC_PUBLIC | ACC_FINAL);
+			methodsOut.writeShort(pool.utf8(method.getName()));
+			methodsOut.writeShort(pool.utf8(descriptor));
+			methodsOut.writeShort(1);
+			CodeWriter body = new CodeWriter();
+			body.load(ALOAD, 0);
+			body.op(GETFIELD).u2(handlesField);
+			body.push(index, pool);
+			body.op(AALOAD);
+			int slot = 1;
+			for (Class<?> parameterType : parameterTypes)
+			{
+				body.load(loadOp(parameterType), slot);
+				slot += size(parameterType);
+			}
+			body.op(INVOKEVIRTUAL).u2(pool.memberRef(CONSTANT_METHODREF,
+				"java/lang/invoke/MethodHandle", "invokeExact", descriptor));
+			body.op(returnOp(method.getReturnType()));
+			int maxStack = Math.max(2, Math.max(1 + (slot - 1), size(method.getReturnType())));
+			body.writeTo(methodsOut, code, maxStack, slot);
+		}
+		methodsOut.flush();
+
+		ByteArrayOutputStream classBytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(classBytes);
+		out.writeInt(MAGIC);
+		out.writeShort(0);
+		out.writeShort(VERSION);
+		int fieldName = pool.utf8(HANDLES);
+		int fieldDescriptor = pool.utf8(HANDLES_DESCRIPTOR);
+		pool.writeTo(out);
+		out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER | ACC_SYNTHETIC);
+		out.writeShort(thisClass);
+		out.writeShort(superClass);
+		out.writeShort(1);
+		out.writeShort(interfaceClass);
+		out.writeShort(1);
+		out.writeShort(ACC_PRIVATE | ACC_FINAL);
+		out.writeShort(fieldName);
+		out.writeShort(fieldDescriptor);
+		out.writeShort(0);
+		out.writeShort(getMethods().size() + 1);
+		methodBytes.writeTo(out);
+		out.writeShort(0); // class attributes
+		out.flush();
+		return classBytes.toByteArray();
+	}
+
+	private static String descriptor(Class<?>[] parameterTypes, Class<?> returnType)
+	{
+		StringBuilder sb = new StringBuilder("(");
+		for (Class<?> parameterType : parameterTypes)
+			sb.append(descriptor(parameterType));
+		return sb.append(')').append(descriptor(returnType)).toString();
+	}
+
+	private static String descriptor(Class<?> type)
+	{
+		if ( type.isArray() )
+			return type.getName().replace('.', '/');
+		if ( type == void.class ) return "V";
+		if ( type == boolean.class ) return "Z";
+		if ( type == byte.class ) return "B";
+		if ( type == char.class ) return "C";
+		if ( type == short.class ) return "S";
+		if ( type == int.class ) return "I";
+		if ( type == long.class ) return "J";
+		if ( type == float.class ) return "F";
+		if ( type == double.class ) return "D";
+		return "L"+type.getName().replace('.', '/')+";";
+	}
+
+	private static int size(Class<?> type)
+	{
+		if ( type == void.class )
+			return 0;
+		return ((type == long.class) || (type == double.class)) ? 2 : 1;
+	}
+
+	private static int loadOp(Class<?> type)
+	{
+		if ( !type.isPrimitive() ) return ALOAD;
+		if ( type == long.class ) return LLOAD;
+		if ( type == float.class ) return FLOAD;
+		if ( type == double.class ) return DLOAD;
+		return ILOAD;
+	}
+
+	private static int returnOp(Class<?> type)
+	{
+		if ( type == void.class ) return RETURN;
+		if ( !type.isPrimitive() ) return ARETURN;
+		if ( type == long.class ) return LRETURN;
+		if ( type == float.class ) return FRETURN;
+		if ( type == double.class ) return DRETURN;
+		return IRETURN;
+	}
+
+	// The constant pool of the class file, without duplicate entries.
+	private static class ConstantPool
+	{
+		private ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		private DataOutputStream out = new DataOutputStream(bytes);
+		private Map<String, Integer> entries = new HashMap<String, Integer>();
+		private int count = 1;
+
+		private int utf8(String value)
+			throws IOException
+		{
+			Integer index = entries.get("U"+value);
+			if ( index == null )
+			{
+				out.writeByte(CONSTANT_UTF8);
+				out.writeUTF(value);
+				index = add("U"+value);
+			}
+			return index;
+		}
+
+		private int integer(int value)
+			throws IOException
+		{
+			Integer index = entries.get("I"+value);
+			if ( index == null )
+			{
+				out.writeByte(CONSTANT_INTEGER);
+				out.writeInt(value);
+				index = add("I"+value);
+			}
+			return index;
+		}
+
+		private int classRef(String internalName)
+			throws IOException
+		{
+			Integer index = entries.get("C"+internalName);
+			if ( index == null )
+			{
+				int name = utf8(internalName);
+				out.writeByte(CONSTANT_CLASS);
+				out.writeShort(name);
+				index = add("C"+internalName);
+			}
+			return index;
+		}
+
+		private int memberRef(int tag, String owner, String name, String descriptor)
+			throws IOException
+		{
+			String key = tag+owner+"."+name+descriptor;
+			Integer index = entries.get(key);
+			if ( index == null )
+			{
+				int ownerClass = classRef(owner);
+				int memberName = utf8(name);
+				int memberDescriptor = utf8(descriptor);
+				String nameAndTypeKey = "N"+name+descriptor;
+				Integer nameAndType = entries.get(nameAndTypeKey);
+				if ( nameAndType == null )
+				{
+					out.writeByte(CONSTANT_NAMEANDTYPE);
+					out.writeShort(memberName);
+					out.writeShort(memberDescriptor);
+					nameAndType = add(nameAndTypeKey);
+				}
+				out.writeByte(tag);
+				out.writeShort(ownerClass);
+				out.writeShort(nameAndType);
+				index = add(key);
+			}
+			return index;
+		}
+
+		private int add(String key)
+		{
+			int index = count++;
+			entries.put(key, index);
+			return index;
+		}
+
+		private void writeTo(DataOutputStream classOut)
+			throws IOException
+		{
+			out.flush();
+			classOut.writeShort(count);
+			bytes.writeTo(classOut);
+		}
+	}
+
+	// The byte code of one method.
+	private static class CodeWriter
+	{
+		private ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+		private CodeWriter op(int op)
+		{
+			bytes.write(op);
+			return this;
+		}
+
+		private CodeWriter u2(int value)
+		{
+			bytes.write(value >>> 8);
+			bytes.write(value);
+			return this;
+		}
+
+		private void load(int op, int slot)
+		{
+			if ( slot > 0xFF )
+				op(WIDE).op(op).u2(slot);
+			else
+				op(op).op(slot);
+		}
+
+		private void push(int value, ConstantPool pool)
+			throws IOException
+		{
+			if ( value <= 5 )
+				op(ICONST_0 + value);
+			else if ( value <= Byte.MAX_VALUE )
+				op(BIPUSH).op(value);
+			else if ( value <= Short.MAX_VALUE )
+				op(SIPUSH).u2(value);
+			else
+				op(LDC_W).u2(pool.integer(value));
+		}
+
+		private void writeTo(DataOutputStream out, int codeName, int maxStack, int maxLocals)
+			throws IOException
+		{
+			out.writeShort(codeName);
+			out.writeInt(12 + bytes.size());
+			out.writeShort(maxStack);
+			out.writeShort(maxLocals);
+			out.writeInt(bytes.size());
+			bytes.writeTo(out);
+			out.writeShort(0); // exception table
+			out.writeShort(0); // code attributes
+		}
+	}
+}
+// vi:set tabstop=4 hardtabs=4 shiftwidth=4:
@@ -4,20 +4,37 @@ package org.patrodyne.scripting.java;
 
 import java.io.IOException;
 import java.io.Reader;
+import java.io.StringWriter;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.WrongMethodTypeException;
+import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import javax.script.AbstractScriptEngine;
 import javax.script.Bindings;
 import javax.script.Compilable;
 import javax.script.CompiledScript;
+import javax.script.Invocable;
 import javax.script.ScriptContext;
 import javax.script.ScriptEngine;
 import javax.script.ScriptEngineFactory;
 import javax.script.ScriptException;
 import javax.script.SimpleBindings;
+import javax.script.SimpleScriptContext;
 
 /**
  * This is script engine for Java programming language.
@@ -37,8 +54,15 @@ import javax.script.SimpleBindings;
  */
 public class JavaCodeScriptEngine
 	extends AbstractScriptEngine
-	implements Compilable, ScriptReader
+	implements Compilable, Invocable, ScriptReader
 {
+	// The import declarations at the start of a function snippet.
+	private static final Pattern FUNCTION_IMPORTS = 
+		Pattern.compile("(\\s*import\\s+(static\\s+)?[\\w.]+(\\.\\*)?\\s*;)*\\s*");
+	/** Represents the prefix of the classes generated by {@link #compileFunction}. */
+	public static final String FUNCTION_CLASS = "Function";
+	/** Represents the name of the field that holds the value of a compiled function. */
+	public static final String FUNCTION_FIELD = "FUNCTION";
 	/** Represents the prefix used for certain variables where we look for System properties. */
 	public static final String SYSPROP_PREFIX = "org.patrodyne.scripting.java.";
 	/** Represents the name of the context property for the source path. */
@@ -53,32 +77,84 @@ public class JavaCodeScriptEngine
 	public static final String ADDMAIN = "addmain";
 	/** Represents the name of the context property for parent loader. */
 	public static final String PARENTLOADER = "parentLoader";
+	/** Represents the name of the context property for the persistent byte code cache. */
+	public static final String CACHE = "cache";
+	/** Represents the name of the context property for the in-process class cache mode. */
+	public static final String CLASSCACHE = "classCache";
+	/** Represents the name of the context property for tiered compilation. */
+	public static final String TIERED = "tiered";
+	/** Represents the name of the context property for the source path class cache. */
+	public static final String SOURCEPATHCACHE = "sourcepathCache";
+	/** Represents the name of the context property for the startup profiler. */
+	public static final String PROFILER = "profiler";
+	/** Represents the name of the context property for the precompiled script bundle. */
+	public static final String BUNDLE = "bundle";
+	/** Represents the name of the context property for the in-memory class store. */
+	public static final String CLASSSTORE = "classStore";
+	/** Represents the name of the context property for typed binding fields. */
+	public static final String TYPEDBINDINGS = "typedBindings";
+	/** Class cache mode: always compile. */
+	public static final String CLASSCACHE_NONE = "none";
+	/** Class cache mode: reuse byte code but define a new class on each evaluation (default). */
+	public static final String CLASSCACHE_BYTECODE = "bytecode";
+	/** Class cache mode: reuse the loaded class, including its static state. */
+	public static final String CLASSCACHE_CLASS = "class";
 	// Represents an empty string array.
 	public static final String[] EMPTY_STRING_ARRAY = new String[0];
 
-	private JavaCompiler compiler;
+	// The lazy fields below are volatile, so that concurrent evaluations
+	// read them without taking the engine's lock once they are created.
+	private volatile JavaCompiler compiler;
 	/**
-	 * Get or create the compiler.
+	 * Get or create the compiler. The compiler borrows a file manager for
+	 * each compilation; thus, it is shared by concurrent evaluations.
 	 * @return A Java compiler.
 	 */
 	protected JavaCompiler getCompiler()
 	{
-		if ( compiler == null)
-			compiler = new JavaCompiler();
+		if ( compiler == null )
+		{
+			synchronized (this)
+			{
+				if ( compiler == null)
+					compiler = new JavaCompiler();
+			}
+		}
 		return compiler;
 	}
 
-	private ScriptEngineFactory factory;
+	private volatile ScriptCache scriptCache;
+	/**
+	 * Get or create the persistent byte code cache.
+	 * @return A script cache.
+	 */
+	protected ScriptCache getScriptCache()
+	{
+		if ( scriptCache == null )
+		{
+			synchronized (this)
+			{
+				if ( scriptCache == null)
+					scriptCache = new ScriptCache();
+			}
+		}
+		return scriptCache;
+	}
+
+	private volatile ScriptEngineFactory factory;
 	/**
 	 * Get or create the script engine factory.
 	 * @return A Java script engine factory.
 	 */
 	public ScriptEngineFactory getFactory()
 	{
-		synchronized (this)
+		if (factory == null)
 		{
-			if (factory == null)
-				setFactory(new JavaCodeScriptEngineFactory());
+			synchronized (this)
+			{
+				if (factory == null)
+					setFactory(new JavaCodeScriptEngineFactory());
+			}
 		}
 		return factory;
 	}
@@ -112,15 +188,38 @@ public class JavaCodeScriptEngine
 		this.scriptReader = scriptReader;
 	}
 
-	// Java implementation for CompiledScript
+	private volatile Class<?> scriptClass;
+	/**
+	 * Get the main class of the script last evaluated by this engine. The
+	 * functions of {@link Invocable} are its static methods.
+	 * @return The main class or null when no script has been evaluated.
+	 */
+	public Class<?> getScriptClass()
+	{
+		return scriptClass;
+	}
+	/**
+	 * Set the main class whose static methods are the functions of {@link Invocable}.
+	 * @param scriptClass The main class of a script.
+	 */
+	protected void setScriptClass(Class<?> scriptClass)
+	{
+		this.scriptClass = scriptClass;
+	}
+
+	// Java implementation for CompiledScript; its entry points are
+	// resolved once, when the script is compiled.
 	private class JavaCompiledScript
 		extends CompiledScript
 	{
 		private Class<?> clazz;
+		private EntryPoints entryPoints;
 
 		protected JavaCompiledScript(Class<?> clazz)
+			throws ScriptException
 		{
 			this.clazz = clazz;
+			this.entryPoints = EntryPoints.of(clazz);
 		}
 
 		public ScriptEngine getEngine()
@@ -131,7 +230,67 @@ public class JavaCodeScriptEngine
 		public Object eval(ScriptContext ctx)
 			throws ScriptException
 		{
-			return evalClass(clazz, ctx);
+			setScriptClass(clazz);
+			return evalClass(clazz, entryPoints, ctx);
+		}
+	}
+
+	// The setScriptContext and main methods of a script class, as method
+	// handles, resolved once per class and invoked without reflection.
+	private static final class EntryPoints
+	{
+		private static final ClassValue<EntryPoints> entryPoints = new ClassValue<EntryPoints>()
+		{
+			@Override
+			protected EntryPoints computeValue(Class<?> clazz)
+			{
+				return new EntryPoints(clazz);
+			}
+		};
+
+		// Get the entry points of a class, or null for no class.
+		private static EntryPoints of(Class<?> clazz)
+			throws ScriptException
+		{
+			try
+			{
+				return (clazz != null) ? entryPoints.get(clazz) : null;
+			}
+			catch (IllegalStateException ise)
+			{
+				throw new ScriptException(ise);
+			}
+		}
+
+		private final MethodHandle setScriptContext;
+		private final MethodHandle main;
+		private final TypedBindings bindings;
+
+		private EntryPoints(Class<?> clazz)
+		{
+			boolean isPublicClazz = Modifier.isPublic(clazz.getModifiers());
+			setScriptContext = unreflect(findSetScriptContextMethod(clazz), isPublicClazz);
+			main = unreflect(findMainMethod(clazz), isPublicClazz);
+			bindings = TypedBindings.of(clazz);
+		}
+
+		private static MethodHandle unreflect(Method method, boolean isPublicClazz)
+		{
+			if (method == null)
+				return null;
+			try
+			{
+				if (!isPublicClazz)
+				{
+					// try to relax access
+					method.setAccessible(true);
+				}
+				return MethodHandles.publicLookup().unreflect(method);
+			}
+			catch (IllegalAccessException | RuntimeException ex)
+			{
+				throw new IllegalStateException(ex);
+			}
 		}
 	}
 
@@ -154,6 +313,91 @@ public class JavaCodeScriptEngine
 		return compile(getScriptReader().loadScript(reader));
 	}
 
+	/**
+	 * <p>Compiles a lambda expression, a method reference or any other
+	 * expression of a functional interface type, and returns its value.</p>
+	 * 
+	 * <p>The snippet is compiled as the initializer of a static final field
+	 * of a generated class; thus, the value is an ordinary instance of the
+	 * interface, called directly without reflection. The snippet may begin
+	 * with import declarations. When the context gives no parent loader,
+	 * the loader of the interface, or of its type arguments, is the parent.</p>
+	 * 
+	 * @param snippet The source of the expression, after any imports.
+	 * @param type The functional interface.
+	 * @param typeArguments The type arguments of the interface, if any;
+	 *        for example, <code>String.class, Integer.class</code> for a
+	 *        <code>Function&lt;String, Integer&gt;</code>.
+	 * 
+	 * @return The value of the expression.
+	 * @throws ScriptException When the snippet cannot be compiled or evaluated.
+	 */
+	public <T> T compileFunction(String snippet, Class<T> type, Class<?>... typeArguments)
+		throws ScriptException
+	{
+		if (!type.isInterface())
+			throw new IllegalArgumentException("not an interface: " + type.getName());
+		
+		// Declare the field with the parameterized interface type.
+		StringBuilder typeName = new StringBuilder(type.getCanonicalName());
+		ClassLoader typeLoader = type.getClassLoader();
+		if (typeArguments.length > 0)
+		{
+			typeName.append('<');
+			for (int index = 0; index < typeArguments.length; ++index)
+			{
+				Class<?> typeArgument = MethodType.methodType(typeArguments[index]).wrap().returnType();
+				if (index > 0)
+					typeName.append(", ");
+				typeName.append(typeArgument.getCanonicalName());
+				if (typeLoader == null)
+					typeLoader = typeArgument.getClassLoader();
+			}
+			typeName.append('>');
+		}
+		
+		// Move the imports ahead of the generated class; the expression
+		// starts on the second line. The class is named by a digest of the
+		// snippet and type, so the caches find the same snippet again.
+		Matcher imports = FUNCTION_IMPORTS.matcher(snippet);
+		imports.lookingAt();
+		MessageDigest md = ScriptCache.newDigest();
+		ScriptCache.update(md, snippet);
+		ScriptCache.update(md, typeName.toString());
+		String name = FUNCTION_CLASS + ScriptCache.toHex(md.digest()).substring(0, 16);
+		String source = imports.group().replaceAll("\\s+", " ") + 
+			"public final class " + name + " { public static void main(String[] args) { } " +
+			"public static final " + typeName + " " + FUNCTION_FIELD + " =\n" +
+			snippet.substring(imports.end()) + "\n;}\n";
+		
+		// Compile in a context of its own, with the attributes of the engine.
+		ScriptContext ctx = new SimpleScriptContext();
+		ctx.setBindings(new SimpleBindings(new HashMap<String, Object>(
+			context.getBindings(ScriptContext.ENGINE_SCOPE))), ScriptContext.ENGINE_SCOPE);
+		ctx.setBindings(context.getBindings(ScriptContext.GLOBAL_SCOPE), ScriptContext.GLOBAL_SCOPE);
+		ctx.setReader(context.getReader());
+		ctx.setWriter(context.getWriter());
+		ctx.setErrorWriter(context.getErrorWriter());
+		ctx.setAttribute(ScriptEngine.FILENAME, name + ".java", ScriptContext.ENGINE_SCOPE);
+		ctx.setAttribute(MAINCLASS, name, ScriptContext.ENGINE_SCOPE);
+		ctx.setAttribute(ADDMAIN, Boolean.FALSE, ScriptContext.ENGINE_SCOPE);
+		if (getParentLoader(ctx) == null)
+		{
+			ClassLoader parentLoader = (typeLoader != null) ? typeLoader : getClass().getClassLoader();
+			ctx.setAttribute(PARENTLOADER, parentLoader, ScriptContext.ENGINE_SCOPE);
+		}
+		
+		Class<?> clazz = parse(source, ctx);
+		try
+		{
+			return type.cast(clazz.getField(FUNCTION_FIELD).get(null));
+		}
+		catch (ReflectiveOperationException | ExceptionInInitializerError | ClassCastException ex)
+		{
+			throw new ScriptException(ex.toString());
+		}
+	}
+
 	/**
 	 * Causes the immediate execution of the script whose 
 	 * source is the String passed as the first argument.
@@ -162,6 +406,7 @@ public class JavaCodeScriptEngine
 		throws ScriptException
 	{
 		Class<?> clazz = parse(str, ctx);
+		setScriptClass(clazz);
 		return evalClass(clazz, ctx);
 	}
 
@@ -183,6 +428,133 @@ public class JavaCodeScriptEngine
 		return new SimpleBindings();
 	}
 
+	/**
+	 * Calls a static method of the script last evaluated. The method is
+	 * chosen by name and by the types of the arguments, as javac chooses
+	 * among overloads, then cached for later calls with arguments of the
+	 * same types. An ambiguous call throws a ScriptException.
+	 */
+	public Object invokeFunction(String name, Object... args)
+		throws ScriptException, NoSuchMethodException
+	{
+		if (name == null)
+			throw new NullPointerException("name");
+		Class<?> clazz = getScriptClass();
+		if (clazz == null)
+			throw new ScriptException("no script evaluated");
+		Object[] arguments = (args != null) ? args : new Object[0];
+		MethodHandle handle = bind(clazz, name, arguments, true);
+		if (handle == null)
+			throw new NoSuchMethodException(clazz.getName() + "." + name);
+		try
+		{
+			return (Object) handle.invokeExact(arguments);
+		}
+		catch (Throwable t)
+		{
+			throw new ScriptException(new InvocationTargetException(t));
+		}
+	}
+
+	/**
+	 * Calls a method of an object, typically one created by a script. The
+	 * method is chosen by name and by the types of the arguments, as javac
+	 * chooses among overloads, then cached for later calls on objects of the
+	 * same class. An ambiguous call throws a ScriptException.
+	 */
+	public Object invokeMethod(Object thiz, String name, Object... args)
+		throws ScriptException, NoSuchMethodException
+	{
+		if (thiz == null)
+			throw new IllegalArgumentException("no object");
+		if (name == null)
+			throw new NullPointerException("name");
+		Object[] arguments = (args != null) ? args : new Object[0];
+		MethodHandle handle = bind(thiz.getClass(), name, arguments, false);
+		if (handle == null)
+			throw new NoSuchMethodException(thiz.getClass().getName() + "." + name);
+		try
+		{
+			return (Object) handle.invokeExact(thiz, arguments);
+		}
+		catch (Throwable t)
+		{
+			throw new ScriptException(new InvocationTargetException(t));
+		}
+	}
+
+	/**
+	 * Implements an interface with the static methods of the script last
+	 * evaluated, or returns null when a method of the interface is missing.
+	 * Throws an IllegalArgumentException when a method of the interface is
+	 * ambiguous among overloads.
+	 */
+	public <T> T getInterface(Class<T> clasz)
+	{
+		Class<?> clazz = getScriptClass();
+		return (clazz != null) ? implement(clazz, null, clasz) : null;
+	}
+
+	/**
+	 * Implements an interface with the methods of an object, or returns
+	 * null when a method of the interface is missing. Throws an
+	 * IllegalArgumentException when a method of the interface is ambiguous
+	 * among overloads.
+	 */
+	public <T> T getInterface(Object thiz, Class<T> clasz)
+	{
+		if (thiz == null)
+			throw new IllegalArgumentException("no object");
+		if (clasz != null && clasz.isInstance(thiz))
+			return clasz.cast(thiz);
+		return implement(thiz.getClass(), thiz, clasz);
+	}
+
+	// Bind a call to a static, or any, method; an ambiguous call is a script error.
+	private static MethodHandle bind(Class<?> clazz, String name, Object[] arguments, boolean staticOnly)
+		throws ScriptException
+	{
+		try
+		{
+			return staticOnly 
+				? MethodBinder.bindStatic(clazz, name, arguments) 
+				: MethodBinder.bindInstance(clazz, name, arguments);
+		}
+		catch (IllegalArgumentException iae)
+		{
+			throw new ScriptException(iae.getMessage());
+		}
+	}
+
+	// Implement an interface with a generated class that calls the methods
+	// of a class, or of an object, through method handles.
+	private static <T> T implement(Class<?> clazz, Object thiz, Class<T> type)
+	{
+		InterfaceAdapter<T> adapter = InterfaceAdapter.forInterface(type);
+		List<Method> methods = adapter.getMethods();
+		MethodHandle[] handles = new MethodHandle[methods.size()];
+		for (int index = 0; index < handles.length; ++index)
+		{
+			Method method = methods.get(index);
+			MethodHandle handle = MethodBinder.find(clazz, method.getName(), 
+				method.getParameterTypes(), thiz == null);
+			if (handle == null)
+				return null;
+			// An instance method takes the object as its first argument.
+			if (handle.type().parameterCount() > method.getParameterCount())
+				handle = handle.bindTo(thiz);
+			try
+			{
+				handles[index] = handle.asType(InterfaceAdapter.methodType(method));
+			}
+			catch (WrongMethodTypeException wmte)
+			{
+				return null;
+			}
+		}
+		return adapter.newInstance(handles);
+	}
+
 	// Internals only below this point
 	
 	// Parse source with the given context which may contain:
@@ -196,55 +568,246 @@ public class JavaCodeScriptEngine
 		String sourcePath = getSourcePath(ctx);
 		String classPath = getClassPath(ctx);
 		String[] options = getOptions(ctx);
+		String mainClassName = getMainClassName(ctx);
+		ClassLoader parentLoader = getParentLoader(ctx);
+		boolean addMain = getAddMain(ctx);
 		
-		// When directed, wrap the the source in a program 
-		// by adding a main method and class.
-		if ( getAddMain(ctx) )
-			source = getFactory().getProgram(source.split("[\\r\\n]+"));
+		// When given a class store, compile against the classes of earlier
+		// evaluations, define the classes in the store's loader and bypass
+		// the bundle and caches, whose byte code ignores the store.
+		ClassStore classStore = getClassStore(ctx);
 		
-		Map<String, byte[]> memoryMap =
-			getCompiler().compile(sourceName, source, ctx.getErrorWriter(), sourcePath, classPath, options);
+		// When enabled, compile against the classes cached from the source
+		// path, after removing those whose sources have changed; the script's
+		// loader defines them with its own classes, in the same packages.
+		String compileClassPath = classPath;
+		SourcePathCache sourcePathCache = null;
+		boolean stale = false;
+		if ( (sourcePath != null) && (classStore == null) && getSourcePathCache(ctx) )
+		{
+			sourcePathCache = SourcePathCache.forSourcePath(sourcePath);
+			stale = sourcePathCache.validate() > 0;
+			compileClassPath = sourcePathCache.prependTo(classPath);
+		}
 		
-		if (memoryMap == null)
-			throw new ScriptException("compilation failed");
+		// When enabled, declare the engine scope bindings as typed parameters
+		// of the main method; the caches key the script by the declarations too.
+		String bindingParameters = getTypedBindings(ctx) 
+			? TypedBindings.declare(ctx.getBindings(ScriptContext.ENGINE_SCOPE)) : null;
+		String keySource = (bindingParameters != null) ? source + "\n//" + bindingParameters : source;
+		if ( bindingParameters != null )
+			options = TypedBindings.options(options);
 		
-		// create a ClassLoader to load classes from MemoryJavaFileManager
-		MemoryClassLoader loader = 
-			new MemoryClassLoader(memoryMap, classPath, getParentLoader(ctx));
-		try
+		// When a bundle holds this script, define its classes from the bundle.
+		ScriptBundle bundle = ((classStore == null) && (bindingParameters == null)) ? getBundle(ctx) : null;
+		if ( bundle != null )
 		{
-			try
+			String bundleKey = ScriptBundle.key(source, addMain, options, sourcePath, classPath);
+			String bundleMainClass = (bundleKey != null) ? bundle.getMainClass(bundleKey) : null;
+			if ( bundleMainClass != null )
 			{
-				String mainClassName = getMainClassName(ctx);
-				if (mainClassName != null)
+				try
 				{
-					Class<?> clazz = loader.load(mainClassName);
-					Method mainMethod = findMainMethod(clazz);
-					if (mainMethod == null)
-						throw new ScriptException("no main method in " + mainClassName);
-					return clazz;
+					BundleClassLoader loader = new BundleClassLoader(bundle, bundleKey, classPath, parentLoader);
+					return loader.loadClass((mainClassName != null) ? mainClassName : bundleMainClass);
 				}
-				
-				// No main class configured - load all compiled classes
-				Iterable<Class<?>> classes = loader.loadAll();
-				// search for class with main method
-				Class<?> c = findMainClass(classes);
-				if (c != null)
-					return c;
-				else
+				catch (ClassNotFoundException cnfe)
 				{
-					// if no class with "main" method, then return first class
-					 Iterator<Class<?>> itr = classes.iterator();
-					 if (itr.hasNext())
-						return itr.next();
-					 else
-						return null;
+					throw new ScriptException(cnfe);
 				}
 			}
-			finally
+		}
+		
+		// A tiered compile runs byte code from the quick compile; therefore,
+		// the caches key its byte code by the quick compile options.
+		boolean tiered = getTiered(ctx) && (classStore == null);
+		String[] keyOptions = tiered ? JavaCompiler.createFastOptions(options) : options;
+		
+		// When enabled, reuse the byte code or class from an earlier
+		// compilation by any engine from this factory.
+		String classCacheMode = getClassCacheMode(ctx);
+		ClassCache classCache = null;
+		String classKey = null;
+		Map<String, byte[]> memoryMap = null;
+		if ( (classStore == null) && !CLASSCACHE_NONE.equals(classCacheMode) && 
+			(getFactory() instanceof JavaCodeScriptEngineFactory) )
+		{
+			classCache = ((JavaCodeScriptEngineFactory) getFactory()).getClassCache();
+			classKey = classCache.key(sourceName, keySource, addMain, mainClassName, keyOptions, sourcePath, classPath);
+			if ( classKey == null )
+				classCache = null;
+			else if ( CLASSCACHE_CLASS.equals(classCacheMode) && !stale )
 			{
-				loader.close();
+				Class<?> clazz = classCache.getClass(classKey, parentLoader);
+				if ( clazz != null )
+					return clazz;
 			}
+			// Byte code compiled against changed helpers is stale.
+			if ( (classCache != null) && !stale )
+				memoryMap = classCache.getBytecode(classKey);
+		}
+		
+		// When enabled, reuse the byte code from an earlier compilation.
+		String cacheKey = null;
+		if ( (memoryMap == null) && (classStore == null) && getCache(ctx) )
+		{
+			cacheKey = getScriptCache().key(sourceName, keySource, addMain, keyOptions, sourcePath, classPath);
+			if ( cacheKey != null )
+				memoryMap = getScriptCache().get(cacheKey);
+			Console.getStandard().println("cache: "+((memoryMap != null) ? "hit " : "miss ")+cacheKey);
+		}
+		
+		StartupProfiler profiler = getProfiler(ctx);
+		Map<String, ByteBuffer> bufferMap = null;
+		if ( memoryMap == null )
+		{
+			if ( profiler != null )
+				profiler.begin("compile");
+			
+			// When directed, wrap the the source in a program 
+			// by adding a main method and class.
+			if ( addMain )
+				source = getFactory().getProgram(source.split("[\\r\\n]+"));
+			
+			if ( bindingParameters != null )
+			{
+				String className = Paths.get(sourceName).getFileName().toString().replaceFirst("\\.java$", "");
+				source = TypedBindings.inject(source, className, bindingParameters);
+			}
+			
+			CompilationResult result = null;
+			Map<String, String> sources = Collections.singletonMap(sourceName, source);
+			if ( tiered )
+			{
+				// Tiered: a quick compile to run now and a full compile to report
+				// warnings in the background. When the quick compile fails, the
+				// full compile reports the errors instead.
+				result = getCompiler().compileAll(sources, new StringWriter(), sourcePath, 
+					compileClassPath, JavaCompiler.createFastOptions(options)).get(sourceName);
+				if ( result.isSuccess() )
+					getCompiler().lint(sourceName, source, sourcePath, compileClassPath, options, Console.getStandard());
+			}
+			if ( (result == null) || !result.isSuccess() )
+			{
+				result = getCompiler().compileAll(sources, ctx.getErrorWriter(), 
+					sourcePath, compileClassPath, options, classStore).get(sourceName);
+			}
+			
+			if ( profiler != null )
+				profiler.end("compile");
+			
+			if ( !result.isSuccess() )
+				throw new ScriptException("compilation failed");
+			
+			// Define the classes straight from the buffers javac wrote them
+			// to; the caches keep a copy of the byte code.
+			if ( classStore == null )
+				bufferMap = result.takeBufferMap();
+			if ( bufferMap == null )
+				memoryMap = result.getMemoryMap();
+			else if ( (classCache != null) || (cacheKey != null) || (sourcePathCache != null) )
+				memoryMap = CompilationResult.copyMemoryMap(bufferMap);
+			
+			if ( sourcePathCache != null )
+				sourcePathCache.store(memoryMap, result.getOrigins());
+			
+			if ( cacheKey != null )
+				getScriptCache().put(cacheKey, memoryMap);
+		}
+		
+		// The class loader consumes the memory map.
+		if ( classCache != null )
+			classCache.putBytecode(classKey, memoryMap);
+		
+		if ( profiler != null )
+			profiler.begin("define");
+		MemoryClassLoader loader = null;
+		List<String> classNames = null;
+		String entryClassName = mainClassName;
+		try
+		{
+			// Choose the main class from the class file headers, so that
+			// only the main class is defined now and the others on demand.
+			if ( bufferMap != null )
+			{
+				classNames = new ArrayList<String>(bufferMap.keySet());
+				if ( entryClassName == null )
+					entryClassName = ClassFileInfo.findBufferedMainClass(bufferMap);
+				loader = new MemoryClassLoader(bufferMap, getCompiler().getBufferPool(), classPath, parentLoader);
+			}
+			else
+			{
+				classNames = new ArrayList<String>(memoryMap.keySet());
+				if ( entryClassName == null )
+					entryClassName = ClassFileInfo.findMainClass(memoryMap);
+				loader = (classStore != null)
+					? classStore.getClassLoader(parentLoader, classPath)
+					: new MemoryClassLoader(memoryMap, classPath, parentLoader);
+			}
+		}
+		catch (IOException ioe)
+		{
+			throw new ScriptException(ioe);
+		}
+		// Add the cached helpers that javac did not compile again.
+		if ( sourcePathCache != null )
+		{
+			for (Map.Entry<String, byte[]> helper : sourcePathCache.getClasses().entrySet())
+			{
+				if ( !classNames.contains(helper.getKey()) )
+					loader.addClass(helper.getKey(), helper.getValue());
+			}
+		}
+		Class<?> clazz = load(loader, classNames, mainClassName, entryClassName);
+		if ( profiler != null )
+			profiler.end("define");
+		if ( (classCache != null) && CLASSCACHE_CLASS.equals(classCacheMode) && (clazz != null) )
+			classCache.putClass(classKey, clazz);
+		return clazz;
+	}
+
+	// Load the main class, or the first class, from compiled byte code.
+	// The other classes are defined on demand; thus, the loader stays open.
+	private static Class<?> load(MemoryClassLoader loader, List<String> classNames, 
+		String mainClassName, String entryClassName)
+		throws ScriptException
+	{
+		try
+		{
+			if (mainClassName != null)
+			{
+				Class<?> clazz = loader.load(mainClassName);
+				Method mainMethod = findMainMethod(clazz);
+				if (mainMethod == null)
+					throw new ScriptException("no main method in " + mainClassName);
+				return clazz;
+			}
+			
+			// The class file headers declare a main method in this class.
+			if (entryClassName != null)
+				return loader.load(entryClassName);
+			
+			// No main method declared - load all compiled classes
+			List<Class<?>> classes = new ArrayList<Class<?>>(classNames.size());
+			for (String className : classNames)
+				classes.add(loader.load(className));
+			// search for class with inherited main method
+			Class<?> c = findMainClass(classes);
+			if (c != null)
+				return c;
+			else
+			{
+				// if no class with "main" method, then return first class
+				 Iterator<Class<?>> itr = classes.iterator();
+				 if (itr.hasNext())
+					return itr.next();
+				 else
+					return null;
+			}
+		}
+		catch (ScriptException se)
+		{
+			throw se;
 		}
 		catch (Exception ex)
 		{
@@ -419,6 +982,121 @@ public class JavaCodeScriptEngine
 		}
 	}
 
+	// Get the cache flag from the first of:
+	// 1) ScriptContext: cache
+	// 2) -Dorg.patrodyne.scripting.java.cache
+	private static boolean getCache(ScriptContext ctx)
+	{
+		int scope = ctx.getAttributesScope(CACHE);
+		if (scope != -1)
+			return Boolean.parseBoolean(ctx.getAttribute(CACHE).toString());
+		else
+			return Boolean.parseBoolean(System.getProperty(SYSPROP_PREFIX + CACHE));
+	}
+
+	// Get the tiered compilation flag from the first of:
+	// 1) ScriptContext: tiered
+	// 2) -Dorg.patrodyne.scripting.java.tiered
+	private static boolean getTiered(ScriptContext ctx)
+	{
+		int scope = ctx.getAttributesScope(TIERED);
+		if (scope != -1)
+			return Boolean.parseBoolean(ctx.getAttribute(TIERED).toString());
+		else
+			return Boolean.parseBoolean(System.getProperty(SYSPROP_PREFIX + TIERED));
+	}
+
+	// Get the typed bindings flag from the first of:
+	// 1) ScriptContext: typedBindings
+	// 2) -Dorg.patrodyne.scripting.java.typedBindings
+	private static boolean getTypedBindings(ScriptContext ctx)
+	{
+		int scope = ctx.getAttributesScope(TYPEDBINDINGS);
+		if (scope != -1)
+			return Boolean.parseBoolean(ctx.getAttribute(TYPEDBINDINGS).toString());
+		else
+			return Boolean.parseBoolean(System.getProperty(SYSPROP_PREFIX + TYPEDBINDINGS));
+	}
+
+	// Get the source path cache flag from the first of:
+	// 1) ScriptContext: sourcepathCache
+	// 2) -Dorg.patrodyne.scripting.java.sourcepathCache
+	private static boolean getSourcePathCache(ScriptContext ctx)
+	{
+		int scope = ctx.getAttributesScope(SOURCEPATHCACHE);
+		if (scope != -1)
+			return Boolean.parseBoolean(ctx.getAttribute(SOURCEPATHCACHE).toString());
+		else
+			return Boolean.parseBoolean(System.getProperty(SYSPROP_PREFIX + SOURCEPATHCACHE));
+	}
+
+	// Get the class cache mode from the first of:
+	// 1) ScriptContext: classCache
+	// 2) -Dorg.patrodyne.scripting.java.classCache
+	// 3) bytecode
+	private static String getClassCacheMode(ScriptContext ctx)
+	{
+		int scope = ctx.getAttributesScope(CLASSCACHE);
+		if (scope != -1)
+			return ctx.getAttribute(CLASSCACHE).toString().toLowerCase();
+		else
+			return System.getProperty(SYSPROP_PREFIX + CLASSCACHE, CLASSCACHE_BYTECODE).toLowerCase();
+	}
+
+	// Get the script bundle from the first of:
+	// 1) ScriptContext: bundle, a ScriptBundle or a file name
+	// 2) -Dorg.patrodyne.scripting.java.bundle
+	private static ScriptBundle getBundle(ScriptContext ctx)
+		throws ScriptException
+	{
+		Object bundle = null;
+		int scope = ctx.getAttributesScope(BUNDLE);
+		if (scope != -1)
+			bundle = ctx.getAttribute(BUNDLE, scope);
+		else
+			bundle = System.getProperty(SYSPROP_PREFIX + BUNDLE);
+		if (bundle instanceof ScriptBundle)
+			return (ScriptBundle) bundle;
+		else if ((bundle == null) || bundle.toString().isEmpty())
+			return null;
+		try
+		{
+			return ScriptBundle.open(Paths.get(bundle.toString()));
+		}
+		catch (IOException ioe)
+		{
+			throw new ScriptException(ioe);
+		}
+	}
+
+	// Get the startup profiler from:
+	// 1) ScriptContext: profiler
+	private static StartupProfiler getProfiler(ScriptContext ctx)
+	{
+		int scope = ctx.getAttributesScope(PROFILER);
+		if (scope != -1)
+		{
+			Object profiler = ctx.getAttribute(PROFILER, scope);
+			if (profiler instanceof StartupProfiler)
+				return (StartupProfiler) profiler;
+		}
+		return null;
+	}
+
+	// Get the class store from:
+	// 1) ScriptContext: classStore
+	private static ClassStore getClassStore(ScriptContext ctx)
+	{
+		int scope = ctx.getAttributesScope(CLASSSTORE);
+		if (scope != -1)
+		{
+			Object classStore = ctx.getAttribute(CLASSSTORE, scope);
+			if (classStore instanceof ClassStore)
+				return (ClassStore) classStore;
+		}
+		return null;
+	}
+
 	private static ClassLoader getParentLoader(ScriptContext ctx)
 	{
 		int scope = ctx.getAttributesScope(PARENTLOADER);
@@ -436,52 +1114,68 @@ public class JavaCodeScriptEngine
 	private static Object evalClass(Class<?> clazz, ScriptContext ctx)
 		throws ScriptException
 	{
-		// JSR-223 requirement
-		ctx.setAttribute("context", ctx, ScriptContext.ENGINE_SCOPE);
+		return evalClass(clazz, EntryPoints.of(clazz), ctx);
+	}
+
+	private static Object evalClass(Class<?> clazz, EntryPoints entryPoints, ScriptContext ctx)
+		throws ScriptException
+	{
+		// JSR-223 requirement; a context shared by concurrent evaluations
+		// is written once, not on every evaluation.
+		Bindings engineBindings = ctx.getBindings(ScriptContext.ENGINE_SCOPE);
+		if (engineBindings.get("context") != ctx)
+			ctx.setAttribute("context", ctx, ScriptContext.ENGINE_SCOPE);
 		if (clazz == null)
 			return null;
 		
+		// Each evaluation passes the values of its own typed bindings.
+		Object[] bindingValues = entryPoints.bindings.isEmpty() 
+			? null : entryPoints.bindings.values(engineBindings);
+		return run(clazz, entryPoints, bindingValues, ctx);
+	}
+
+	// Call the entry points of a class.
+	private static Object run(Class<?> clazz, EntryPoints entryPoints, Object[] bindingValues, 
+		ScriptContext ctx)
+		throws ScriptException
+	{
 		try
 		{
-			boolean isPublicClazz = Modifier.isPublic(clazz.getModifiers());
-			
-			// find the setScriptContext method
-			Method setCtxMethod = findSetScriptContextMethod(clazz);
-			
 			// call setScriptContext and pass current ctx variable
-			if (setCtxMethod != null)
-			{
-				if (!isPublicClazz)
-				{
-					// try to relax access
-					setCtxMethod.setAccessible(true);
-				}
-				setCtxMethod.invoke(null, new Object[] { ctx });
-			}
+			if (entryPoints.setScriptContext != null)
+				entryPoints.setScriptContext.invokeExact(ctx);
 			
-			// find the main method
-			Method mainMethod = findMainMethod(clazz);
-			if (mainMethod != null)
+			// call the main method
+			if (entryPoints.main != null)
 			{
-				if (!isPublicClazz)
-				{
-					// try to relax access
-					mainMethod.setAccessible(true);
-				}
-				
 				// get "command line" args for the main method
 				String[] args = getArguments(ctx);
 				
 				// call main method
-				mainMethod.invoke(null, new Object[] { args });
+				StartupProfiler profiler = getProfiler(ctx);
+				if ( profiler != null )
+					profiler.begin("main");
+				try
+				{
+					if (bindingValues != null)
+						entryPoints.bindings.main(args, bindingValues);
+					else
+						entryPoints.main.invokeExact(args);
+				}
+				finally
+				{
+					if ( profiler != null )
+						profiler.end("main");
+				}
 			}
 			
 			// return main class as eval's result
 			return clazz;
 		}
-		catch (Exception exp)
+		catch (Throwable t)
 		{
-			throw new ScriptException(exp);
+			// As with reflection, the script's own exception is the cause.
+			throw new ScriptException(new InvocationTargetException(t));
 		}
 	}
 
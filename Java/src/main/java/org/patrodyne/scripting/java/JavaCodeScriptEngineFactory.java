@@ -5,6 +5,7 @@ package org.patrodyne.scripting.java;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.script.ScriptEngine;
 import javax.script.ScriptEngineFactory;
@@ -31,7 +32,7 @@ import javax.script.ScriptEngineFactory;
 public class JavaCodeScriptEngineFactory
 	implements ScriptEngineFactory
 {
-	private static long nextClassNum = 0L;
+	private static final AtomicLong nextClassNum = new AtomicLong();
 	private static List<String> names;
 	private static List<String> extensions;
 	private static List<String> mimeTypes;
@@ -186,6 +187,26 @@ public class JavaCodeScriptEngineFactory
 		return engine;
 	}
 
+	// Represents the compiled scripts shared by all engines from this factory.
+	private volatile ClassCache classCache;
+	/**
+	 * Get the in-process cache of compiled scripts shared by all
+	 * engines from this factory.
+	 * @return The class cache.
+	 */
+	public ClassCache getClassCache()
+	{
+		if ( classCache == null )
+		{
+			synchronized (this)
+			{
+				if ( classCache == null )
+					classCache = new ClassCache();
+			}
+		}
+		return classCache;
+	}
+
 	// Generate a unique class name in getProgram().
 	private String getClassName()
 	{
@@ -193,9 +214,9 @@ public class JavaCodeScriptEngineFactory
 	}
 
 	// Increments a unique class counter.
-	private static synchronized long getNextClassNumber()
+	private static long getNextClassNumber()
 	{
-		return nextClassNum++;
+		return nextClassNum.getAndIncrement();
 	}
 	
 	// Represents the script reader.
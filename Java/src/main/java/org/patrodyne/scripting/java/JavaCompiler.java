@@ -4,20 +4,37 @@ package org.patrodyne.scripting.java;
 
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.io.Writer;
+import java.net.URI;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import javax.script.ScriptException;
 import javax.tools.Diagnostic;
 import javax.tools.DiagnosticCollector;
+import javax.tools.FileObject;
 import javax.tools.JavaCompiler.CompilationTask;
 import javax.tools.JavaFileObject;
 import javax.tools.StandardJavaFileManager;
 import javax.tools.ToolProvider;
 
+import com.sun.source.util.JavacTask;
+
 /**
  * Simple interface to Java compiler using JSR 199 Compiler API.
  * 
@@ -35,7 +52,33 @@ import javax.tools.ToolProvider;
  */
 public class JavaCompiler
 {
-	private javax.tools.JavaCompiler systemJavaCompiler;
+	/** Options for a quick compile: source and line numbers only, no lint and no annotation processing. */
+	public static final String[] FAST_OPTIONS = { "-g:source,lines", "-Xlint:none", "-proc:none" };
+
+	/** The maximum number of full compiles waiting to lint. */
+	public static final int MAX_PENDING_LINTS = 16;
+
+	// One thread, shared by all compilers, lints in the background. Its
+	// thread is not a daemon, so the warnings are reported before the JVM
+	// exits, but it ends when idle. When too many lints are pending, the
+	// oldest is discarded: a later compile of the script supersedes it.
+	private static final ThreadPoolExecutor linter = new ThreadPoolExecutor(1, 1, 1L, TimeUnit.SECONDS,
+		new ArrayBlockingQueue<Runnable>(MAX_PENDING_LINTS), new ThreadFactory()
+		{
+			@Override
+			public Thread newThread(Runnable runnable)
+			{
+				return new Thread(runnable, "javacode-lint");
+			}
+		}, new ThreadPoolExecutor.DiscardOldestPolicy());
+	static
+	{
+		linter.allowCoreThreadTimeOut(true);
+	}
+
+	// The lazy fields below are volatile, so that concurrent compilations
+	// read them without taking the compiler's lock once they are created.
+	private volatile javax.tools.JavaCompiler systemJavaCompiler;
 	/**
 	 * Gets the Java™ programming language compiler provided with this platform.
 	 * 
@@ -47,9 +90,16 @@ public class JavaCompiler
 	{
 		if ( systemJavaCompiler == null )
 		{
-			systemJavaCompiler = ToolProvider.getSystemJavaCompiler();
-			if ( systemJavaCompiler == null )
-				throw new ScriptException("Java compiler not available. Are you using a JRE instead of a JDK?");
+			synchronized (this)
+			{
+				if ( systemJavaCompiler == null )
+				{
+					javax.tools.JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+					if ( compiler == null )
+						throw new ScriptException("Java compiler not available. Are you using a JRE instead of a JDK?");
+					systemJavaCompiler = compiler;
+				}
+			}
 		}
 		return systemJavaCompiler;
 	}
@@ -64,7 +114,7 @@ public class JavaCompiler
 	 * @return A Java file manager tool.
 	 * @throws ScriptException When the System does not provide a Java Compiler.
 	 */
-	protected StandardJavaFileManager getStandardFileManager()
+	protected synchronized StandardJavaFileManager getStandardFileManager()
 		throws ScriptException
 	{
 		if ( standardFileManager == null)
@@ -72,6 +122,50 @@ public class JavaCompiler
 		return standardFileManager;
 	}
 
+	private volatile JavaFileManagerPool fileManagerPool;
+	/**
+	 * <p>Get the pool of standard file managers borrowed by each compilation.</p>
+	 * 
+	 * <p>By default, all compilers share the {@link JavaFileManagerPool#getStandard() standard} pool.</p>
+	 * 
+	 * @return The file manager pool.
+	 */
+	public JavaFileManagerPool getFileManagerPool()
+	{
+		JavaFileManagerPool pool = fileManagerPool;
+		return (pool != null) ? pool : JavaFileManagerPool.getStandard();
+	}
+	/**
+	 * Set the pool of standard file managers borrowed by each compilation.
+	 * @param fileManagerPool The file manager pool.
+	 */
+	public void setFileManagerPool(JavaFileManagerPool fileManagerPool)
+	{
+		this.fileManagerPool = fileManagerPool;
+	}
+
+	private volatile ByteBufferPool bufferPool;
+	/**
+	 * <p>Get the pool of the buffers where javac writes class files.</p>
+	 * 
+	 * <p>By default, all compilers share the {@link ByteBufferPool#getStandard() standard} pool.</p>
+	 * 
+	 * @return The byte buffer pool.
+	 */
+	public ByteBufferPool getBufferPool()
+	{
+		ByteBufferPool pool = bufferPool;
+		return (pool != null) ? pool : ByteBufferPool.getStandard();
+	}
+	/**
+	 * Set the pool of the buffers where javac writes class files.
+	 * @param bufferPool The byte buffer pool.
+	 */
+	public void setBufferPool(ByteBufferPool bufferPool)
+	{
+		this.bufferPool = bufferPool;
+	}
+
 	/**
 	 * Compile given source string and return byte codes as a memory map.
 	 * 
@@ -85,7 +179,7 @@ public class JavaCompiler
 		throws ScriptException
 	{
 		PrintWriter err = new PrintWriter(Console.getStandard().getOutput());
-		return compile(source, fileName, err, null, null);
+		return compile(fileName, source, err, null, null);
 	}
 
 	/**
@@ -146,6 +240,12 @@ public class JavaCompiler
 	 * 
 	 * <p>If the compilation fails, diagnostics are sent to the standard error stream.</p>
 	 * 
+	 * <p>This method is thread-safe: each compilation borrows a standard file
+	 * manager from the {@link #getFileManagerPool() pool}, configured for the
+	 * given source path and class path, and returns it when done. When the
+	 * initial options specify their own paths, the compilation uses a private
+	 * file manager instead.</p>
+	 * 
 	 * @param sourceName The file name to identify the source in diagnostics, etc.
 	 * @param source The string containing the source to be compiled
 	 * @param err The error writer where diagnostic messages are written.
@@ -159,64 +259,395 @@ public class JavaCompiler
 	public Map<String, byte[]> compile(String sourceName, String source, Writer err, String sourcePath, 
 		String classPath, String[] initialOptions) throws ScriptException
 	{
-		// A) Create a new memory JavaFileManager
+		Map<String, String> sources = Collections.singletonMap(sourceName, source);
+		return compileAll(sources, err, sourcePath, classPath, initialOptions).get(sourceName).getMemoryMap();
+	}
+
+	/**
+	 * <p>Compile many sources in one compilation task and return the byte codes
+	 * and diagnostics of each source.</p>
+	 * 
+	 * <p>The sources share one javac set up and one scan of the source path and
+	 * class path. Since javac generates no classes when any source has errors,
+	 * the sources without errors are compiled again, until every remaining
+	 * source compiles; one bad source does not hide the results of the others.
+	 * The diagnostics of the failed sources are sent to the error writer.</p>
+	 * 
+	 * <p>This method is thread-safe, see {@link #compile(String, String, Writer, String, String, String[])}.</p>
+	 * 
+	 * @param sources The source strings to be compiled, by file name.
+	 * @param err The error writer where diagnostic messages are written.
+	 * @param sourcePath The location of additional .java source files.
+	 * @param classPath The location of additional .class files.
+	 * @param initialOptions Initial compiler options.
+	 * 
+	 * @return A compilation result for each source name, in the order of the given sources.
+	 * @throws ScriptException When the System does not provide a Java Compiler.
+	 */
+	public Map<String, CompilationResult> compileAll(Map<String, String> sources, Writer err, String sourcePath, 
+		String classPath, String[] initialOptions) throws ScriptException
+	{
+		return compileAll(sources, err, sourcePath, classPath, initialOptions, null);
+	}
+
+	/**
+	 * <p>Compile many sources in one compilation task, against the classes of
+	 * a class store, and return the byte codes and diagnostics of each source.
+	 * The classes compiled without errors are added to the store.</p>
+	 * 
+	 * <p>This method is thread-safe, see {@link #compile(String, String, Writer, String, String, String[])}.</p>
+	 * 
+	 * @param sources The source strings to be compiled, by file name.
+	 * @param err The error writer where diagnostic messages are written.
+	 * @param sourcePath The location of additional .java source files.
+	 * @param classPath The location of additional .class files.
+	 * @param initialOptions Initial compiler options.
+	 * @param classStore The in-memory classes to compile against, or null for none.
+	 * 
+	 * @return A compilation result for each source name, in the order of the given sources.
+	 * @throws ScriptException When the System does not provide a Java Compiler.
+	 */
+	public Map<String, CompilationResult> compileAll(Map<String, String> sources, Writer err, String sourcePath, 
+		String classPath, String[] initialOptions, ClassStore classStore) throws ScriptException
+	{
+		PrintWriter perr = null;
+		if ( err instanceof PrintWriter )
+			perr = (PrintWriter) err;
+		else if ( err != null)
+			perr = new PrintWriter(err);
+		else 
+			perr = new PrintWriter(Console.getStandard().getOutput());
+		
+		Map<String, CompilationResult> results = new LinkedHashMap<String, CompilationResult>();
+		CompilationTiming timing = new CompilationTiming();
+		for (String sourceName : sources.keySet())
+		{
+			CompilationResult result = new CompilationResult(sourceName);
+			result.setTiming(timing);
+			results.put(sourceName, result);
+		}
+		
+		// Borrow a standard JavaFileManager for the source path and class path,
+		// unless the initial options would reconfigure a pooled manager's paths.
+		boolean pooled = !hasPathOption(initialOptions);
+		StandardJavaFileManager standardFileManager = pooled
+			? getFileManagerPool().borrow(getSystemJavaCompiler(), sourcePath, classPath)
+			: getSystemJavaCompiler().getStandardFileManager(null, null, null);
+		try
+		{
+			// Compile the sources that remain free of errors, until all of them compile.
+			Map<String, String> pending = new LinkedHashMap<String, String>(sources);
+			while ( !pending.isEmpty() )
+			{
+				Set<String> failed = compile(pending, perr, sourcePath, classPath, initialOptions, 
+					standardFileManager, pooled, classStore, results, timing);
+				if ( failed.isEmpty() || (failed.size() == pending.size()) )
+					break;
+				pending.keySet().removeAll(failed);
+			}
+		}
+		finally
+		{
+			if ( pooled )
+				getFileManagerPool().release(sourcePath, classPath, standardFileManager);
+			else
+			{
+				try
+				{
+					standardFileManager.close();
+				}
+				catch (IOException ioe)
+				{
+					Console.getStandard().errorln("Warning: cannot close file manager: "+ioe.getMessage());
+				}
+			}
+		}
+		
+		// Report the diagnostics of failed sources, once each.
+		Set<Diagnostic<?>> reported = Collections.newSetFromMap(new IdentityHashMap<Diagnostic<?>, Boolean>());
+		for (CompilationResult result : results.values())
+		{
+			if ( !result.isSuccess() )
+			{
+				if ( results.size() > 1 )
+				{
+					perr.println();
+					perr.println("Source> "+result.getSourceName());
+				}
+				for (Diagnostic<?> diagnostic : result.getDiagnostics())
+				{
+					if ( reported.add(diagnostic) )
+						report(diagnostic, perr);
+				}
+			}
+		}
+		perr.flush();
+		
+		// Report where the compilation time went.
+		Console console = Console.getStandard();
+		if ( console.getVerbose().atLeast(Verbose.TRACE) )
+			console.getOutput().print(timing);
+		
+		return results;
+	}
+
+	// Compile the pending sources with the given standard file manager, in one task,
+	// and record their results. Return the names of the sources with errors; when
+	// the task fails with no errors attributed to a pending source, all of them fail.
+	private Set<String> compile(Map<String, String> pending, PrintWriter perr, String sourcePath, 
+		String classPath, String[] initialOptions, StandardJavaFileManager standardFileManager, 
+		boolean pooled, ClassStore classStore, Map<String, CompilationResult> results, CompilationTiming timing)
+		throws ScriptException
+	{
+		// A) Create a new memory JavaFileManager, counting class files for the timing report.
 		MemoryJavaFileManager<StandardJavaFileManager> javaFileManager = 
-			new MemoryJavaFileManager<StandardJavaFileManager>(getStandardFileManager());
+			new MemoryJavaFileManager<StandardJavaFileManager>(standardFileManager);
+		javaFileManager.setTiming(timing);
+		javaFileManager.setBufferPool(getBufferPool());
+		javaFileManager.setClassStore(classStore);
 		
 		// B) Create diagnostics to collect errors, warnings etc.
 		DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<JavaFileObject>();
 		
-		// C) Java compiler options
+		// C) Java compiler options; a pooled file manager already has its paths.
+		if ( pooled )
+		{
+			sourcePath = null;
+			classPath = null;
+		}
 		List<String> options;
 		if ( initialOptions == null || (initialOptions.length == 0))
 			options = createCompilerOptions(sourcePath, classPath);
 		else
 			options = createCompilerOptions(sourcePath, classPath, initialOptions);
 		
-		// D) Prepare the compilation unit
+		// D) Prepare the compilation units
 		//    1) create a list of JavaFileObjects
-		//    2) create a JavaFileObject instance for the current source name and code.
-		//    3) Add the instance to the list.
-		List<JavaFileObject> javaFileObjects = new ArrayList<JavaFileObject>(1);
-		javaFileObjects.add(MemoryJavaFileManager.createJavaFileObject(sourceName, source));
-		
-		PrintWriter perr = null;
-		if ( err instanceof PrintWriter )
-			perr = (PrintWriter) err;
-		else if ( err != null)
-			perr = new PrintWriter(err);
-		else 
-			perr = new PrintWriter(Console.getStandard().getOutput());
+		//    2) create a JavaFileObject instance for each source name and code.
+		//    3) Add the instances to the list, remembering their source names.
+		List<JavaFileObject> javaFileObjects = new ArrayList<JavaFileObject>(pending.size());
+		Map<FileObject, String> sourceNames = new IdentityHashMap<FileObject, String>();
+		for (Map.Entry<String, String> entry : pending.entrySet())
+		{
+			JavaFileObject javaFileObject = MemoryJavaFileManager.createJavaFileObject(entry.getKey(), entry.getValue());
+			javaFileObjects.add(javaFileObject);
+			sourceNames.put(javaFileObject, entry.getKey());
+		}
 		
 		// Create a compilation task.
 		CompilationTask compilationTask = getSystemJavaCompiler().getTask(perr, javaFileManager, diagnostics, options, null, javaFileObjects);
+		if ( compilationTask instanceof JavacTask )
+			((JavacTask) compilationTask).addTaskListener(timing.createListener());
 		
         // Performs this compilation task. 
 		// True, if and only if, all the files compiled without errors.
-		Map<String, byte[]> memoryMap = null;
-		if (compilationTask.call())
+		// The standard file manager is not closed here; it is pooled or closed by the caller.
+		long start = System.nanoTime();
+		boolean success = compilationTask.call();
+		timing.addTotal(System.nanoTime() - start);
+		
+		// Attribute diagnostics to their sources; others apply to every pending source.
+		Set<String> failed = new HashSet<String>();
+		Map<String, List<Diagnostic<? extends JavaFileObject>>> sourceDiagnostics = 
+			new HashMap<String, List<Diagnostic<? extends JavaFileObject>>>();
+		for (String sourceName : pending.keySet())
+			sourceDiagnostics.put(sourceName, new ArrayList<Diagnostic<? extends JavaFileObject>>());
+		for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics())
 		{
-			memoryMap = javaFileManager.getMemoryMap();
-			try
+			String sourceName = sourceNames.get(diagnostic.getSource());
+			if ( sourceName == null )
 			{
-				javaFileManager.close();
+				for (List<Diagnostic<? extends JavaFileObject>> list : sourceDiagnostics.values())
+					list.add(diagnostic);
 			}
-			catch (IOException exp)
+			else
 			{
-				perr.println(exp.getClass().getName()+": "+exp.getMessage());
-				perr.flush();
+				sourceDiagnostics.get(sourceName).add(diagnostic);
+				if ( diagnostic.getKind() == Diagnostic.Kind.ERROR )
+					failed.add(sourceName);
+			}
+		}
+		if ( !success && failed.isEmpty() )
+			failed.addAll(pending.keySet());
+		
+		// Attribute classes to their sources; classes compiled from the
+		// source path belong to every source.
+		Map<String, Map<String, ByteBuffer>> bufferMaps = new HashMap<String, Map<String, ByteBuffer>>();
+		Map<String, ByteBuffer> shared = new HashMap<String, ByteBuffer>();
+		Map<String, URI> origins = new HashMap<String, URI>();
+		if ( success )
+		{
+			for (String sourceName : pending.keySet())
+				bufferMaps.put(sourceName, new HashMap<String, ByteBuffer>());
+			for (Map.Entry<String, ByteBuffer> entry : javaFileManager.getBufferMap().entrySet())
+			{
+				FileObject sibling = javaFileManager.getSiblingMap().get(entry.getKey());
+				String sourceName = sourceNames.get(sibling);
+				if ( sourceName == null )
+				{
+					shared.put(entry.getKey(), entry.getValue());
+					if ( sibling != null )
+						origins.put(entry.getKey(), sibling.toUri());
+				}
+				else
+					bufferMaps.get(sourceName).put(entry.getKey(), entry.getValue());
 			}
 		}
 		else
 		{
-			for (Diagnostic<?> diagnostic : diagnostics.getDiagnostics())
-				report(diagnostic, perr);
-			perr.flush();
+			// Release the buffers of a failed task.
+			for (ByteBuffer buffer : javaFileManager.getBufferMap().values())
+				getBufferPool().release(buffer);
 		}
+		javaFileManager.getBufferMap().clear();
 		
-		// Return compilation results or null.
-		return memoryMap;
+		// Record the results of this round. A source compiled alone keeps
+		// its buffers; otherwise, the shared classes are copied into the
+		// memory map of each source and the buffers are released. The
+		// classes added to a class store are copied too.
+		for (String sourceName : pending.keySet())
+		{
+			CompilationResult result = results.get(sourceName);
+			result.setDiagnostics(sourceDiagnostics.get(sourceName));
+			if ( success )
+			{
+				Map<String, ByteBuffer> bufferMap = bufferMaps.get(sourceName);
+				if ( (pending.size() == 1) && (classStore == null) )
+				{
+					bufferMap.putAll(shared);
+					result.setBufferMap(bufferMap, getBufferPool());
+				}
+				else
+				{
+					Map<String, byte[]> memoryMap = CompilationResult.toMemoryMap(bufferMap, getBufferPool());
+					for (Map.Entry<String, ByteBuffer> entry : shared.entrySet())
+					{
+						ByteBuffer buffer = entry.getValue().duplicate();
+						byte[] bytecode = new byte[buffer.remaining()];
+						buffer.get(bytecode);
+						memoryMap.put(entry.getKey(), bytecode);
+					}
+					result.setMemoryMap(memoryMap);
+					if ( classStore != null )
+						classStore.putAll(memoryMap);
+				}
+				result.setOrigins(new HashMap<String, URI>(origins));
+			}
+			else
+				result.setMemoryMap(null);
+		}
+		if ( (pending.size() > 1) || (classStore != null) )
+		{
+			for (ByteBuffer buffer : shared.values())
+				getBufferPool().release(buffer);
+		}
+		return failed;
+	}
+
+	/**
+	 * <p>Derive the options for a quick compile from the given options.</p>
+	 * 
+	 * <p>The debugging, lint, warning and annotation processing options are
+	 * replaced by the {@link #FAST_OPTIONS}; the other options are kept. The
+	 * quick compile generates the same code, with less debugging information.</p>
+	 * 
+	 * @param initialOptions Initial compiler options, or null for the defaults.
+	 * 
+	 * @return The options for a quick compile.
+	 */
+	public static String[] createFastOptions(String[] initialOptions)
+	{
+		List<String> options = new ArrayList<String>(Arrays.asList(FAST_OPTIONS));
+		if ( initialOptions != null )
+		{
+			for (String option : initialOptions)
+			{
+				if ( !option.startsWith("-g") && !option.startsWith("-Xlint") && 
+					!option.startsWith("-proc:") && !option.equals("-Werror") )
+					options.add(option);
+			}
+		}
+		return options.toArray(new String[options.size()]);
+	}
+
+	/**
+	 * <p>Compile the source again, in a background thread, and report its
+	 * diagnostics to the given console.</p>
+	 * 
+	 * <p>This is the second tier of a tiered compile: the program runs from a
+	 * quick compile while this full compile, with the given options and their
+	 * lint checks, reports the warnings. The byte code is discarded. The full
+	 * compiles of all compilers run, one at a time, on a shared thread that
+	 * is not a daemon, so the warnings are reported before the JVM exits.
+	 * At most {@link #MAX_PENDING_LINTS} wait; beyond that, the oldest
+	 * waiting compile is discarded and its future never completes.</p>
+	 * 
+	 * @param sourceName The file name to identify the source in diagnostics, etc.
+	 * @param source The string containing the source to be compiled
+	 * @param sourcePath The location of additional .java source files.
+	 * @param classPath The location of additional .class files.
+	 * @param initialOptions Initial compiler options.
+	 * @param console The console where diagnostics are reported.
+	 * 
+	 * @return The future of the full compile.
+	 */
+	public Future<?> lint(final String sourceName, final String source, final String sourcePath, 
+		final String classPath, final String[] initialOptions, final Console console)
+	{
+		Runnable task = new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				StringWriter buffer = new StringWriter();
+				try
+				{
+					Map<String, String> sources = Collections.singletonMap(sourceName, source);
+					CompilationResult result = 
+						compileAll(sources, buffer, sourcePath, classPath, initialOptions).get(sourceName);
+					PrintWriter pw = new PrintWriter(console.getOutput());
+					if ( !result.isSuccess() )
+					{
+						// The failure diagnostics are in the buffer.
+						pw.println();
+						pw.println("Lint> "+sourceName+" fails with these options");
+						pw.print(buffer);
+					}
+					else if ( !result.getDiagnostics().isEmpty() )
+					{
+						pw.println();
+						pw.println("Lint> "+sourceName);
+						for (Diagnostic<?> diagnostic : result.getDiagnostics())
+							report(diagnostic, pw);
+					}
+					pw.flush();
+				}
+				catch (ScriptException sex)
+				{
+					console.errorln("cannot lint "+sourceName, sex);
+				}
+			}
+		};
+		return linter.submit(task);
+	}
+
+	// Do the options configure the source path or class path?
+	private static boolean hasPathOption(String[] options)
+	{
+		if ( options != null )
+		{
+			for (String option : options)
+			{
+				if ( PATH_OPTIONS.contains(option) )
+					return true;
+			}
+		}
+		return false;
 	}
+	private static final List<String> PATH_OPTIONS = Arrays.asList
+	(
+		"-sourcepath", "--source-path", "-classpath", "-cp", "--class-path"
+	);
 
 	/**
 	 * Report a compiler diagnostic to the given print writer.
@@ -0,0 +1,181 @@
+// PatroDyne: Patron Supported Dynamic Executables, http://patrodyne.org
+// Released under LGPL license. See terms at http://www.gnu.org.
+package org.patrodyne.scripting.java;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.tools.StandardJavaFileManager;
+
+/**
+ * <p>A pool of standard Java file managers, keyed by source path and
+ * class path, that concurrent compilations can borrow.</p>
+ *
+ * <p>A standard file manager caches the directories and archives it has
+ * opened. Reusing one across compilations with the same paths avoids
+ * reopening and rescanning the class path jars. Each manager is used by
+ * one compilation at a time; a borrowed manager is returned to the pool
+ * when the compilation completes.</p>
+ *
+ * <p>The pool keeps at most one idle manager per processor for each key,
+ * and the managers of at most {@link #DEFAULT_MAX_KEYS} keys, closing the
+ * managers of the least recently used key.</p>
+ *
+ * @author Rick O'Sullivan
+ */
+public class JavaFileManagerPool
+{
+	/** The default maximum number of source and class path combinations. */
+	public static final int DEFAULT_MAX_KEYS = 16;
+
+	// Represents the pool shared by all compilers.
+	private static final JavaFileManagerPool standard = new JavaFileManagerPool();
+	/**
+	 * Get the pool shared by all compilers in this process.
+	 * @return The standard pool.
+	 */
+	public static JavaFileManagerPool getStandard()
+	{
+		return standard;
+	}
+
+	private int maxIdle;
+	/**
+	 * Get the maximum number of idle managers kept for each key.
+	 * @return The maximum number of idle managers per key.
+	 */
+	public int getMaxIdle()
+	{
+		return maxIdle;
+	}
+	private void setMaxIdle(int maxIdle)
+	{
+		this.maxIdle = maxIdle;
+	}
+
+	private Map<List<String>, Deque<StandardJavaFileManager>> idle;
+	private Map<List<String>, Deque<StandardJavaFileManager>> getIdle()
+	{
+		return idle;
+	}
+	private void setIdle(Map<List<String>, Deque<StandardJavaFileManager>> idle)
+	{
+		this.idle = idle;
+	}
+
+	/**
+	 * Construct with the number of idle managers per key and the number of keys.
+	 *
+	 * @param maxIdle The maximum number of idle managers kept for each key.
+	 * @param maxKeys The maximum number of source and class path combinations.
+	 */
+	public JavaFileManagerPool(int maxIdle, final int maxKeys)
+	{
+		setMaxIdle(maxIdle);
+		setIdle(new LinkedHashMap<List<String>, Deque<StandardJavaFileManager>>(16, 0.75f, true)
+		{
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<List<String>, Deque<StandardJavaFileManager>> eldest)
+			{
+				if ( size() > maxKeys )
+				{
+					for (StandardJavaFileManager fileManager : eldest.getValue())
+						close(fileManager);
+					return true;
+				}
+				return false;
+			}
+		});
+	}
+
+	/** Construct with one idle manager per processor and the default number of keys. */
+	public JavaFileManagerPool()
+	{
+		this(Runtime.getRuntime().availableProcessors(), DEFAULT_MAX_KEYS);
+	}
+
+	/**
+	 * Borrow a file manager whose source path and class path are set, as by
+	 * the <code>-sourcepath</code> and <code>-classpath</code> options.
+	 *
+	 * @param compiler The system Java compiler, to create a new manager.
+	 * @param sourcePath The location of additional .java source files, or null.
+	 * @param classPath The location of additional .class files, or null.
+	 *
+	 * @return A file manager for the exclusive use of the caller until it is released.
+	 */
+	public StandardJavaFileManager borrow(javax.tools.JavaCompiler compiler, String sourcePath, String classPath)
+	{
+		List<String> key = Arrays.asList(sourcePath, classPath);
+		synchronized (this)
+		{
+			Deque<StandardJavaFileManager> managers = getIdle().get(key);
+			if ( (managers != null) && !managers.isEmpty() )
+				return managers.pop();
+		}
+		StandardJavaFileManager fileManager = compiler.getStandardFileManager(null, null, null);
+		if ( sourcePath != null )
+			fileManager.handleOption("-sourcepath", Collections.singleton(sourcePath).iterator());
+		if ( classPath != null )
+			fileManager.handleOption("-classpath", Collections.singleton(classPath).iterator());
+		return fileManager;
+	}
+
+	/**
+	 * Return a borrowed file manager to the pool, or close it when the pool is full.
+	 *
+	 * @param sourcePath The source path the manager was borrowed for.
+	 * @param classPath The class path the manager was borrowed for.
+	 * @param fileManager The borrowed file manager.
+	 */
+	public void release(String sourcePath, String classPath, StandardJavaFileManager fileManager)
+	{
+		List<String> key = Arrays.asList(sourcePath, classPath);
+		synchronized (this)
+		{
+			Deque<StandardJavaFileManager> managers = getIdle().get(key);
+			if ( managers == null )
+			{
+				managers = new ArrayDeque<StandardJavaFileManager>();
+				getIdle().put(key, managers);
+			}
+			if ( managers.size() < getMaxIdle() )
+			{
+				managers.push(fileManager);
+				return;
+			}
+		}
+		close(fileManager);
+	}
+
+	/** Close every idle file manager. */
+	public synchronized void clear()
+	{
+		for (Deque<StandardJavaFileManager> managers : getIdle().values())
+		{
+			for (StandardJavaFileManager fileManager : managers)
+				close(fileManager);
+		}
+		getIdle().clear();
+	}
+
+	private static void close(StandardJavaFileManager fileManager)
+	{
+		try
+		{
+			fileManager.close();
+		}
+		catch (IOException ioe)
+		{
+			Console.getStandard().errorln("Warning: cannot close file manager: "+ioe.getMessage());
+		}
+	}
+}
+// vi:set tabstop=4 hardtabs=4 shiftwidth=4:
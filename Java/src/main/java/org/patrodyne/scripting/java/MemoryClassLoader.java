@@ -3,20 +3,35 @@
 package org.patrodyne.scripting.java;
 
 import java.io.File;
+import java.io.IOException;
+import java.lang.ref.Cleaner;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.nio.ByteBuffer;
+import java.security.ProtectionDomain;
 import java.util.ArrayList;
-import java.util.Map;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * <p>An extension of URLClassLoader to store and load classes from
  * memory.</p>
  * 
  * <p>This class loader is constructed with a map of class
- * name and byte code pairs for in-memory loading.</p>
+ * name and byte code pairs for in-memory loading. The byte code
+ * is either held in byte arrays or in buffers from a
+ * {@link ByteBufferPool}; a buffer is defined as is, without a
+ * copy, and released to its pool as soon as its class is defined. The
+ * buffers of classes never defined are released when the loader is
+ * closed or becomes unreachable.</p>
+ * 
+ * <p>The loader is parallel capable: classes of different names are
+ * defined concurrently, from concurrent maps, without a loader-wide lock.</p>
  * 
  * <p>Modified from the original to:</p>
  * 
@@ -32,9 +47,18 @@ import java.util.StringTokenizer;
 public final class MemoryClassLoader
 	extends URLClassLoader
 {
+	static
+	{
+		ClassLoader.registerAsParallelCapable();
+	}
+
+	// Releases the buffers of unreachable loaders.
+	private static final Cleaner cleaner = Cleaner.create();
+
 	private Map<String, byte[]> memoryMap;
 	/**
-	 * Get a map of class names and byte code.
+	 * Get a concurrent map of class names and the byte code of the
+	 * classes not yet defined.
 	 * @return A map of class names and byte code.
 	 */
 	protected Map<String, byte[]> getMemoryMap()
@@ -50,8 +74,52 @@ public final class MemoryClassLoader
 		this.memoryMap = memoryMap;
 	}
 
+	private Map<String, ByteBuffer> bufferMap;
+	/**
+	 * Get a concurrent map of class names and the byte code buffers of
+	 * the classes not yet defined.
+	 * @return A map of class names and byte code buffers.
+	 */
+	protected Map<String, ByteBuffer> getBufferMap()
+	{
+		return bufferMap;
+	}
+	private void setBufferMap(Map<String, ByteBuffer> bufferMap)
+	{
+		this.bufferMap = bufferMap;
+	}
+
+	private ByteBufferPool bufferPool;
 	/**
-	 * Construct with class map, path and parent loader.
+	 * Get the pool where buffers are released once their classes are defined.
+	 * @return A byte buffer pool.
+	 */
+	protected ByteBufferPool getBufferPool()
+	{
+		return bufferPool;
+	}
+	private void setBufferPool(ByteBufferPool bufferPool)
+	{
+		this.bufferPool = bufferPool;
+	}
+
+	private Set<String> classNames;
+	/**
+	 * Get the names of the classes held by this loader, defined or not.
+	 * @return A concurrent set of class names.
+	 */
+	protected Set<String> getClassNames()
+	{
+		return classNames;
+	}
+	private void setClassNames(Set<String> classNames)
+	{
+		this.classNames = classNames;
+	}
+
+	/**
+	 * Construct with class map, path and parent loader. The map is copied,
+	 * so the caller's map is left as is.
 	 * 
 	 * @param memoryMap An in-memory map of class names and byte code.
 	 * @param classPath Directories and jars for class loading.
@@ -60,7 +128,10 @@ public final class MemoryClassLoader
 	public MemoryClassLoader(Map<String, byte[]> memoryMap, String classPath, ClassLoader parentLoader)
 	{
 		super(toURLs(classPath), parentLoader);
-		setMemoryMap(memoryMap);
+		setMemoryMap(new ConcurrentHashMap<String, byte[]>(memoryMap));
+		setBufferMap(new ConcurrentHashMap<String, ByteBuffer>());
+		setClassNames(ConcurrentHashMap.<String>newKeySet());
+		getClassNames().addAll(memoryMap.keySet());
 	}
 
 	/**
@@ -74,6 +145,77 @@ public final class MemoryClassLoader
 		this(memoryMap, classPath, null);
 	}
 
+	/**
+	 * Construct with buffer map, buffer pool, path and parent loader. The
+	 * loader owns the buffers and releases each one when its class is defined.
+	 * 
+	 * @param bufferMap An in-memory map of class names and byte code buffers.
+	 * @param bufferPool The pool where buffers are released.
+	 * @param classPath Directories and jars for class loading.
+	 * @param parentLoader The parent class loader for delegation.
+	 */
+	public MemoryClassLoader(Map<String, ByteBuffer> bufferMap, ByteBufferPool bufferPool, 
+		String classPath, ClassLoader parentLoader)
+	{
+		this(Collections.<String, byte[]>emptyMap(), classPath, parentLoader);
+		getBufferMap().putAll(bufferMap);
+		getClassNames().addAll(bufferMap.keySet());
+		setBufferPool(bufferPool);
+		setBufferRelease(cleaner.register(this, new BufferRelease(getBufferMap(), bufferPool)));
+	}
+
+	private Cleaner.Cleanable bufferRelease;
+	// Get the action that releases the buffers of the classes not yet defined.
+	private Cleaner.Cleanable getBufferRelease()
+	{
+		return bufferRelease;
+	}
+	private void setBufferRelease(Cleaner.Cleanable bufferRelease)
+	{
+		this.bufferRelease = bufferRelease;
+	}
+
+	/**
+	 * Close this loader and release the buffers of the classes not yet
+	 * defined; those classes can no longer be loaded.
+	 * 
+	 * @throws IOException When the class path cannot be closed.
+	 */
+	@Override
+	public void close()
+		throws IOException
+	{
+		if ( getBufferRelease() != null )
+			getBufferRelease().clean();
+		super.close();
+	}
+
+	// Release the remaining buffers of a loader; it holds the map and pool,
+	// not the loader. Each buffer is removed once, by this or findClass.
+	private static final class BufferRelease
+		implements Runnable
+	{
+		private final Map<String, ByteBuffer> bufferMap;
+		private final ByteBufferPool bufferPool;
+
+		private BufferRelease(Map<String, ByteBuffer> bufferMap, ByteBufferPool bufferPool)
+		{
+			this.bufferMap = bufferMap;
+			this.bufferPool = bufferPool;
+		}
+
+		@Override
+		public void run()
+		{
+			for (String className : bufferMap.keySet())
+			{
+				ByteBuffer buffer = bufferMap.remove(className);
+				if ( buffer != null )
+					bufferPool.release(buffer);
+			}
+		}
+	}
+
 	/**
 	 * Load a class by name from the memory class map.
 	 * 
@@ -98,31 +240,64 @@ public final class MemoryClassLoader
 	public Iterable<Class<?>> loadAll()
 		throws ClassNotFoundException
 	{
-		List<Class<?>> classes = new ArrayList<Class<?>>(getMemoryMap().size());
+		List<String> names = new ArrayList<String>(getClassNames());
+		List<Class<?>> classes = new ArrayList<Class<?>>(names.size());
 		// loadClass(className) relies on findClass(String className) as implemented in this class.
-		for (String className : getMemoryMap().keySet())
+		for (String className : names)
 			classes.add(loadClass(className));
 		return classes;
 	}
 
+	/**
+	 * Add the byte code of a class, unless the class is already defined.
+	 * 
+	 * @param className The binary class name.
+	 * @param bytecode The class byte code.
+	 */
+	void addClass(String className, byte[] bytecode)
+	{
+		synchronized (getClassLoadingLock(className))
+		{
+			if ( findLoadedClass(className) == null )
+			{
+				getMemoryMap().put(className, bytecode);
+				getClassNames().add(className);
+			}
+		}
+	}
+
 	/**
 	 * Find class by class name. If the class name is in the
 	 * memory class map, the associated byte code is converted
 	 * into a Class and returned; otherwise, the search is
 	 * performed as a URLClassLoader.
 	 * 
+	 * <p>This loader is parallel capable: {@link #loadClass(String)} locks
+	 * each class name on its own, and the byte code of each class is removed
+	 * from the concurrent maps by exactly one thread, which defines it.</p>
+	 * 
 	 * @return A Class for the given class name.
 	 */
 	protected Class<?> findClass(String className)
 		throws ClassNotFoundException
 	{
-		byte[] bytecode = getMemoryMap().get(className);
-		if (bytecode != null)
+		ByteBuffer buffer = getBufferMap().remove(className);
+		if (buffer != null)
 		{
-			// clear the byte code in map -- we don't need it anymore
-			getMemoryMap().put(className, null);
-			return defineClass(className, bytecode, 0, bytecode.length);
+			// define the class straight from the buffer, then recycle it
+			try
+			{
+				return defineClass(className, buffer, (ProtectionDomain) null);
+			}
+			finally
+			{
+				getBufferPool().release(buffer);
+			}
 		}
+		// remove the byte code from the map -- we don't need it anymore
+		byte[] bytecode = getMemoryMap().remove(className);
+		if (bytecode != null)
+			return defineClass(className, bytecode, 0, bytecode.length);
 		else
 			return super.findClass(className);
 	}
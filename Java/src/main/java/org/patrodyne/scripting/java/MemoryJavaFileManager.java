@@ -2,26 +2,41 @@
 // Released under LGPL license. See terms at http://www.gnu.org.
 package org.patrodyne.scripting.java;
 
-import java.io.ByteArrayOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.URI;
+import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import javax.tools.FileObject;
 import javax.tools.ForwardingJavaFileManager;
+import javax.tools.ForwardingJavaFileObject;
 import javax.tools.JavaFileManager;
 import javax.tools.JavaFileObject;
 import javax.tools.JavaFileObject.Kind;
 import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardLocation;
 
 /**
  * <p>This class is a JavaFileManager to store compiled byte code in a memory map.</p>
  * 
+ * <p>Each class file is written into a growable buffer from a {@link ByteBufferPool},
+ * without intermediate copies; the buffer is handed over, as is, to the class
+ * loader that defines the class.</p>
+ * 
+ * <p>When given a {@link ClassStore}, the stored classes are listed to javac
+ * after those of the class path, so that a compilation can refer to classes
+ * that earlier compilations left in memory.</p>
+ * 
  * <p>A JavaFileManager determines where to create new JavaFileObjects. In this context, 
  * <em>file</em> means an abstraction of regular files and other sources of data. For 
  * example, a file object can be used to represent regular files, memory cache, or data 
@@ -44,22 +59,123 @@ public final class MemoryJavaFileManager<FM extends JavaFileManager>
 {
 	/** Java source file extension. */
 	private final static String JAVA_SOURCE_EXTENSION = ".java";
+	/** The URI prefix of classes in the class store. */
+	private final static String STORE_URI_PREFIX = "mfm:///";
+	/** The location name of the class store in the timing report. */
+	private final static String STORE_LOCATION = "CLASS_STORE";
 	
-	private Map<String, byte[]> memoryMap;
+	private Map<String, ByteBuffer> bufferMap;
+	/**
+	 * Get a mapping of class name and byte code pairs. Each buffer holds
+	 * the class file from position zero to its limit.
+	 * 
+	 * @return A buffer map of class names and byte code.
+	 */
+	public Map<String, ByteBuffer> getBufferMap()
+	{
+		if ( bufferMap == null )
+			setBufferMap(new HashMap<String, ByteBuffer>());
+		return bufferMap;
+	}
+	private void setBufferMap(Map<String, ByteBuffer> bufferMap)
+	{
+		this.bufferMap = bufferMap;
+	}
+
 	/**
-	 * Get a mapping of class name and byte code pairs.
+	 * Get a copy of the class name and byte code pairs. The buffers are
+	 * copied into new arrays and stay in the {@link #getBufferMap() buffer map}.
 	 * 
 	 * @return A memory map of class names and byte code.
 	 */
 	public Map<String, byte[]> getMemoryMap()
 	{
-		if ( memoryMap == null )
-			setMemoryMap(new HashMap<String, byte[]>());
+		Map<String, byte[]> memoryMap = new HashMap<String, byte[]>();
+		for (Map.Entry<String, ByteBuffer> entry : getBufferMap().entrySet())
+		{
+			ByteBuffer buffer = entry.getValue().duplicate();
+			buffer.rewind();
+			byte[] bytecode = new byte[buffer.remaining()];
+			buffer.get(bytecode);
+			memoryMap.put(entry.getKey(), bytecode);
+		}
 		return memoryMap;
 	}
-	private void setMemoryMap(Map<String, byte[]> memoryMap)
+
+	private ByteBufferPool bufferPool;
+	/**
+	 * Get the pool of the buffers where class files are written.
+	 * 
+	 * @return A byte buffer pool, by default the standard pool.
+	 */
+	public ByteBufferPool getBufferPool()
+	{
+		if ( bufferPool == null )
+			setBufferPool(ByteBufferPool.getStandard());
+		return bufferPool;
+	}
+	/**
+	 * Set the pool of the buffers where class files are written.
+	 * 
+	 * @param bufferPool A byte buffer pool.
+	 */
+	public void setBufferPool(ByteBufferPool bufferPool)
+	{
+		this.bufferPool = bufferPool;
+	}
+
+	private ClassStore classStore;
+	/**
+	 * Get the in-memory classes listed on the class path.
+	 * 
+	 * @return A class store or null when there is none.
+	 */
+	public ClassStore getClassStore()
+	{
+		return classStore;
+	}
+	/**
+	 * Set the in-memory classes listed on the class path.
+	 * 
+	 * @param classStore A class store or null for none.
+	 */
+	public void setClassStore(ClassStore classStore)
+	{
+		this.classStore = classStore;
+	}
+
+	private Map<String, FileObject> siblingMap;
+	/**
+	 * Get a mapping of class names to the source file objects they were
+	 * compiled from, as given to javac as the placement hint for output.
+	 * 
+	 * @return A map of class names and source file objects.
+	 */
+	public Map<String, FileObject> getSiblingMap()
 	{
-		this.memoryMap = memoryMap;
+		if ( siblingMap == null )
+			siblingMap = new HashMap<String, FileObject>();
+		return siblingMap;
+	}
+
+	private CompilationTiming timing;
+	/**
+	 * Get the timing report where class file listings and reads are counted.
+	 * 
+	 * @return A timing report or null when class files are not counted.
+	 */
+	public CompilationTiming getTiming()
+	{
+		return timing;
+	}
+	/**
+	 * Set the timing report where class file listings and reads are counted.
+	 * 
+	 * @param timing A timing report or null to not count class files.
+	 */
+	public void setTiming(CompilationTiming timing)
+	{
+		this.timing = timing;
 	}
 
     /**
@@ -86,7 +202,13 @@ public final class MemoryJavaFileManager<FM extends JavaFileManager>
 	public void close()
 		throws IOException
 	{
-		setMemoryMap(null);
+		// Release the buffers not taken by the compiler.
+		if ( bufferMap != null )
+		{
+			for (ByteBuffer buffer : bufferMap.values())
+				getBufferPool().release(buffer);
+			setBufferMap(null);
+		}
 		super.close();
 	}
 
@@ -104,6 +226,178 @@ public final class MemoryJavaFileManager<FM extends JavaFileManager>
 		super.flush();
 	}
 
+	/**
+	 * Lists the file objects of the given kinds in a package, followed on the
+	 * class path by the classes of the class store. When class files are
+	 * counted, the listed class files are counted and wrapped to count reads.
+	 * 
+	 * @param location a location
+	 * @param packageName a package name
+	 * @param kinds return objects only of these kinds
+	 * @param recurse if true include "subpackages"
+	 * 
+	 * @return an Iterable of file objects matching the given criteria
+	 * @throws IOException if an I/O error occurred
+	 */
+	@Override
+	public Iterable<JavaFileObject> list(JavaFileManager.Location location, String packageName, 
+		Set<Kind> kinds, boolean recurse)
+		throws IOException
+	{
+		Iterable<JavaFileObject> files = super.list(location, packageName, kinds, recurse);
+		List<String> stored = null;
+		if ( (getClassStore() != null) && (location == StandardLocation.CLASS_PATH) && kinds.contains(Kind.CLASS) )
+			stored = getClassStore().list(packageName, recurse);
+		if ( ((getTiming() == null) || !kinds.contains(Kind.CLASS)) && ((stored == null) || stored.isEmpty()) )
+			return files;
+		List<JavaFileObject> counted = new ArrayList<JavaFileObject>();
+		for (JavaFileObject file : files)
+		{
+			if ( (file.getKind() == Kind.CLASS) && (getTiming() != null) )
+				counted.add(new CountingJavaFileObject(file, getTiming(), location.getName()));
+			else
+				counted.add(file);
+		}
+		if ( stored != null )
+		{
+			for (String className : stored)
+			{
+				JavaFileObject file = new StoredJavaFileObject(getClassStore(), className);
+				if ( getTiming() != null )
+					counted.add(new CountingJavaFileObject(file, getTiming(), STORE_LOCATION));
+				else
+					counted.add(file);
+			}
+		}
+		if ( getTiming() != null )
+			getTiming().addClassesListed(counted.size());
+		return counted;
+	}
+
+	/**
+	 * Infers a binary name of a file object, unwrapping counted class files.
+	 * 
+	 * @param location a location
+	 * @param file a file object
+	 * 
+	 * @return a binary name or {@code null} the file object is not found in the given location
+	 */
+	@Override
+	public String inferBinaryName(JavaFileManager.Location location, JavaFileObject file)
+	{
+		JavaFileObject unwrapped = unwrap(file);
+		if ( unwrapped instanceof StoredJavaFileObject )
+			return ((StoredJavaFileObject) unwrapped).className;
+		return super.inferBinaryName(location, unwrapped);
+	}
+
+	/**
+	 * Gets a {@linkplain JavaFileObject file object} for input representing
+	 * the specified class of the specified kind in the given location. A
+	 * class missing from the class path is looked up in the class store.
+	 * 
+	 * @param location a location
+	 * @param className the name of a class
+	 * @param kind the kind of file, must be one of {@link JavaFileObject.Kind#SOURCE SOURCE} or {@link JavaFileObject.Kind#CLASS CLASS}
+	 * 
+	 * @return a file object, might return {@code null} if the file does not exist
+	 * @throws IOException if an I/O error occurred
+	 */
+	@Override
+	public JavaFileObject getJavaFileForInput(JavaFileManager.Location location, String className, Kind kind)
+		throws IOException
+	{
+		JavaFileObject file = super.getJavaFileForInput(location, className, kind);
+		if ( (file == null) && (kind == Kind.CLASS) && (location == StandardLocation.CLASS_PATH) &&
+			(getClassStore() != null) && (getClassStore().getBytecode(className) != null) )
+			file = new StoredJavaFileObject(getClassStore(), className);
+		return file;
+	}
+
+	/**
+	 * Compares two file objects, unwrapping counted class files.
+	 * 
+	 * @param a a file object
+	 * @param b a file object
+	 * 
+	 * @return true if the given file objects represent the same underlying object
+	 */
+	@Override
+	public boolean isSameFile(FileObject a, FileObject b)
+	{
+		FileObject fa = unwrap(a);
+		FileObject fb = unwrap(b);
+		if ( (fa instanceof StoredJavaFileObject) || (fb instanceof StoredJavaFileObject) )
+			return fa.toUri().equals(fb.toUri());
+		return super.isSameFile(fa, fb);
+	}
+
+	private static <F extends FileObject> F unwrap(F file)
+	{
+		if ( file instanceof CountingJavaFileObject )
+		{
+			@SuppressWarnings("unchecked")
+			F delegate = (F) ((CountingJavaFileObject) file).getDelegate();
+			return delegate;
+		}
+		return file;
+	}
+
+	/**
+	 * A class file that counts its reads in the timing report.
+	 */
+	private static class CountingJavaFileObject
+		extends ForwardingJavaFileObject<JavaFileObject>
+	{
+		private final CompilationTiming timing;
+		private final String location;
+
+		protected CountingJavaFileObject(JavaFileObject file, CompilationTiming timing, String location)
+		{
+			super(file);
+			this.timing = timing;
+			this.location = location;
+		}
+
+		protected JavaFileObject getDelegate()
+		{
+			return fileObject;
+		}
+
+		public InputStream openInputStream()
+			throws IOException
+		{
+			timing.addClassRead(location);
+			return super.openInputStream();
+		}
+	}
+
+	/**
+	 * A class file read from the class store.
+	 */
+	private static class StoredJavaFileObject
+		extends SimpleJavaFileObject
+	{
+		private final ClassStore classStore;
+		private final String className;
+
+		protected StoredJavaFileObject(ClassStore classStore, String className)
+		{
+			super(URI.create(STORE_URI_PREFIX + className.replace('.', '/') + Kind.CLASS.extension), Kind.CLASS);
+			this.classStore = classStore;
+			this.className = className;
+		}
+
+		public InputStream openInputStream()
+			throws IOException
+		{
+			byte[] bytecode = classStore.getBytecode(className);
+			if ( bytecode == null )
+				throw new IOException("class removed from store: "+className);
+			return new ByteArrayInputStream(bytecode);
+		}
+	}
+
 	/**
 	 * A subclass of JavaFileObject used to represent Java source coming from a string.
 	 * 
@@ -141,17 +435,24 @@ public final class MemoryJavaFileManager<FM extends JavaFileManager>
 		}
 
 		/**
-		 * An output stream to store byte code into the local class map.
+		 * An output stream to store byte code into the local buffer map.
 		 */
 		public OutputStream openOutputStream()
 		{
-			return new FilterOutputStream(new ByteArrayOutputStream())
+			return new FilterOutputStream(new ByteBufferOutputStream(getBufferPool()))
 			{
+				public void write(byte[] b, int off, int len) throws IOException
+				{
+					out.write(b, off, len);
+				}
+				
 				public void close()	throws IOException
 				{
 					out.close();
-					ByteArrayOutputStream bos = (ByteArrayOutputStream) out;
-					getMemoryMap().put(className, bos.toByteArray());
+					ByteBufferOutputStream bbos = (ByteBufferOutputStream) out;
+					ByteBuffer previous = getBufferMap().put(className, bbos.toByteBuffer());
+					if ( previous != null )
+						getBufferPool().release(previous);
 				}
 			};
 		}
@@ -174,7 +475,11 @@ public final class MemoryJavaFileManager<FM extends JavaFileManager>
 		throws IOException
 	{
 		if (kind == Kind.CLASS)
+		{
+			if ( sibling != null )
+				getSiblingMap().put(className, sibling);
 			return new TargetJavaFileObject(className);
+		}
 		else
 			return super.getJavaFileForOutput(location, className, kind, sibling);
 	}
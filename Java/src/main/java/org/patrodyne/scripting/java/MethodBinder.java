@@ -0,0 +1,350 @@
+// PatroDyne: Patron Supported Dynamic Executables, http://patrodyne.org
+// Released under LGPL license. See terms at http://www.gnu.org.
+package org.patrodyne.scripting.java;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * <p>Bind method names and argument types to the methods of a class, as
+ * method handles cached per class and call signature.</p>
+ *
+ * <p>A method applies to a call when it has the given name and number of
+ * parameters, and each argument can be passed to its parameter. As javac
+ * does, the methods that apply without boxing or unboxing are considered
+ * first, then those that apply with boxing or unboxing; among them, the most
+ * specific method is chosen, and a call that no method is most specific for
+ * is ambiguous. The methods declared by the class and inherited from its
+ * super classes are candidates, except those overridden. Once bound, a call
+ * signature is invoked without reflection.</p>
+ *
+ * <p>This class is thread-safe.</p>
+ *
+ * @author Rick O'Sullivan
+ */
+final class MethodBinder
+{
+	/** The type of a spread handle to a static method. */
+	static final MethodType STATIC_TYPE = MethodType.methodType(Object.class, Object[].class);
+	/** The type of a spread handle to an instance method; the receiver comes first. */
+	static final MethodType INSTANCE_TYPE = MethodType.methodType(Object.class, Object.class, Object[].class);
+
+	// Mark the signatures that no method applies to.
+	private static final MethodHandle NONE = MethodHandles.constant(Object.class, null);
+
+	private static final ClassValue<ConcurrentMap<Signature, MethodHandle>> callSites =
+		new ClassValue<ConcurrentMap<Signature, MethodHandle>>()
+	{
+		@Override
+		protected ConcurrentMap<Signature, MethodHandle> computeValue(Class<?> type)
+		{
+			return new ConcurrentHashMap<Signature, MethodHandle>();
+		}
+	};
+
+	private MethodBinder()
+	{
+	}
+
+	/**
+	 * Bind a call to a static method, spread to take its arguments as an
+	 * array and to return an object, null for a void method.
+	 *
+	 * @param clazz The class declaring, or inheriting, the method.
+	 * @param name The method name.
+	 * @param args The arguments of the call, whose types select the method.
+	 *
+	 * @return A handle of type {@link #STATIC_TYPE} or null when no method applies.
+	 * 
+	 * @throws IllegalArgumentException When the call is ambiguous.
+	 */
+	static MethodHandle bindStatic(Class<?> clazz, String name, Object[] args)
+	{
+		return bind(clazz, name, args, true);
+	}
+
+	/**
+	 * Bind a call to an instance or static method, spread to take the
+	 * receiver then its arguments as an array and to return an object.
+	 *
+	 * @param clazz The class of the receiver.
+	 * @param name The method name.
+	 * @param args The arguments of the call, whose types select the method.
+	 *
+	 * @return A handle of type {@link #INSTANCE_TYPE} or null when no method applies.
+	 * 
+	 * @throws IllegalArgumentException When the call is ambiguous.
+	 */
+	static MethodHandle bindInstance(Class<?> clazz, String name, Object[] args)
+	{
+		return bind(clazz, name, args, false);
+	}
+
+	/**
+	 * Find the method a call with the given parameter types applies to.
+	 *
+	 * @param clazz The class declaring, or inheriting, the method.
+	 * @param name The method name.
+	 * @param parameterTypes The types of the arguments, null for null arguments.
+	 * @param staticOnly True to consider static methods only.
+	 *
+	 * @return A direct handle to the method or null when no method applies.
+	 * 
+	 * @throws IllegalArgumentException When the call is ambiguous.
+	 */
+	static MethodHandle find(Class<?> clazz, String name, Class<?>[] parameterTypes, boolean staticOnly)
+	{
+		List<Method> candidates = candidates(clazz, name, parameterTypes.length, staticOnly);
+		Method method = mostSpecific(candidates, parameterTypes, true);
+		if ( method == null )
+			method = mostSpecific(candidates, parameterTypes, false);
+		return (method != null) ? unreflect(method) : null;
+	}
+
+	// The methods of a class, declared or inherited and not overridden,
+	// with the given name and number of parameters.
+	private static List<Method> candidates(Class<?> clazz, String name, int parameterCount, boolean staticOnly)
+	{
+		List<Method> candidates = new ArrayList<Method>();
+		for (Class<?> type = clazz; type != null; type = type.getSuperclass())
+		{
+			for (Method method : type.getDeclaredMethods())
+			{
+				if ( !name.equals(method.getName()) || method.isBridge() )
+					continue;
+				if ( method.getParameterCount() != parameterCount )
+					continue;
+				if ( staticOnly && !Modifier.isStatic(method.getModifiers()) )
+					continue;
+				if ( !isOverridden(method, candidates) )
+					candidates.add(method);
+			}
+		}
+		return candidates;
+	}
+
+	// Does a method of a sub class, already a candidate, have the same parameters?
+	private static boolean isOverridden(Method method, List<Method> candidates)
+	{
+		for (Method candidate : candidates)
+		{
+			if ( (candidate.getDeclaringClass() != method.getDeclaringClass()) &&
+				Arrays.equals(candidate.getParameterTypes(), method.getParameterTypes()) )
+				return true;
+		}
+		return false;
+	}
+
+	// Choose the most specific of the methods that apply, strictly or
+	// loosely, to the argument types; null when none applies.
+	private static Method mostSpecific(List<Method> candidates, Class<?>[] argTypes, boolean strict)
+	{
+		List<Method> applicable = new ArrayList<Method>();
+		for (Method candidate : candidates)
+		{
+			if ( applies(candidate.getParameterTypes(), argTypes, strict) )
+				applicable.add(candidate);
+		}
+		if ( applicable.isEmpty() )
+			return null;
+		for (Method method : applicable)
+		{
+			boolean mostSpecific = true;
+			for (Method other : applicable)
+			{
+				if ( (other != method) && !isMoreSpecific(method, other) )
+				{
+					mostSpecific = false;
+					break;
+				}
+			}
+			if ( mostSpecific )
+				return method;
+		}
+		throw new IllegalArgumentException("ambiguous call to " + applicable.get(0).getName() + 
+			Arrays.toString(argTypes) + ": " + applicable);
+	}
+
+	// Is each parameter of the method a subtype of that of the other method?
+	private static boolean isMoreSpecific(Method method, Method other)
+	{
+		Class<?>[] parameters = method.getParameterTypes();
+		Class<?>[] others = other.getParameterTypes();
+		for (int index = 0; index < parameters.length; ++index)
+		{
+			if ( !isSubtype(parameters[index], others[index]) )
+				return false;
+		}
+		return true;
+	}
+
+	// A primitive type is a subtype of the primitive types it widens to.
+	private static boolean isSubtype(Class<?> from, Class<?> to)
+	{
+		if ( from.isPrimitive() && to.isPrimitive() )
+			return isWidening(from, to);
+		if ( !from.isPrimitive() && !to.isPrimitive() )
+			return to.isAssignableFrom(from);
+		return false;
+	}
+
+	private static MethodHandle bind(Class<?> clazz, String name, Object[] args, boolean staticOnly)
+	{
+		ConcurrentMap<Signature, MethodHandle> sites = callSites.get(clazz);
+		Class<?>[] argTypes = new Class<?>[args.length];
+		for (int index = 0; index < args.length; ++index)
+			argTypes[index] = (args[index] != null) ? args[index].getClass() : null;
+		Signature signature = new Signature(name, argTypes, staticOnly);
+		MethodHandle site = sites.get(signature);
+		if ( site == null )
+		{
+			MethodHandle handle = find(clazz, name, argTypes, staticOnly);
+			site = (handle != null) ? spread(handle, args.length, staticOnly) : NONE;
+			MethodHandle previous = sites.putIfAbsent(signature, site);
+			if ( previous != null )
+				site = previous;
+		}
+		return (site != NONE) ? site : null;
+	}
+
+	// Adapt a direct handle to take its arguments as an array and return an object.
+	private static MethodHandle spread(MethodHandle handle, int arguments, boolean staticOnly)
+	{
+		MethodHandle spread = handle;
+		// A static method called on a receiver ignores the receiver.
+		if ( !staticOnly && (handle.type().parameterCount() == arguments) )
+			spread = MethodHandles.dropArguments(spread, 0, Object.class);
+		spread = spread.asSpreader(Object[].class, arguments);
+		return spread.asType(staticOnly ? STATIC_TYPE : INSTANCE_TYPE);
+	}
+
+	// The name and argument types of a call.
+	private static final class Signature
+	{
+		private final String name;
+		private final Class<?>[] argTypes;
+		private final boolean staticOnly;
+		private final int hash;
+
+		private Signature(String name, Class<?>[] argTypes, boolean staticOnly)
+		{
+			this.name = name;
+			this.argTypes = argTypes;
+			this.staticOnly = staticOnly;
+			this.hash = 31 * name.hashCode() + Arrays.hashCode(argTypes);
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj)
+		{
+			if ( !(obj instanceof Signature) )
+				return false;
+			Signature other = (Signature) obj;
+			return (hash == other.hash) && (staticOnly == other.staticOnly) &&
+				name.equals(other.name) && Arrays.equals(argTypes, other.argTypes);
+		}
+	}
+
+	// Does a call with the given argument types apply to the parameters,
+	// strictly, without boxing or unboxing, or loosely?
+	private static boolean applies(Class<?>[] parameters, Class<?>[] argTypes, boolean strict)
+	{
+		if ( parameters.length != argTypes.length )
+			return false;
+		for (int index = 0; index < parameters.length; ++index)
+		{
+			Class<?> argType = argTypes[index];
+			if ( strict && (argType != null) && (argType.isPrimitive() != parameters[index].isPrimitive()) )
+				return false;
+			if ( !isConvertible(argType, parameters[index]) )
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Can a value of a type be passed to a parameter, by reference, by
+	 * boxing, by unboxing or by a widening primitive conversion?
+	 *
+	 * @param from The type of the value, null for a null reference.
+	 * @param to The type of the parameter.
+	 *
+	 * @return True when the value can be passed.
+	 */
+	static boolean isConvertible(Class<?> from, Class<?> to)
+	{
+		if ( from == null )
+			return !to.isPrimitive();
+		if ( to.isAssignableFrom(from) )
+			return true;
+		if ( to.isPrimitive() )
+			return isWidening(unwrap(from), to);
+		if ( from.isPrimitive() )
+			return to.isAssignableFrom(MethodType.methodType(from).wrap().returnType());
+		return false;
+	}
+
+	private static Class<?> unwrap(Class<?> type)
+	{
+		return MethodType.methodType(type).unwrap().returnType();
+	}
+
+	// Is the primitive conversion an identity or a widening conversion?
+	private static boolean isWidening(Class<?> from, Class<?> to)
+	{
+		if ( !from.isPrimitive() || (from == void.class) )
+			return false;
+		if ( from == to )
+			return true;
+		if ( (from == boolean.class) || (to == boolean.class) || (to == char.class) )
+			return false;
+		return rank(to) > rank(from);
+	}
+
+	private static int rank(Class<?> type)
+	{
+		if ( type == byte.class ) return 1;
+		if ( type == short.class ) return 2;
+		if ( type == char.class ) return 2;
+		if ( type == int.class ) return 3;
+		if ( type == long.class ) return 4;
+		if ( type == float.class ) return 5;
+		if ( type == double.class ) return 6;
+		return 0;
+	}
+
+	// Make a direct handle, relaxing access when the method or its class
+	// is not public; null when access cannot be relaxed.
+	private static MethodHandle unreflect(Method method)
+	{
+		try
+		{
+			if ( !Modifier.isPublic(method.getModifiers()) ||
+				!Modifier.isPublic(method.getDeclaringClass().getModifiers()) )
+			{
+				// try to relax access
+				method.setAccessible(true);
+			}
+			return MethodHandles.publicLookup().unreflect(method);
+		}
+		catch (IllegalAccessException | RuntimeException ex)
+		{
+			return null;
+		}
+	}
+}
+// vi:set tabstop=4 hardtabs=4 shiftwidth=4:
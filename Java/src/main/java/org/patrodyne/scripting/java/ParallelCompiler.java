@@ -0,0 +1,232 @@
+// PatroDyne: Patron Supported Dynamic Executables, http://patrodyne.org
+// Released under LGPL license. See terms at http://www.gnu.org.
+package org.patrodyne.scripting.java;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import javax.script.ScriptException;
+
+/**
+ * <p>Compile many independent sources on all cores.</p>
+ *
+ * <p>The sources are partitioned into batches and each batch is compiled by
+ * {@link JavaCompiler#compileAll(Map, Writer, String, String, String[])} in a
+ * fork-join pool. Each worker runs its own javac task with its own file
+ * manager, borrowed from the compiler's pool, so workers share nothing but
+ * the read-only class path archives.</p>
+ *
+ * <p>A javac task holds the symbols of the whole class path in memory, so
+ * the number of workers is limited to the maximum heap divided by the
+ * {@link #getMemoryPerWorker() memory per worker}.</p>
+ *
+ * @author Rick O'Sullivan
+ */
+public class ParallelCompiler
+{
+	/** The default number of sources compiled by one javac task. */
+	public static final int DEFAULT_BATCH_SIZE = 32;
+
+	/** The default heap reserved for each worker, in bytes. */
+	public static final long DEFAULT_MEMORY_PER_WORKER = 128L * 1024 * 1024;
+
+	private JavaCompiler compiler;
+	/**
+	 * Get the compiler used by every worker.
+	 * @return A Java compiler.
+	 */
+	public JavaCompiler getCompiler()
+	{
+		return compiler;
+	}
+	private void setCompiler(JavaCompiler compiler)
+	{
+		this.compiler = compiler;
+	}
+
+	private int parallelism = Runtime.getRuntime().availableProcessors();
+	/**
+	 * Get the requested number of workers, by default one per processor.
+	 * @return The requested number of workers.
+	 */
+	public int getParallelism()
+	{
+		return parallelism;
+	}
+	/**
+	 * Set the requested number of workers.
+	 * @param parallelism The requested number of workers.
+	 */
+	public void setParallelism(int parallelism)
+	{
+		this.parallelism = parallelism;
+	}
+
+	private long memoryPerWorker = DEFAULT_MEMORY_PER_WORKER;
+	/**
+	 * Get the heap reserved for each worker, in bytes.
+	 * @return The heap reserved for each worker.
+	 */
+	public long getMemoryPerWorker()
+	{
+		return memoryPerWorker;
+	}
+	/**
+	 * Set the heap reserved for each worker, in bytes.
+	 * @param memoryPerWorker The heap reserved for each worker.
+	 */
+	public void setMemoryPerWorker(long memoryPerWorker)
+	{
+		this.memoryPerWorker = memoryPerWorker;
+	}
+
+	private int batchSize = DEFAULT_BATCH_SIZE;
+	/**
+	 * Get the maximum number of sources compiled by one javac task.
+	 * @return The maximum batch size.
+	 */
+	public int getBatchSize()
+	{
+		return batchSize;
+	}
+	/**
+	 * Set the maximum number of sources compiled by one javac task.
+	 * @param batchSize The maximum batch size.
+	 */
+	public void setBatchSize(int batchSize)
+	{
+		this.batchSize = batchSize;
+	}
+
+	/** Construct with a new Java compiler. */
+	public ParallelCompiler()
+	{
+		this(new JavaCompiler());
+	}
+
+	/**
+	 * Construct with the given Java compiler.
+	 * @param compiler The compiler used by every worker.
+	 */
+	public ParallelCompiler(JavaCompiler compiler)
+	{
+		setCompiler(compiler);
+	}
+
+	/**
+	 * Get the number of workers: the requested parallelism, limited by the
+	 * maximum heap and the memory per worker, and at least one.
+	 *
+	 * @return The effective number of workers.
+	 */
+	public int getEffectiveParallelism()
+	{
+		long workers = getParallelism();
+		if ( getMemoryPerWorker() > 0 )
+			workers = Math.min(workers, Runtime.getRuntime().maxMemory() / getMemoryPerWorker());
+		return (int) Math.max(1, workers);
+	}
+
+	/**
+	 * <p>Compile the sources in parallel and return the byte codes and
+	 * diagnostics of each source.</p>
+	 *
+	 * <p>The diagnostics of failed sources are sent to the error writer, one
+	 * batch at a time, in the order of the given sources.</p>
+	 *
+	 * @param sources The source strings to be compiled, by file name.
+	 * @param err The error writer where diagnostic messages are written.
+	 * @param sourcePath The location of additional .java source files.
+	 * @param classPath The location of additional .class files.
+	 * @param initialOptions Initial compiler options.
+	 *
+	 * @return A compilation result for each source name, in the order of the given sources.
+	 * @throws ScriptException When the System does not provide a Java Compiler.
+	 */
+	public Map<String, CompilationResult> compileAll(Map<String, String> sources, Writer err,
+		final String sourcePath, final String classPath, final String[] initialOptions)
+		throws ScriptException
+	{
+		PrintWriter perr = null;
+		if ( err instanceof PrintWriter )
+			perr = (PrintWriter) err;
+		else if ( err != null)
+			perr = new PrintWriter(err);
+		else
+			perr = new PrintWriter(Console.getStandard().getOutput());
+
+		// Partition the sources into batches, at least one per worker.
+		int workers = getEffectiveParallelism();
+		int size = (sources.size() + workers - 1) / workers;
+		size = Math.max(1, Math.min(size, getBatchSize()));
+		List<Map<String, String>> batches = new ArrayList<Map<String, String>>();
+		Map<String, String> batch = null;
+		for (Map.Entry<String, String> source : sources.entrySet())
+		{
+			if ( (batch == null) || (batch.size() == size) )
+			{
+				batch = new LinkedHashMap<String, String>();
+				batches.add(batch);
+			}
+			batch.put(source.getKey(), source.getValue());
+		}
+
+		// Compile each batch with its own diagnostic buffer.
+		final List<StringWriter> buffers = new ArrayList<StringWriter>(batches.size());
+		List<Callable<Map<String, CompilationResult>>> tasks =
+			new ArrayList<Callable<Map<String, CompilationResult>>>(batches.size());
+		for (final Map<String, String> sourceBatch : batches)
+		{
+			final StringWriter buffer = new StringWriter();
+			buffers.add(buffer);
+			tasks.add(new Callable<Map<String, CompilationResult>>()
+			{
+				@Override
+				public Map<String, CompilationResult> call()
+					throws ScriptException
+				{
+					return getCompiler().compileAll(sourceBatch, buffer, sourcePath, classPath, initialOptions);
+				}
+			});
+		}
+
+		Map<String, CompilationResult> results = new LinkedHashMap<String, CompilationResult>();
+		ForkJoinPool pool = new ForkJoinPool(workers);
+		try
+		{
+			List<Future<Map<String, CompilationResult>>> futures = pool.invokeAll(tasks);
+			for (int index = 0; index < futures.size(); ++index)
+			{
+				results.putAll(futures.get(index).get());
+				perr.print(buffers.get(index));
+			}
+		}
+		catch (InterruptedException ie)
+		{
+			Thread.currentThread().interrupt();
+			throw new ScriptException("compilation interrupted");
+		}
+		catch (ExecutionException ee)
+		{
+			if ( ee.getCause() instanceof ScriptException )
+				throw (ScriptException) ee.getCause();
+			throw new ScriptException(ee);
+		}
+		finally
+		{
+			pool.shutdown();
+			perr.flush();
+		}
+		return results;
+	}
+}
+// vi:set tabstop=4 hardtabs=4 shiftwidth=4:
@@ -0,0 +1,474 @@
+// PatroDyne: Patron Supported Dynamic Executables, http://patrodyne.org
+// Released under LGPL license. See terms at http://www.gnu.org.
+package org.patrodyne.scripting.java;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.script.Compilable;
+import javax.script.CompiledScript;
+import javax.script.ScriptContext;
+import javax.script.ScriptEngine;
+import javax.script.ScriptException;
+
+/**
+ * <p>An interactive read-eval-print loop over a JavaCode script engine.</p>
+ *
+ * <p>Each snippet is wrapped in a class of its own and compiled by the
+ * engine's warm compiler against a {@link ClassStore} of the earlier
+ * snippets; nothing is compiled twice. The class of each snippet extends
+ * the class of the previous one, so the fields, methods and nested types
+ * declared by earlier snippets are in scope, and all of them are defined by
+ * the store's one class loader.</p>
+ *
+ * <p>A snippet is tried as an expression, whose value is printed, then as
+ * a declaration of static fields, methods or types, then as statements. An
+ * <code>import</code> applies to every later snippet. The class path,
+ * parent loader and compiler options are taken from the given context.</p>
+ *
+ * @author Rick O'Sullivan
+ */
+public class Repl
+{
+	/** The prompt for a new snippet. */
+	public static final String PROMPT = "java> ";
+	/** The prompt for a continued snippet. */
+	public static final String CONTINUATION = "  ...> ";
+	/** The prefix of the class name of each snippet. */
+	public static final String SNIPPET_CLASS = "Snippet";
+
+	// Commands
+	public static final String COMMAND_EXIT = "/exit";
+	public static final String COMMAND_IMPORTS = "/imports";
+	public static final String COMMAND_LIST = "/list";
+	public static final String COMMAND_RESET = "/reset";
+	public static final String COMMAND_HELP = "/help";
+
+	// Represents the static field that holds the value of an expression.
+	private static final String VALUE = "$value";
+	private static final String IMPORT = "import ";
+	private static final String MAIN = "public static void main(String[] args) throws Throwable { ";
+	// A snippet that starts with a modifier, annotation or type keyword is a declaration.
+	private static final Pattern DECLARATION =
+		Pattern.compile("^(@|(public|protected|private|static|final|abstract|class|interface|enum|record)\\b).*", Pattern.DOTALL);
+	// The line number of a diagnostic.
+	private static final Pattern LINE = Pattern.compile("Line=(\\d+)");
+	private static final Pattern MODIFIERS =
+		Pattern.compile("^(@|(public|protected|private|static)\\b).*", Pattern.DOTALL);
+
+	private ScriptEngine engine;
+	/**
+	 * Get the script engine that compiles and runs the snippets.
+	 * @return A JavaCode script engine.
+	 */
+	public ScriptEngine getEngine()
+	{
+		return engine;
+	}
+	private void setEngine(ScriptEngine engine)
+	{
+		this.engine = engine;
+	}
+
+	private ScriptContext context;
+	/**
+	 * Get the context of every snippet.
+	 * @return A script context.
+	 */
+	public ScriptContext getContext()
+	{
+		return context;
+	}
+	private void setContext(ScriptContext context)
+	{
+		this.context = context;
+	}
+
+	private ClassStore classStore;
+	/**
+	 * Get the classes of the snippets evaluated since the last reset.
+	 * @return A class store.
+	 */
+	public ClassStore getClassStore()
+	{
+		if ( classStore == null )
+			setClassStore(new ClassStore());
+		return classStore;
+	}
+	private void setClassStore(ClassStore classStore)
+	{
+		this.classStore = classStore;
+	}
+
+	private List<String> imports;
+	/**
+	 * Get the imports that apply to every snippet.
+	 * @return A list of import declarations.
+	 */
+	public List<String> getImports()
+	{
+		if ( imports == null )
+			setImports(new ArrayList<String>());
+		return imports;
+	}
+	private void setImports(List<String> imports)
+	{
+		this.imports = imports;
+	}
+
+	private List<String> snippets;
+	/**
+	 * Get the snippets that compiled since the last reset.
+	 * @return A list of snippets.
+	 */
+	public List<String> getSnippets()
+	{
+		if ( snippets == null )
+			setSnippets(new ArrayList<String>());
+		return snippets;
+	}
+	private void setSnippets(List<String> snippets)
+	{
+		this.snippets = snippets;
+	}
+
+	// The number of snippet classes compiled, including the base class.
+	private int count;
+	// The class name of the last compiled snippet, the super class of the next one.
+	private String previous;
+
+	/**
+	 * Construct with a script engine and the context of every snippet.
+	 *
+	 * @param engine A JavaCode script engine.
+	 * @param context The context, with the class path, parent loader, options, etc.
+	 */
+	public Repl(ScriptEngine engine, ScriptContext context)
+	{
+		setEngine(engine);
+		setContext(context);
+		context.setAttribute(JavaCodeScriptEngine.ADDMAIN, Boolean.FALSE, ScriptContext.ENGINE_SCOPE);
+	}
+
+	/**
+	 * Compile the base class of the snippets, which warms up the compiler.
+	 * Called by the first evaluation, when not called before.
+	 *
+	 * @throws ScriptException When the base class does not compile, for
+	 *         example when the context's options are wrong.
+	 */
+	public synchronized void start()
+		throws ScriptException
+	{
+		if ( previous == null )
+		{
+			StringWriter errors = new StringWriter();
+			String name = SNIPPET_CLASS + count;
+			if ( compile(name, wrap(name, MAIN+"}"), errors) == null )
+				throw new ScriptException(errors.toString());
+		}
+	}
+
+	/**
+	 * Evaluate a snippet: an import, an expression, declarations or statements.
+	 *
+	 * @param snippet The source of the snippet.
+	 *
+	 * @return The value of an expression; otherwise, null.
+	 * @throws ScriptException When the snippet does not compile or its evaluation throws.
+	 */
+	public synchronized Object eval(String snippet)
+		throws ScriptException
+	{
+		start();
+		String code = snippet.trim();
+		if ( code.isEmpty() )
+			return null;
+		if ( code.startsWith(IMPORT) )
+		{
+			addImport(code.endsWith(";") ? code : code + ";");
+			return null;
+		}
+
+		String statements = (code.endsWith(";") || code.endsWith("}")) ? code : code + ";";
+		String expression = code;
+		while ( expression.endsWith(";") )
+			expression = expression.substring(0, expression.length() - 1).trim();
+
+		// Try the snippet as an expression, a declaration, then statements,
+		// and report the errors of the most likely interpretation.
+		String name = SNIPPET_CLASS + count;
+		StringWriter errors = new StringWriter();
+		StringWriter expressionErrors = new StringWriter();
+		CompiledScript compiled = null;
+		boolean isExpression = false;
+		boolean isDeclaration = DECLARATION.matcher(code).matches();
+		if ( !isDeclaration )
+		{
+			compiled = compile(name, wrap(name, "public static Object "+VALUE+"; "+
+				MAIN+VALUE+" = (\n"+expression+"\n); }"), expressionErrors);
+			isExpression = compiled != null;
+		}
+		if ( compiled == null )
+		{
+			String modifiers = MODIFIERS.matcher(code).matches() ? "" : "public static ";
+			compiled = compile(name, wrap(name, MAIN+"} "+modifiers+"\n"+statements),
+				isDeclaration ? errors : new StringWriter());
+		}
+		if ( (compiled == null) && !isDeclaration )
+			compiled = compile(name, wrap(name, MAIN+"\n"+statements+"\n}"), errors);
+		if ( compiled == null )
+		{
+			// Without a terminator, the snippet was meant as an expression.
+			if ( !isDeclaration && !code.endsWith(";") && !code.endsWith("}") )
+				errors = expressionErrors;
+			throw new ScriptException(relocate(errors.toString()));
+		}
+		getSnippets().add(code);
+
+		// Run the snippet; its class is in the store, even when it throws.
+		try
+		{
+			Class<?> clazz = (Class<?>) compiled.eval(getContext());
+			return isExpression ? clazz.getField(VALUE).get(null) : null;
+		}
+		catch (ScriptException sex)
+		{
+			Throwable cause = sex.getCause();
+			while ( (cause instanceof InvocationTargetException) && (cause.getCause() != null) )
+				cause = cause.getCause();
+			ScriptException failure = new ScriptException(String.valueOf(cause));
+			failure.initCause(cause);
+			throw failure;
+		}
+		catch (ReflectiveOperationException roe)
+		{
+			throw new ScriptException(roe);
+		}
+	}
+
+	/**
+	 * Forget the imports and the snippets; the next snippet starts afresh.
+	 */
+	public synchronized void reset()
+	{
+		setClassStore(null);
+		setImports(null);
+		setSnippets(null);
+		previous = null;
+	}
+
+	/**
+	 * Read snippets and commands, evaluate them and print their values,
+	 * until the input ends or the exit command is read.
+	 *
+	 * @param in The reader of snippets and commands.
+	 * @param out The stream where prompts, values and errors are printed.
+	 *
+	 * @throws IOException When the input cannot be read.
+	 */
+	public void run(BufferedReader in, PrintStream out)
+		throws IOException
+	{
+		// Warm up the compiler while the first snippet is typed.
+		Thread warmUp = new Thread("javacode-repl")
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					Repl.this.start();
+				}
+				catch (ScriptException sex)
+				{
+					// Reported again by the first evaluation.
+				}
+			}
+		};
+		warmUp.setDaemon(true);
+		warmUp.start();
+
+		out.println("Enter Java expressions, declarations or statements; "+COMMAND_HELP+" for help.");
+		String snippet;
+		while ( (snippet = readSnippet(in, out)) != null )
+		{
+			String command = snippet.trim();
+			if ( COMMAND_EXIT.equals(command) )
+				break;
+			else if ( COMMAND_HELP.equals(command) )
+			{
+				out.println(COMMAND_IMPORTS+"  list the imports");
+				out.println(COMMAND_LIST+"     list the snippets");
+				out.println(COMMAND_RESET+"    forget the imports and snippets");
+				out.println(COMMAND_EXIT+"     leave");
+			}
+			else if ( COMMAND_IMPORTS.equals(command) )
+			{
+				for (String declaration : getImports())
+					out.println(declaration);
+			}
+			else if ( COMMAND_LIST.equals(command) )
+			{
+				for (String code : getSnippets())
+					out.println(code);
+			}
+			else if ( COMMAND_RESET.equals(command) )
+				reset();
+			else
+			{
+				long start = System.nanoTime();
+				try
+				{
+					Object value = eval(snippet);
+					if ( value != null )
+						out.println("==> "+format(value));
+				}
+				catch (ScriptException sex)
+				{
+					out.println(sex.getMessage().trim());
+				}
+				Console.getStandard().println("repl: "+
+					TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)+" ms");
+			}
+		}
+		out.println();
+	}
+
+	// Add an import, when it compiles.
+	private void addImport(String declaration)
+		throws ScriptException
+	{
+		getImports().add(declaration);
+		StringWriter errors = new StringWriter();
+		String name = SNIPPET_CLASS + count;
+		if ( compile(name, wrap(name, MAIN+"}"), errors) == null )
+		{
+			getImports().remove(getImports().size() - 1);
+			throw new ScriptException(errors.toString());
+		}
+	}
+
+	// Number the lines of the errors from the first line of the snippet.
+	private static String relocate(String errors)
+	{
+		StringBuffer relocated = new StringBuffer();
+		Matcher matcher = LINE.matcher(errors);
+		while ( matcher.find() )
+			matcher.appendReplacement(relocated, "Line="+(Integer.parseInt(matcher.group(1)) - 1));
+		matcher.appendTail(relocated);
+		return relocated.toString();
+	}
+
+	// Wrap members in the class of a snippet; the snippet itself starts on the second line.
+	private String wrap(String name, String members)
+	{
+		StringBuilder source = new StringBuilder();
+		for (String declaration : getImports())
+			source.append(declaration).append(' ');
+		source.append("public class ").append(name);
+		if ( previous != null )
+			source.append(" extends ").append(previous);
+		source.append(" { ").append(members).append("\n}\n");
+		return source.toString();
+	}
+
+	// Compile the class of a snippet, which becomes the super class of the
+	// next one; or, write the errors and return null.
+	private CompiledScript compile(String name, String source, Writer errors)
+	{
+		ScriptContext ctx = getContext();
+		Writer errorWriter = ctx.getErrorWriter();
+		ctx.setErrorWriter(errors);
+		ctx.setAttribute(ScriptEngine.FILENAME, name+".java", ScriptContext.ENGINE_SCOPE);
+		ctx.setAttribute(JavaCodeScriptEngine.MAINCLASS, name, ScriptContext.ENGINE_SCOPE);
+		ctx.setAttribute(JavaCodeScriptEngine.CLASSSTORE, getClassStore(), ScriptContext.ENGINE_SCOPE);
+		ScriptContext engineContext = getEngine().getContext();
+		getEngine().setContext(ctx);
+		try
+		{
+			CompiledScript compiled = ((Compilable) getEngine()).compile(source);
+			previous = name;
+			++count;
+			return compiled;
+		}
+		catch (ScriptException sex)
+		{
+			return null;
+		}
+		finally
+		{
+			getEngine().setContext(engineContext);
+			ctx.setErrorWriter(errorWriter);
+		}
+	}
+
+	// Read one snippet, continuing while its brackets are open.
+	private static String readSnippet(BufferedReader in, PrintStream out)
+		throws IOException
+	{
+		out.print(PROMPT);
+		out.flush();
+		String line = in.readLine();
+		if ( line == null )
+			return null;
+		StringBuilder snippet = new StringBuilder(line);
+		int depth = depth(line);
+		while ( depth > 0 )
+		{
+			out.print(CONTINUATION);
+			out.flush();
+			line = in.readLine();
+			if ( line == null )
+				break;
+			snippet.append('\n').append(line);
+			depth += depth(line);
+		}
+		return snippet.toString();
+	}
+
+	// Count the brackets opened minus those closed, outside literals and line comments.
+	private static int depth(String line)
+	{
+		int depth = 0;
+		char quote = 0;
+		for (int index = 0; index < line.length(); ++index)
+		{
+			char c = line.charAt(index);
+			if ( quote != 0 )
+			{
+				if ( c == '\\' )
+					++index;
+				else if ( c == quote )
+					quote = 0;
+			}
+			else if ( (c == '"') || (c == '\'') )
+				quote = c;
+			else if ( (c == '/') && line.startsWith("//", index) )
+				break;
+			else if ( (c == '(') || (c == '{') || (c == '[') )
+				++depth;
+			else if ( (c == ')') || (c == '}') || (c == ']') )
+				--depth;
+		}
+		return depth;
+	}
+
+	// Format a value, including the elements of an array.
+	private static String format(Object value)
+	{
+		String formatted = Arrays.deepToString(new Object[] { value });
+		return formatted.substring(1, formatted.length() - 1);
+	}
+}
+// vi:set tabstop=4 hardtabs=4 shiftwidth=4:
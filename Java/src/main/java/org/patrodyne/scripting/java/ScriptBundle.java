@@ -0,0 +1,359 @@
+// PatroDyne: Patron Supported Dynamic Executables, http://patrodyne.org
+// Released under LGPL license. See terms at http://www.gnu.org.
+package org.patrodyne.scripting.java;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p>A single archive of the byte code compiled from a tree of scripts,
+ * read through a memory map.</p>
+ *
+ * <p>Each script is identified by a digest of its source, as loaded by the
+ * script reader, its compiler options and a fingerprint of the source path
+ * and class path it was compiled against, so a changed script, option or
+ * dependency misses the bundle and is compiled as usual. The archive holds a header, an open addressing hash table of entry
+ * offsets and the entries: for each script, its main class and class names;
+ * for each class, its byte code. A lookup hashes the key, probes the table
+ * and compares the key in the mapped region; no file is opened and no byte
+ * code is copied.</p>
+ *
+ * <pre>
+ * header:  int magic, int version, int slots, int entries
+ * slots:   int hash, int offset (zero when empty)
+ * entries: short key length, key (UTF-8), int data length, data
+ * </pre>
+ *
+ * @author Rick O'Sullivan
+ */
+public class ScriptBundle
+{
+	/** Represents the file extension of a bundle. */
+	public static final String EXTENSION = ".jsb";
+
+	private static final int MAGIC = 0x4A435342;
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 16;
+	private static final int SLOT_SIZE = 8;
+
+	// FNV-1a hash parameters.
+	private static final int FNV_OFFSET = 0x811C9DC5;
+	private static final int FNV_PRIME = 0x01000193;
+
+	// Represents the open bundles, by path; replaced when the file changes.
+	private static final Map<Path, ScriptBundle> bundles = new ConcurrentHashMap<Path, ScriptBundle>();
+	/**
+	 * Get the bundle mapped from a file, opening it again when it has changed.
+	 *
+	 * @param file A bundle file.
+	 *
+	 * @return The bundle shared by all scripts that name the file.
+	 * @throws IOException When the file is not a bundle.
+	 */
+	public static ScriptBundle open(Path file)
+		throws IOException
+	{
+		Path path = file.toAbsolutePath().normalize();
+		BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+		ScriptBundle bundle = bundles.get(path);
+		if ( (bundle == null) || (bundle.size != attributes.size()) || (bundle.modified != attributes.lastModifiedTime().toMillis()) )
+		{
+			bundle = new ScriptBundle(path, attributes);
+			bundles.put(path, bundle);
+		}
+		return bundle;
+	}
+
+	private final Path file;
+	/**
+	 * Get the bundle file.
+	 * @return The bundle file.
+	 */
+	public Path getFile()
+	{
+		return file;
+	}
+
+	private final long size;
+	private final long modified;
+	private final ByteBuffer buffer;
+	private final int slots;
+	private final int entries;
+
+	// Map a bundle file and check its header.
+	private ScriptBundle(Path file, BasicFileAttributes attributes)
+		throws IOException
+	{
+		this.file = file;
+		this.size = attributes.size();
+		this.modified = attributes.lastModifiedTime().toMillis();
+		if ( size > Integer.MAX_VALUE )
+			throw new IOException("bundle too large: "+file);
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ))
+		{
+			// The mapping remains valid after the channel is closed.
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+		}
+		if ( (size < HEADER_SIZE) || (buffer.getInt(0) != MAGIC) || (buffer.getInt(4) != VERSION) )
+			throw new IOException("not a script bundle: "+file);
+		slots = buffer.getInt(8);
+		entries = buffer.getInt(12);
+		if ( (Integer.bitCount(slots) != 1) || (HEADER_SIZE + (long) slots * SLOT_SIZE > size) )
+			throw new IOException("invalid script bundle index: "+file);
+	}
+
+	/**
+	 * Get the number of entries: scripts and classes.
+	 * @return The number of entries.
+	 */
+	public int size()
+	{
+		return entries;
+	}
+
+	/**
+	 * Compute the key of a script.
+	 *
+	 * @param source The script source, as loaded by the script reader.
+	 * @param addMain True when the source is wrapped in a main method and class.
+	 * @param options The compiler options.
+	 * @param sourcePath The location of additional .java source files.
+	 * @param classPath The location of additional .class files.
+	 *
+	 * @return A hexadecimal digest that identifies the script or null when the paths are too large to fingerprint.
+	 */
+	public static String key(String source, boolean addMain, String[] options, 
+		String sourcePath, String classPath)
+	{
+		MessageDigest md = ScriptCache.newDigest();
+		ScriptCache.update(md, source);
+		ScriptCache.update(md, Boolean.toString(addMain));
+		if ( options != null )
+		{
+			for (String option : options)
+				ScriptCache.update(md, option);
+		}
+		// An empty path is no path.
+		ScriptCache.update(md, "-sourcepath");
+		if ( !ScriptCache.fingerprint(md, ((sourcePath != null) && !sourcePath.isEmpty()) ? sourcePath : null) )
+			return null;
+		ScriptCache.update(md, "-classpath");
+		if ( !ScriptCache.fingerprint(md, ((classPath != null) && !classPath.isEmpty()) ? classPath : null) )
+			return null;
+		return ScriptCache.toHex(md.digest());
+	}
+
+	/**
+	 * Get the name of the main class of a script.
+	 *
+	 * @param key The script key.
+	 *
+	 * @return The main class name, or null when the script is not in this bundle.
+	 */
+	public String getMainClass(String key)
+	{
+		List<String> script = getScript(key);
+		return (script != null) ? script.get(0) : null;
+	}
+
+	/**
+	 * Get the names of the classes compiled from a script.
+	 *
+	 * @param key The script key.
+	 *
+	 * @return The class names, or null when the script is not in this bundle.
+	 */
+	public List<String> getClassNames(String key)
+	{
+		List<String> script = getScript(key);
+		return (script != null) ? script.subList(1, script.size()) : null;
+	}
+
+	// Read a script entry: its main class, then its class names.
+	private List<String> getScript(String key)
+	{
+		ByteBuffer data = find(key);
+		if ( data == null )
+			return null;
+		byte[] bytes = new byte[data.remaining()];
+		data.get(bytes);
+		try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes)))
+		{
+			List<String> script = new ArrayList<String>();
+			script.add(in.readUTF());
+			int count = in.readInt();
+			for (int index = 0; index < count; ++index)
+				script.add(in.readUTF());
+			return script;
+		}
+		catch (IOException ioe)
+		{
+			throw new IllegalStateException("invalid script bundle entry: "+key, ioe);
+		}
+	}
+
+	/**
+	 * Get the byte code of a class compiled from a script.
+	 *
+	 * @param key The script key.
+	 * @param className The binary class name.
+	 *
+	 * @return A read only view of the mapped byte code, or null when the class is not in this bundle.
+	 */
+	public ByteBuffer getBytecode(String key, String className)
+	{
+		return find(classKey(key, className));
+	}
+
+	// The key of a class entry.
+	private static String classKey(String key, String className)
+	{
+		return key + ":" + className;
+	}
+
+	// Find the data of an entry in the mapped region.
+	private ByteBuffer find(String key)
+	{
+		byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+		int hash = hash(keyBytes);
+		for (int probe = 0; probe < slots; ++probe)
+		{
+			int slot = HEADER_SIZE + ((hash + probe) & (slots - 1)) * SLOT_SIZE;
+			int offset = buffer.getInt(slot + 4);
+			if ( offset == 0 )
+				return null;
+			if ( (buffer.getInt(slot) == hash) && matches(offset, keyBytes) )
+			{
+				int dataOffset = offset + 2 + keyBytes.length;
+				int length = buffer.getInt(dataOffset);
+				ByteBuffer data = buffer.duplicate();
+				data.position(dataOffset + 4);
+				data.limit(dataOffset + 4 + length);
+				return data.slice().asReadOnlyBuffer();
+			}
+		}
+		return null;
+	}
+
+	// Compare the key of the entry at an offset.
+	private boolean matches(int offset, byte[] keyBytes)
+	{
+		if ( (buffer.getShort(offset) & 0xFFFF) != keyBytes.length )
+			return false;
+		for (int index = 0; index < keyBytes.length; ++index)
+		{
+			if ( buffer.get(offset + 2 + index) != keyBytes[index] )
+				return false;
+		}
+		return true;
+	}
+
+	private static int hash(byte[] bytes)
+	{
+		int hash = FNV_OFFSET;
+		for (byte b : bytes)
+			hash = (hash ^ (b & 0xFF)) * FNV_PRIME;
+		return hash;
+	}
+
+	/**
+	 * Write a bundle file from the byte code of each script. The file is
+	 * replaced atomically, so running scripts keep their mapping of the old one.
+	 *
+	 * @param file The bundle file.
+	 * @param scripts The memory map of class name and byte code pairs of each script, by script key.
+	 *
+	 * @return The number of scripts written; those without a main class are skipped.
+	 * @throws IOException When the file cannot be written or exceeds 2GB.
+	 */
+	public static int write(Path file, Map<String, Map<String, byte[]>> scripts)
+		throws IOException
+	{
+		// Serialize the entries: script records and byte code.
+		Map<String, byte[]> data = new LinkedHashMap<String, byte[]>();
+		int written = 0;
+		for (Map.Entry<String, Map<String, byte[]>> script : scripts.entrySet())
+		{
+			String mainClass = ClassFileInfo.findMainClass(script.getValue());
+			if ( mainClass == null )
+				continue;
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			try (DataOutputStream out = new DataOutputStream(bytes))
+			{
+				out.writeUTF(mainClass);
+				out.writeInt(script.getValue().size());
+				for (String className : script.getValue().keySet())
+					out.writeUTF(className);
+			}
+			data.put(script.getKey(), bytes.toByteArray());
+			++written;
+			for (Map.Entry<String, byte[]> clazz : script.getValue().entrySet())
+				data.put(classKey(script.getKey(), clazz.getKey()), clazz.getValue());
+		}
+
+		// Size the table for a load factor of one half, at most.
+		int slots = Integer.highestOneBit(Math.max(1, data.size() * 2 - 1)) << 1;
+		int[] hashes = new int[slots];
+		int[] offsets = new int[slots];
+
+		Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+		long offset = HEADER_SIZE + (long) slots * SLOT_SIZE;
+		try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+			StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE))
+		{
+			channel.position(offset);
+			for (Map.Entry<String, byte[]> entry : data.entrySet())
+			{
+				byte[] keyBytes = entry.getKey().getBytes(StandardCharsets.UTF_8);
+				long length = 2 + keyBytes.length + 4 + entry.getValue().length;
+				if ( offset + length > Integer.MAX_VALUE )
+					throw new IOException("bundle exceeds 2GB: "+file);
+				ByteBuffer record = ByteBuffer.allocate((int) length);
+				record.putShort((short) keyBytes.length).put(keyBytes);
+				record.putInt(entry.getValue().length).put(entry.getValue());
+				record.flip();
+				while ( record.hasRemaining() )
+					channel.write(record);
+
+				// Insert into the table by linear probing.
+				int hash = hash(keyBytes);
+				int slot = hash & (slots - 1);
+				while ( offsets[slot] != 0 )
+					slot = (slot + 1) & (slots - 1);
+				hashes[slot] = hash;
+				offsets[slot] = (int) offset;
+				offset += length;
+			}
+
+			ByteBuffer index = ByteBuffer.allocate(HEADER_SIZE + slots * SLOT_SIZE);
+			index.putInt(MAGIC).putInt(VERSION).putInt(slots).putInt(data.size());
+			for (int slot = 0; slot < slots; ++slot)
+				index.putInt(hashes[slot]).putInt(offsets[slot]);
+			index.flip();
+			channel.position(0);
+			while ( index.hasRemaining() )
+				channel.write(index);
+		}
+		Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		bundles.remove(file.toAbsolutePath().normalize());
+		return written;
+	}
+}
+// vi:set tabstop=4 hardtabs=4 shiftwidth=4:
@@ -0,0 +1,572 @@
+// PatroDyne: Patron Supported Dynamic Executables, http://patrodyne.org
+// Released under LGPL license. See terms at http://www.gnu.org.
+package org.patrodyne.scripting.java;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p>A persistent, content addressed cache of compiled script byte code.</p>
+ *
+ * <p>Each entry holds the memory map of class name and byte code pairs
+ * produced by one compilation. Entries are keyed by a SHA-256 digest of
+ * the script source, the compiler options, the source path, the class
+ * path and a fingerprint (size and modification time) of the files on
+ * those paths; therefore, a changed script, option or dependency simply
+ * produces a new key.</p>
+ *
+ * <p>Entries are written to a temporary file and atomically renamed, so
+ * concurrent processes never observe a partial entry. The total size of
+ * the cache is bounded; when it is exceeded, the least recently used
+ * entries are evicted. A hit refreshes the entry's modification time.</p>
+ *
+ * <p>System properties:</p>
+ * <ul>
+ * <li><code>org.patrodyne.scripting.java.cache.dir</code> - cache location, default <code>~/.patrodyne/cache</code>.</li>
+ * <li><code>org.patrodyne.scripting.java.cache.size</code> - maximum size in bytes, default 64MB.</li>
+ * <li><code>org.patrodyne.scripting.java.fingerprint.window</code> - the time, in milliseconds, that
+ * the fingerprint of an unchanged directory is trusted, default 1000.</li>
+ * </ul>
+ *
+ * <p>The fingerprint of each path entry is kept in memory. It is reused
+ * while the modification times of the entry and its directories are
+ * unchanged, which catches added, removed and renamed files, and is taken
+ * again once the window has passed, which catches files rewritten in place.</p>
+ *
+ * @author Rick O'Sullivan
+ */
+public class ScriptCache
+{
+	/** Represents the name of the system property for the cache location. */
+	public static final String CACHE_DIR = JavaCodeScriptEngine.SYSPROP_PREFIX + "cache.dir";
+	/** Represents the name of the system property for the maximum cache size. */
+	public static final String CACHE_SIZE = JavaCodeScriptEngine.SYSPROP_PREFIX + "cache.size";
+	/** The default maximum cache size in bytes. */
+	public static final long DEFAULT_CACHE_SIZE = 64L * 1024 * 1024;
+	/** Represents the name of the system property for the fingerprint window. */
+	public static final String FINGERPRINT_WINDOW = JavaCodeScriptEngine.SYSPROP_PREFIX + "fingerprint.window";
+	/** The default time, in milliseconds, that the fingerprint of an unchanged directory is trusted. */
+	public static final long DEFAULT_FINGERPRINT_WINDOW = 1000;
+	/** The maximum number of files and directories examined to fingerprint a path entry. */
+	public static final int MAX_FINGERPRINT_FILES = 10000;
+
+	// The fingerprints of path entries, by absolute path.
+	private static final Map<String, PathFingerprint> fingerprints = new ConcurrentHashMap<String, PathFingerprint>();
+	private static final long fingerprintWindow = defaultFingerprintWindow();
+
+	// Cache entry file format.
+	private static final String ENTRY_EXTENSION = ".jcc";
+	private static final String TEMP_EXTENSION = ".tmp";
+	private static final int MAGIC = 0x4A434301;
+
+	private Path directory;
+	/**
+	 * Get the directory where cache entries are stored.
+	 * @return The cache directory.
+	 */
+	public Path getDirectory()
+	{
+		return directory;
+	}
+	private void setDirectory(Path directory)
+	{
+		this.directory = directory;
+	}
+
+	private long maxSize;
+	/**
+	 * Get the maximum total size of the cache entries, in bytes.
+	 * @return The maximum cache size.
+	 */
+	public long getMaxSize()
+	{
+		return maxSize;
+	}
+	private void setMaxSize(long maxSize)
+	{
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * Construct with a cache directory and maximum size.
+	 *
+	 * @param directory The directory where cache entries are stored.
+	 * @param maxSize The maximum total size of the cache entries, in bytes.
+	 */
+	public ScriptCache(Path directory, long maxSize)
+	{
+		setDirectory(directory);
+		setMaxSize(maxSize);
+	}
+
+	/** Construct with the location and size from system properties or defaults. */
+	public ScriptCache()
+	{
+		this(defaultDirectory(), defaultMaxSize());
+	}
+
+	/**
+	 * Compute the cache key for a compilation.
+	 *
+	 * @param sourceName The file name to identify the source in diagnostics, etc.
+	 * @param source The script source, before any main method is added.
+	 * @param addMain True, when the source is wrapped in a main class.
+	 * @param options The compiler options.
+	 * @param sourcePath The location of additional .java source files.
+	 * @param classPath The location of additional .class files.
+	 *
+	 * @return A hexadecimal digest or null when the paths are too large to fingerprint.
+	 */
+	public String key(String sourceName, String source, boolean addMain, String[] options,
+		String sourcePath, String classPath)
+	{
+		MessageDigest md = newDigest();
+		update(md, System.getProperty("java.version"));
+		update(md, sourceName);
+		update(md, source);
+		update(md, Boolean.toString(addMain));
+		if ( options != null )
+		{
+			for (String option : options)
+				update(md, option);
+		}
+		update(md, "-sourcepath");
+		if ( !fingerprint(md, sourcePath) )
+			return null;
+		update(md, "-classpath");
+		if ( !fingerprint(md, classPath) )
+			return null;
+		return toHex(md.digest());
+	}
+
+	/**
+	 * Get the memory map for the given key.
+	 *
+	 * @param key A cache key.
+	 *
+	 * @return A memory map of class name and byte code pairs or null when the key is not cached.
+	 */
+	public Map<String, byte[]> get(String key)
+	{
+		Path entry = entry(key);
+		if ( !Files.isRegularFile(entry) )
+			return null;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(entry))))
+		{
+			if ( in.readInt() != MAGIC )
+				throw new IOException("invalid cache entry: "+entry);
+			int count = in.readInt();
+			Map<String, byte[]> memoryMap = new HashMap<String, byte[]>(count * 2);
+			for (int index=0; index < count; ++index)
+			{
+				String className = in.readUTF();
+				byte[] bytecode = new byte[in.readInt()];
+				in.readFully(bytecode);
+				memoryMap.put(className, bytecode);
+			}
+			// Mark as recently used.
+			Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+			return memoryMap;
+		}
+		catch (NoSuchFileException nsfe)
+		{
+			// Evicted by another process.
+			return null;
+		}
+		catch (IOException ioe)
+		{
+			println("cache: discard "+entry+": "+ioe.getMessage());
+			delete(entry);
+			return null;
+		}
+	}
+
+	/**
+	 * Put a memory map into the cache then evict the least recently
+	 * used entries when the cache exceeds its maximum size.
+	 *
+	 * @param key A cache key.
+	 * @param memoryMap A memory map of class name and byte code pairs.
+	 */
+	public void put(String key, Map<String, byte[]> memoryMap)
+	{
+		Path temp = null;
+		try
+		{
+			Files.createDirectories(getDirectory());
+			temp = Files.createTempFile(getDirectory(), key, TEMP_EXTENSION);
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp))))
+			{
+				out.writeInt(MAGIC);
+				out.writeInt(memoryMap.size());
+				for (Map.Entry<String, byte[]> entry : memoryMap.entrySet())
+				{
+					out.writeUTF(entry.getKey());
+					out.writeInt(entry.getValue().length);
+					out.write(entry.getValue());
+				}
+			}
+			Files.move(temp, entry(key), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			temp = null;
+			evict();
+		}
+		catch (IOException ioe)
+		{
+			println("cache: cannot write "+key+": "+ioe.getMessage());
+		}
+		finally
+		{
+			if ( temp != null )
+				delete(temp);
+		}
+	}
+
+	/**
+	 * Evict the least recently used entries until the cache is within its maximum size.
+	 *
+	 * @throws IOException When the cache directory cannot be listed.
+	 */
+	public void evict()
+		throws IOException
+	{
+		List<Path> entries = entries();
+		long size = 0L;
+		final Map<Path, BasicFileAttributes> attributes = new HashMap<Path, BasicFileAttributes>();
+		for (Path entry : entries)
+		{
+			BasicFileAttributes attrs = attributes(entry);
+			if ( attrs != null )
+			{
+				attributes.put(entry, attrs);
+				size += attrs.size();
+			}
+		}
+		if ( size <= getMaxSize() )
+			return;
+
+		List<Path> lru = new ArrayList<Path>(attributes.keySet());
+		Collections.sort(lru, new Comparator<Path>()
+		{
+			@Override
+			public int compare(Path p1, Path p2)
+			{
+				return attributes.get(p1).lastModifiedTime().compareTo(attributes.get(p2).lastModifiedTime());
+			}
+		});
+		for (Path entry : lru)
+		{
+			if ( size <= getMaxSize() )
+				break;
+			size -= attributes.get(entry).size();
+			delete(entry);
+			println("cache: evict "+entry.getFileName());
+		}
+	}
+
+	/**
+	 * Remove every entry from the cache.
+	 *
+	 * @return The number of entries removed.
+	 * @throws IOException When the cache directory cannot be listed.
+	 */
+	public int purge()
+		throws IOException
+	{
+		int count = 0;
+		for (Path entry : entries())
+		{
+			if ( delete(entry) )
+				++count;
+		}
+		return count;
+	}
+
+	/**
+	 * Print the location, entry count and size of the cache.
+	 *
+	 * @param out The stream to print to.
+	 * @throws IOException When the cache directory cannot be listed.
+	 */
+	public void printStatistics(PrintStream out)
+		throws IOException
+	{
+		long size = 0L;
+		FileTime oldest = null;
+		FileTime newest = null;
+		List<Path> entries = entries();
+		for (Path entry : entries)
+		{
+			BasicFileAttributes attrs = attributes(entry);
+			if ( attrs != null )
+			{
+				size += attrs.size();
+				FileTime time = attrs.lastModifiedTime();
+				if ( (oldest == null) || (time.compareTo(oldest) < 0) )
+					oldest = time;
+				if ( (newest == null) || (time.compareTo(newest) > 0) )
+					newest = time;
+			}
+		}
+		out.println("Directory: "+getDirectory());
+		out.println("Entries:   "+entries.size());
+		out.println("Size:      "+size+" of "+getMaxSize()+" bytes");
+		if ( oldest != null )
+		{
+			out.println("Oldest:    "+oldest);
+			out.println("Newest:    "+newest);
+		}
+	}
+
+	// Internals only below this point
+
+	// List the cache entry files.
+	private List<Path> entries()
+		throws IOException
+	{
+		List<Path> entries = new ArrayList<Path>();
+		if ( Files.isDirectory(getDirectory()) )
+		{
+			try (DirectoryStream<Path> stream = Files.newDirectoryStream(getDirectory(), "*"+ENTRY_EXTENSION))
+			{
+				for (Path entry : stream)
+					entries.add(entry);
+			}
+		}
+		return entries;
+	}
+
+	private Path entry(String key)
+	{
+		return getDirectory().resolve(key + ENTRY_EXTENSION);
+	}
+
+	// Read file attributes, null when the file has gone.
+	private static BasicFileAttributes attributes(Path path)
+	{
+		try
+		{
+			return Files.readAttributes(path, BasicFileAttributes.class);
+		}
+		catch (IOException ioe)
+		{
+			return null;
+		}
+	}
+
+	// Delete a file, ignoring concurrent removal.
+	private static boolean delete(Path path)
+	{
+		try
+		{
+			return Files.deleteIfExists(path);
+		}
+		catch (IOException ioe)
+		{
+			return false;
+		}
+	}
+
+	// Digest the name, size and modification time of each file on a path.
+	// Returns false when a path entry has too many files to fingerprint cheaply.
+	// Shared with the in-process ClassCache.
+	static boolean fingerprint(MessageDigest md, String path)
+	{
+		if ( path == null )
+			return true;
+		update(md, path);
+		StringTokenizer st = new StringTokenizer(path, File.pathSeparator);
+		while (st.hasMoreTokens())
+		{
+			File entry = new File(st.nextToken()).getAbsoluteFile();
+			PathFingerprint fingerprint = fingerprints.get(entry.getPath());
+			if ( (fingerprint == null) || !fingerprint.isCurrent() )
+			{
+				fingerprint = PathFingerprint.walk(entry);
+				fingerprints.put(entry.getPath(), fingerprint);
+			}
+			if ( fingerprint.digest == null )
+				return false;
+			md.update(fingerprint.digest);
+		}
+		return true;
+	}
+
+	/**
+	 * Forget the fingerprints of the path entries, so that the next key
+	 * examines their files again. Call when a file is known to have changed.
+	 */
+	public static void clearFingerprints()
+	{
+		fingerprints.clear();
+	}
+
+	// The fingerprint of a path entry and the modification times of the
+	// directories it was taken from.
+	private static final class PathFingerprint
+	{
+		private final byte[] digest;
+		private final File[] directories;
+		private final long[] modified;
+		private final long taken;
+
+		private PathFingerprint(byte[] digest, List<File> directories)
+		{
+			this.digest = digest;
+			this.directories = directories.toArray(new File[directories.size()]);
+			this.modified = new long[this.directories.length];
+			for (int index=0; index < modified.length; ++index)
+				modified[index] = this.directories[index].lastModified();
+			this.taken = System.currentTimeMillis();
+		}
+
+		// Is the fingerprint within its window and are its directories unchanged?
+		private boolean isCurrent()
+		{
+			if ( System.currentTimeMillis() - taken >= fingerprintWindow )
+				return false;
+			for (int index=0; index < directories.length; ++index)
+			{
+				if ( directories[index].lastModified() != modified[index] )
+					return false;
+			}
+			return true;
+		}
+
+		// Walk an entry, counting every file and directory against the
+		// budget; the digest is null when the budget is exceeded.
+		private static PathFingerprint walk(File entry)
+		{
+			MessageDigest md = newDigest();
+			List<File> directories = new ArrayList<File>();
+			directories.add(entry);
+			int budget = MAX_FINGERPRINT_FILES;
+			Deque<File> files = new ArrayDeque<File>();
+			files.push(entry);
+			while ( !files.isEmpty() )
+			{
+				if ( --budget < 0 )
+					return new PathFingerprint(null, Collections.singletonList(entry));
+				File file = files.pop();
+				if ( file.isDirectory() )
+				{
+					String[] names = file.list();
+					if ( names == null )
+						continue;
+					if ( file != entry )
+						directories.add(file);
+					Arrays.sort(names);
+					for (int index=names.length-1; index >= 0; --index)
+					{
+						if ( !names[index].startsWith(".") )
+							files.push(new File(file, names[index]));
+					}
+				}
+				else if ( file.isFile() && isFingerprinted(file.getName()) )
+					update(md, file.getPath()+":"+file.length()+":"+file.lastModified());
+			}
+			return new PathFingerprint(md.digest(), directories);
+		}
+	}
+
+	// Only sources, classes and archives affect compilation.
+	private static boolean isFingerprinted(String name)
+	{
+		return name.endsWith(".java") || name.endsWith(".class")
+			|| name.endsWith(".jar") || name.endsWith(".zip");
+	}
+
+	// Digest helpers, shared with the in-process ClassCache.
+	static MessageDigest newDigest()
+	{
+		try
+		{
+			return MessageDigest.getInstance("SHA-256");
+		}
+		catch (NoSuchAlgorithmException nsae)
+		{
+			throw new IllegalStateException(nsae);
+		}
+	}
+
+	static void update(MessageDigest md, String value)
+	{
+		if ( value != null )
+			md.update(value.getBytes(StandardCharsets.UTF_8));
+		md.update((byte) 0);
+	}
+
+	static String toHex(byte[] bytes)
+	{
+		StringBuilder hex = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes)
+			hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		return hex.toString();
+	}
+
+	private static long defaultFingerprintWindow()
+	{
+		try
+		{
+			return Long.parseLong(System.getProperty(FINGERPRINT_WINDOW, 
+				Long.toString(DEFAULT_FINGERPRINT_WINDOW)));
+		}
+		catch (NumberFormatException nfe)
+		{
+			return DEFAULT_FINGERPRINT_WINDOW;
+		}
+	}
+
+	private static Path defaultDirectory()
+	{
+		String dir = System.getProperty(CACHE_DIR);
+		if ( (dir != null) && !dir.isEmpty() )
+			return Paths.get(dir);
+		else
+			return Paths.get(System.getProperty("user.home"), ".patrodyne", "cache");
+	}
+
+	private static long defaultMaxSize()
+	{
+		try
+		{
+			return Long.parseLong(System.getProperty(CACHE_SIZE, Long.toString(DEFAULT_CACHE_SIZE)));
+		}
+		catch (NumberFormatException nfe)
+		{
+			return DEFAULT_CACHE_SIZE;
+		}
+	}
+
+	private static void println(Object obj)
+	{
+		Console.getStandard().println(obj);
+	}
+}
+// vi:set tabstop=4 hardtabs=4 shiftwidth=4:
@@ -0,0 +1,470 @@
+// PatroDyne: Patron Supported Dynamic Executables, http://patrodyne.org
+// Released under LGPL license. See terms at http://www.gnu.org.
+package org.patrodyne.scripting.java;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p>A persistent cache of the classes compiled from a source path.</p>
+ *
+ * <p>When a script refers to helper sources found on the source path, javac
+ * compiles them along with the script. This cache keeps those classes in a
+ * directory that is prepended to the compiler's class path; javac prefers a
+ * class file to its source while the class file is newer, so an unchanged
+ * helper is not compiled again.</p>
+ *
+ * <p>For each class, the cache records the size, modification time and
+ * digest of its source file and the classes it refers to, see
+ * {@link ClassFileInfo}. Before each compilation, the classes of changed or
+ * deleted sources are removed, with every cached class that depends on them,
+ * directly or indirectly, so that javac recompiles exactly those helpers.</p>
+ *
+ * <p>The cached classes are defined by the class loader of each script,
+ * along with the script's own classes, so that a script and its helpers
+ * share their runtime packages and package-private access works as it does
+ * without the cache. The byte code is read once and kept in memory until
+ * the cached classes change.</p>
+ *
+ * @author Rick O'Sullivan
+ */
+public class SourcePathCache
+{
+	private static final String INDEX = "index";
+	private static final String CLASS_EXTENSION = ".class";
+	private static final String TEMP_EXTENSION = ".tmp";
+	private static final int MAGIC = 0x4A435301;
+
+	// Represents the cache of each source path.
+	private static final Map<String, SourcePathCache> caches = new ConcurrentHashMap<String, SourcePathCache>();
+	/**
+	 * Get the cache for a source path, in the directory of the byte code cache.
+	 *
+	 * @param sourcePath The location of additional .java source files.
+	 *
+	 * @return The cache shared by all compilations with the same source path.
+	 */
+	public static SourcePathCache forSourcePath(String sourcePath)
+	{
+		SourcePathCache cache = caches.get(sourcePath);
+		if ( cache == null )
+		{
+			MessageDigest md = ScriptCache.newDigest();
+			ScriptCache.update(md, sourcePath);
+			Path directory = new ScriptCache().getDirectory().resolve("sourcepath").resolve(ScriptCache.toHex(md.digest()));
+			caches.putIfAbsent(sourcePath, new SourcePathCache(directory));
+			cache = caches.get(sourcePath);
+		}
+		return cache;
+	}
+
+	private Path directory;
+	/**
+	 * Get the directory where the classes are stored.
+	 * @return The cache directory.
+	 */
+	public Path getDirectory()
+	{
+		return directory;
+	}
+	private void setDirectory(Path directory)
+	{
+		this.directory = directory;
+	}
+
+	// The cached classes, by class name; loaded on first use.
+	private Map<String, Entry> entries;
+	private Map<String, Entry> getEntries()
+	{
+		if ( entries == null )
+			entries = readIndex();
+		return entries;
+	}
+
+	// The byte code of the cached classes, by class name; read on first use
+	// and discarded whenever the cached classes change.
+	private Map<String, byte[]> classes;
+	private void setClasses(Map<String, byte[]> classes)
+	{
+		this.classes = classes;
+	}
+
+	// A cached class: the state of its source and its references.
+	private static class Entry
+	{
+		String source;
+		long size;
+		long modified;
+		String digest;
+		List<String> references;
+	}
+
+	/**
+	 * Construct with a cache directory.
+	 * @param directory The directory where the classes are stored.
+	 */
+	public SourcePathCache(Path directory)
+	{
+		setDirectory(directory);
+	}
+
+	/**
+	 * Prepend the cache directory to a class path.
+	 *
+	 * @param classPath A class path.
+	 *
+	 * @return The class path for compiling against the cached classes.
+	 */
+	public String prependTo(String classPath)
+	{
+		if ( (classPath == null) || classPath.isEmpty() )
+			return getDirectory().toString();
+		return getDirectory() + File.pathSeparator + classPath;
+	}
+
+	/**
+	 * Get the byte code of the cached classes, to be defined by the class
+	 * loader of a script.
+	 *
+	 * @return An unmodifiable map of class name and byte code pairs.
+	 */
+	public synchronized Map<String, byte[]> getClasses()
+	{
+		if ( classes == null )
+		{
+			Map<String, byte[]> bytecode = new HashMap<String, byte[]>();
+			for (String className : getEntries().keySet())
+			{
+				try
+				{
+					bytecode.put(className, Files.readAllBytes(classFile(className)));
+				}
+				catch (IOException ioe)
+				{
+					println("sourcepath cache: cannot read "+className+": "+ioe.getMessage());
+				}
+			}
+			setClasses(Collections.unmodifiableMap(bytecode));
+		}
+		return classes;
+	}
+
+	/**
+	 * Remove the classes of changed or deleted source files and the
+	 * cached classes that depend on them.
+	 *
+	 * @return The number of classes removed.
+	 */
+	public synchronized int validate()
+	{
+		boolean updated = false;
+		Set<String> changedSources = new HashSet<String>();
+		Map<String, Boolean> checked = new HashMap<String, Boolean>();
+		for (Entry entry : getEntries().values())
+		{
+			Boolean changed = checked.get(entry.source);
+			if ( changed == null )
+			{
+				changed = Boolean.FALSE;
+				BasicFileAttributes attributes = attributes(Paths.get(entry.source));
+				if ( attributes == null )
+					changed = Boolean.TRUE;
+				else if ( (attributes.size() != entry.size) || (attributes.lastModifiedTime().toMillis() != entry.modified) )
+				{
+					// A touched file is unchanged when its digest is the same;
+					// touch its classes too, so javac still prefers them.
+					String digest = digest(Paths.get(entry.source));
+					if ( entry.digest.equals(digest) )
+					{
+						for (Map.Entry<String, Entry> same : getEntries().entrySet())
+						{
+							if ( same.getValue().source.equals(entry.source) )
+							{
+								same.getValue().modified = attributes.lastModifiedTime().toMillis();
+								touch(classFile(same.getKey()));
+							}
+						}
+						updated = true;
+					}
+					else
+						changed = Boolean.TRUE;
+				}
+				checked.put(entry.source, changed);
+				if ( changed )
+					changedSources.add(entry.source);
+			}
+		}
+
+		// Invalidate the classes of changed sources and their dependents.
+		Set<String> invalid = new LinkedHashSet<String>();
+		for (Map.Entry<String, Entry> entry : getEntries().entrySet())
+		{
+			if ( changedSources.contains(entry.getValue().source) )
+				invalid.add(entry.getKey());
+		}
+		if ( !invalid.isEmpty() )
+		{
+			Map<String, Set<String>> dependents = new HashMap<String, Set<String>>();
+			Map<String, Set<String>> classesBySource = new HashMap<String, Set<String>>();
+			for (Map.Entry<String, Entry> entry : getEntries().entrySet())
+			{
+				for (String reference : entry.getValue().references)
+				{
+					if ( !dependents.containsKey(reference) )
+						dependents.put(reference, new HashSet<String>());
+					dependents.get(reference).add(entry.getKey());
+				}
+				if ( !classesBySource.containsKey(entry.getValue().source) )
+					classesBySource.put(entry.getValue().source, new HashSet<String>());
+				classesBySource.get(entry.getValue().source).add(entry.getKey());
+			}
+			List<String> work = new ArrayList<String>(invalid);
+			while ( !work.isEmpty() )
+			{
+				String className = work.remove(work.size() - 1);
+				Set<String> affected = new HashSet<String>();
+				if ( dependents.containsKey(className) )
+					affected.addAll(dependents.get(className));
+				// The classes compiled from one source are recompiled together.
+				affected.addAll(classesBySource.get(getEntries().get(className).source));
+				for (String dependent : affected)
+				{
+					if ( invalid.add(dependent) )
+						work.add(dependent);
+				}
+			}
+			for (String className : invalid)
+			{
+				getEntries().remove(className);
+				delete(classFile(className));
+			}
+			println("sourcepath cache: removed "+invalid);
+			updated = true;
+		}
+
+		if ( updated )
+			writeIndex();
+		if ( !invalid.isEmpty() )
+			setClasses(null);
+		return invalid.size();
+	}
+
+	/**
+	 * Store the classes compiled from source files on the source path.
+	 *
+	 * @param memoryMap The compiled class name and byte code pairs.
+	 * @param origins The URI of the source file of each class compiled from the source path.
+	 */
+	public synchronized void store(Map<String, byte[]> memoryMap, Map<String, URI> origins)
+	{
+		boolean updated = false;
+		Map<String, String> digests = new HashMap<String, String>();
+		for (Map.Entry<String, URI> origin : origins.entrySet())
+		{
+			String className = origin.getKey();
+			byte[] bytecode = memoryMap.get(className);
+			if ( (bytecode == null) || !"file".equals(origin.getValue().getScheme()) )
+				continue;
+			try
+			{
+				Path source = Paths.get(origin.getValue());
+				BasicFileAttributes attributes = attributes(source);
+				if ( attributes == null )
+					continue;
+				Entry entry = new Entry();
+				entry.source = source.toString();
+				entry.size = attributes.size();
+				entry.modified = attributes.lastModifiedTime().toMillis();
+				if ( !digests.containsKey(entry.source) )
+					digests.put(entry.source, digest(source));
+				entry.digest = digests.get(entry.source);
+				entry.references = new ArrayList<String>(new ClassFileInfo(bytecode).getReferencedClasses());
+
+				Path classFile = classFile(className);
+				Files.createDirectories(classFile.getParent());
+				Path temp = Files.createTempFile(classFile.getParent(), classFile.getFileName().toString(), TEMP_EXTENSION);
+				Files.write(temp, bytecode);
+				Files.move(temp, classFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+				getEntries().put(className, entry);
+				updated = true;
+			}
+			catch (IOException ioe)
+			{
+				println("sourcepath cache: cannot store "+className+": "+ioe.getMessage());
+			}
+		}
+		if ( updated )
+		{
+			writeIndex();
+			setClasses(null);
+		}
+	}
+
+	/**
+	 * Remove every cached class.
+	 *
+	 * @return The number of classes removed.
+	 */
+	public synchronized int purge()
+	{
+		int count = getEntries().size();
+		for (String className : getEntries().keySet())
+			delete(classFile(className));
+		getEntries().clear();
+		writeIndex();
+		setClasses(null);
+		return count;
+	}
+
+	private Path classFile(String className)
+	{
+		return getDirectory().resolve(className.replace('.', '/') + CLASS_EXTENSION);
+	}
+
+	private Map<String, Entry> readIndex()
+	{
+		Map<String, Entry> result = new HashMap<String, Entry>();
+		try (InputStream is = Files.newInputStream(getDirectory().resolve(INDEX));
+			DataInputStream in = new DataInputStream(new BufferedInputStream(is)))
+		{
+			if ( in.readInt() != MAGIC )
+				return result;
+			int count = in.readInt();
+			for (int index = 0; index < count; ++index)
+			{
+				String className = in.readUTF();
+				Entry entry = new Entry();
+				entry.source = in.readUTF();
+				entry.size = in.readLong();
+				entry.modified = in.readLong();
+				entry.digest = in.readUTF();
+				int references = in.readInt();
+				entry.references = new ArrayList<String>(references);
+				while ( entry.references.size() < references )
+					entry.references.add(in.readUTF());
+				result.put(className, entry);
+			}
+		}
+		catch (NoSuchFileException nsfe)
+		{
+			// An empty cache.
+		}
+		catch (IOException ioe)
+		{
+			println("sourcepath cache: cannot read index: "+ioe.getMessage());
+			result.clear();
+		}
+		return result;
+	}
+
+	private void writeIndex()
+	{
+		try
+		{
+			Files.createDirectories(getDirectory());
+			Path temp = Files.createTempFile(getDirectory(), INDEX, TEMP_EXTENSION);
+			try (OutputStream os = Files.newOutputStream(temp);
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os)))
+			{
+				out.writeInt(MAGIC);
+				out.writeInt(getEntries().size());
+				for (Map.Entry<String, Entry> entry : getEntries().entrySet())
+				{
+					out.writeUTF(entry.getKey());
+					out.writeUTF(entry.getValue().source);
+					out.writeLong(entry.getValue().size);
+					out.writeLong(entry.getValue().modified);
+					out.writeUTF(entry.getValue().digest);
+					out.writeInt(entry.getValue().references.size());
+					for (String reference : entry.getValue().references)
+						out.writeUTF(reference);
+				}
+			}
+			Files.move(temp, getDirectory().resolve(INDEX), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		}
+		catch (IOException ioe)
+		{
+			println("sourcepath cache: cannot write index: "+ioe.getMessage());
+		}
+	}
+
+	private static String digest(Path source)
+	{
+		try
+		{
+			MessageDigest md = ScriptCache.newDigest();
+			md.update(Files.readAllBytes(source));
+			return ScriptCache.toHex(md.digest());
+		}
+		catch (IOException ioe)
+		{
+			return "";
+		}
+	}
+
+	private static BasicFileAttributes attributes(Path path)
+	{
+		try
+		{
+			return Files.readAttributes(path, BasicFileAttributes.class);
+		}
+		catch (IOException ioe)
+		{
+			return null;
+		}
+	}
+
+	private static void touch(Path path)
+	{
+		try
+		{
+			Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis()));
+		}
+		catch (IOException ioe)
+		{
+			println("sourcepath cache: cannot touch "+path+": "+ioe.getMessage());
+		}
+	}
+
+	private static void delete(Path path)
+	{
+		try
+		{
+			Files.deleteIfExists(path);
+		}
+		catch (IOException ioe)
+		{
+			println("sourcepath cache: cannot delete "+path+": "+ioe.getMessage());
+		}
+	}
+
+	private static void println(Object obj)
+	{
+		Console.getStandard().println(obj);
+	}
+}
+// vi:set tabstop=4 hardtabs=4 shiftwidth=4:
@@ -0,0 +1,260 @@
+// PatroDyne: Patron Supported Dynamic Executables, http://patrodyne.org
+// Released under LGPL license. See terms at http://www.gnu.org.
+package org.patrodyne.scripting.java;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * <p>Record where the wall time of a script run goes: JVM boot, directive
+ * parsing, dependency resolution, class path construction, compilation,
+ * class definition and the script's main method.</p>
+ *
+ * <p>Each phase is timed with the monotonic {@link System#nanoTime()} clock,
+ * relative to the creation of the profiler. The first profiler in a process
+ * also records the <code>jvm</code> phase: the time from process start to its
+ * creation. Phases may nest and repeat; for example, <code>compile</code>
+ * falls within <code>eval</code>.</p>
+ *
+ * <p>Enable with the <code>//= profile-startup=true</code> directive, or
+ * <code>-Dorg.patrodyne.scripting.java.profile-startup=true</code>, to print a
+ * table at {@link Verbose#DEBUG}. Any other value, except <code>false</code>,
+ * names a file where a JSON document is appended on one line for each run.</p>
+ *
+ * @author Rick O'Sullivan
+ */
+public class StartupProfiler
+{
+	/** Represents the name of the directive that enables this profiler. */
+	public static final String PROFILE_STARTUP = "profile-startup";
+
+	// Represents the phase from process start to the first profiler.
+	private static final String JVM = "jvm";
+
+	// Is there a profiler that recorded the JVM boot phase?
+	private static final AtomicBoolean booted = new AtomicBoolean();
+
+	// A named interval, in nanoseconds relative to the origin; open until its end is set.
+	private static class Phase
+	{
+		private final String name;
+		private final long start;
+		private long end = -1;
+
+		private Phase(String name, long start)
+		{
+			this.name = name;
+			this.start = start;
+		}
+	}
+
+	private final long origin = System.nanoTime();
+	private final long epochMillis = System.currentTimeMillis();
+	private final List<Phase> phases = new ArrayList<Phase>();
+	private boolean boot;
+
+	private String scriptName;
+	/**
+	 * Get the name of the profiled script.
+	 * @return The script name.
+	 */
+	public String getScriptName()
+	{
+		return scriptName;
+	}
+	/**
+	 * Set the name of the profiled script.
+	 * @param scriptName The script name.
+	 */
+	public void setScriptName(String scriptName)
+	{
+		this.scriptName = scriptName;
+	}
+
+	/**
+	 * Construct a profiler whose origin is now. When it is the first in this
+	 * process, record the JVM boot phase.
+	 */
+	public StartupProfiler()
+	{
+		boot = booted.compareAndSet(false, true);
+	}
+
+	// Add the JVM boot phase, once. The management API is loaded only when a
+	// profile is reported, so that it does not slow down runs without one.
+	private void addBootPhase()
+	{
+		if ( boot )
+		{
+			boot = false;
+			long started = ManagementFactory.getRuntimeMXBean().getStartTime();
+			Phase phase = new Phase(JVM, -Math.max(0, epochMillis - started) * 1000000L);
+			phase.end = 0;
+			phases.add(0, phase);
+		}
+	}
+
+	/**
+	 * Begin a phase.
+	 * @param name The phase name.
+	 */
+	public synchronized void begin(String name)
+	{
+		phases.add(new Phase(name, System.nanoTime() - origin));
+	}
+
+	/**
+	 * End the most recent open phase of the given name.
+	 * @param name The phase name.
+	 */
+	public synchronized void end(String name)
+	{
+		long now = System.nanoTime() - origin;
+		for (int index = phases.size() - 1; index >= 0; --index)
+		{
+			Phase phase = phases.get(index);
+			if ( (phase.end < 0) && phase.name.equals(name) )
+			{
+				phase.end = now;
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Get the profiler setting from the first of:
+	 * <ol>
+	 * <li>Directive: profile-startup</li>
+	 * <li>-Dorg.patrodyne.scripting.java.profile-startup</li>
+	 * </ol>
+	 *
+	 * @param directives The directive properties of a script.
+	 *
+	 * @return <code>true</code>, a file name or null when profiling is disabled.
+	 */
+	public static String getSetting(Properties directives)
+	{
+		String setting = directives.getProperty(PROFILE_STARTUP,
+			System.getProperty(JavaCodeScriptEngine.SYSPROP_PREFIX + PROFILE_STARTUP));
+		if ( (setting == null) || setting.isEmpty() || Boolean.FALSE.toString().equalsIgnoreCase(setting) )
+			return null;
+		return setting;
+	}
+
+	/**
+	 * Print this profile as a table at {@link Verbose#DEBUG} when the setting is
+	 * <code>true</code>; otherwise, append it as JSON to the file named by the setting.
+	 *
+	 * @param setting The profiler setting.
+	 */
+	public void report(String setting)
+	{
+		if ( Boolean.TRUE.toString().equalsIgnoreCase(setting) )
+			Console.getStandard().println(this);
+		else
+		{
+			try
+			{
+				File file = new File(setting);
+				Files.write(file.toPath(), (toJson()+System.lineSeparator()).getBytes(StandardCharsets.UTF_8),
+					StandardOpenOption.CREATE, StandardOpenOption.APPEND, StandardOpenOption.WRITE);
+			}
+			catch (IOException ioe)
+			{
+				Console.getStandard().errorln("cannot write startup profile "+setting, ioe);
+			}
+		}
+	}
+
+	/**
+	 * Format this profile as a JSON document with nanosecond timestamps
+	 * relative to the origin; the <code>jvm</code> phase starts before it.
+	 *
+	 * @return A JSON document on one line.
+	 */
+	public synchronized String toJson()
+	{
+		addBootPhase();
+		StringBuilder sb = new StringBuilder("{");
+		sb.append("\"script\":").append(quote(getScriptName()));
+		sb.append(",\"epochMillis\":").append(epochMillis);
+		sb.append(",\"pid\":").append(ProcessHandle.current().pid());
+		sb.append(",\"phases\":[");
+		for (int index = 0; index < phases.size(); ++index)
+		{
+			Phase phase = phases.get(index);
+			if ( index > 0 )
+				sb.append(',');
+			sb.append("{\"name\":").append(quote(phase.name));
+			sb.append(",\"startNanos\":").append(phase.start);
+			sb.append(",\"endNanos\":").append(end(phase));
+			sb.append(",\"durationNanos\":").append(end(phase) - phase.start);
+			sb.append('}');
+		}
+		sb.append("]}");
+		return sb.toString();
+	}
+
+	/**
+	 * Format this profile as a table of milliseconds, indented by nesting.
+	 * @return A human readable startup profile.
+	 */
+	@Override
+	public synchronized String toString()
+	{
+		addBootPhase();
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("Startup> %s%n", (getScriptName() != null) ? getScriptName() : ""));
+		sb.append(String.format("  %-24s %10s %10s%n", "phase", "start ms", "time ms"));
+		for (Phase phase : phases)
+		{
+			StringBuilder name = new StringBuilder();
+			for (Phase outer : phases)
+			{
+				if ( (outer != phase) && (outer.start <= phase.start) && (end(outer) >= end(phase)) && !JVM.equals(outer.name) )
+					name.append("  ");
+			}
+			name.append(phase.name);
+			sb.append(String.format("  %-24s %10.1f %10.1f%n", name, millis(phase.start), millis(end(phase) - phase.start)));
+		}
+		return sb.toString();
+	}
+
+	// The end of a phase, or now when the phase is still open.
+	private long end(Phase phase)
+	{
+		return (phase.end >= 0) ? phase.end : System.nanoTime() - origin;
+	}
+
+	private static double millis(long nanos)
+	{
+		return nanos / 1e6;
+	}
+
+	// Quote a string as a JSON value.
+	private static String quote(String value)
+	{
+		if ( value == null )
+			return "null";
+		StringBuilder sb = new StringBuilder("\"");
+		for (char ch : value.toCharArray())
+		{
+			if ( (ch == '"') || (ch == '\\') )
+				sb.append('\\').append(ch);
+			else if ( ch < ' ' )
+				sb.append(String.format("\\u%04x", (int) ch));
+			else
+				sb.append(ch);
+		}
+		return sb.append('"').toString();
+	}
+}
+// vi:set tabstop=4 hardtabs=4 shiftwidth=4:
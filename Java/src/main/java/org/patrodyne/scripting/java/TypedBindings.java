@@ -0,0 +1,395 @@
+// PatroDyne: Patron Supported Dynamic Executables, http://patrodyne.org
+// Released under LGPL license. See terms at http://www.gnu.org.
+package org.patrodyne.scripting.java;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Parameter;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.lang.model.SourceVersion;
+import javax.script.Bindings;
+import javax.script.ScriptException;
+
+/**
+ * <p>Pass the bindings of a script as typed parameters of its main method.</p>
+ *
+ * <p>Before compiling, each engine scope binding whose name is a Java
+ * identifier is declared as a parameter of the main method of the main
+ * class, before its arguments, typed by its value: a primitive type for a
+ * boxed value, otherwise the nearest public class or interface of the value.
+ * Each run passes the values of its own bindings; therefore, the main
+ * method reads a binding as a plain local variable, without a map lookup,
+ * a cast or unboxing, and concurrent runs of one class do not share them.</p>
+ *
+ * <p>The class is compiled with <code>-parameters</code>, so the names of
+ * the parameters are read from the class, and is marked by a generated
+ * field, so that only classes compiled for typed bindings are run with
+ * them. A generated <code>main(String[])</code> method keeps the class
+ * recognizable as a program. The generated declarations are on the line of
+ * the opening brace of the class, so the line numbers of the script are
+ * unchanged. A class compiled for bindings of some types runs with any
+ * later bindings of the same types.</p>
+ *
+ * <p>This class is thread-safe.</p>
+ *
+ * @author Rick O'Sullivan
+ */
+final class TypedBindings
+{
+	/** The name of the field that marks a class compiled for typed bindings. */
+	static final String MARKER = "typedBindings$";
+
+	// The option that keeps the names of the parameters in the class file.
+	private static final String PARAMETERS_OPTION = "-parameters";
+
+	// The type of the spread handle to the main method.
+	private static final MethodType RUN_TYPE = MethodType.methodType(void.class, String[].class, Object[].class);
+
+	// The attributes that configure the engine rather than the script.
+	private static final Set<String> CONFIGURATION = new HashSet<String>(Arrays.asList(
+		"context", JavaCodeScriptEngine.SOURCEPATH, JavaCodeScriptEngine.CLASSPATH,
+		JavaCodeScriptEngine.OPTIONS, JavaCodeScriptEngine.MAINCLASS, JavaCodeScriptEngine.ADDMAIN,
+		JavaCodeScriptEngine.PARENTLOADER, JavaCodeScriptEngine.CACHE, JavaCodeScriptEngine.CLASSCACHE,
+		JavaCodeScriptEngine.TIERED, JavaCodeScriptEngine.SOURCEPATHCACHE, JavaCodeScriptEngine.PROFILER,
+		JavaCodeScriptEngine.BUNDLE, JavaCodeScriptEngine.CLASSSTORE, JavaCodeScriptEngine.TYPEDBINDINGS));
+
+	// A class declaration: its modifiers, at the start of a line, then its name.
+	private static final Pattern CLASS_DECLARATION =
+		Pattern.compile("(?m)^[ \\t]*(?:(?:public|protected|private|abstract|static|final|strictfp)\\s+)*class\\s+([\\w$]+)\\b[^{;]*\\{");
+
+	// The declaration of a main method, up to its array of arguments.
+	private static final Pattern MAIN_DECLARATION =
+		Pattern.compile("\\bstatic\\s+(?:final\\s+)?void\\s+main\\s*\\(\\s*(?:final\\s+)?(?:java\\s*\\.\\s*lang\\s*\\.\\s*)?String\\b");
+
+	private static final TypedBindings NONE = new TypedBindings(new String[0], new Class<?>[0], null);
+
+	private static final ClassValue<TypedBindings> typedBindings = new ClassValue<TypedBindings>()
+	{
+		@Override
+		protected TypedBindings computeValue(Class<?> clazz)
+		{
+			return resolve(clazz);
+		}
+	};
+
+	/**
+	 * Get the binding parameters of a class; reflection does not initialize the class.
+	 * @param clazz A script class.
+	 * @return The binding parameters, empty unless the class was compiled for typed bindings.
+	 */
+	static TypedBindings of(Class<?> clazz)
+	{
+		return typedBindings.get(clazz);
+	}
+
+	private final String[] names;
+	private final Class<?>[] types;
+	private final MethodHandle main;
+
+	private TypedBindings(String[] names, Class<?>[] types, MethodHandle main)
+	{
+		this.names = names;
+		this.types = types;
+		this.main = main;
+	}
+
+	/**
+	 * Does the class take binding parameters?
+	 * @return True when the class was not compiled for typed bindings.
+	 */
+	boolean isEmpty()
+	{
+		return main == null;
+	}
+
+	/**
+	 * Get the values of the binding parameters from the bindings of a run.
+	 *
+	 * @param bindings The engine scope bindings of a run.
+	 *
+	 * @return The values, in the order of the parameters.
+	 *
+	 * @throws ScriptException When a binding is missing or of another type.
+	 */
+	Object[] values(Bindings bindings)
+		throws ScriptException
+	{
+		Object[] values = new Object[names.length];
+		for (int index = 0; index < names.length; ++index)
+		{
+			Object value = bindings.get(names[index]);
+			Class<?> type = types[index];
+			boolean fits = type.isPrimitive()
+				? (value != null) && (MethodType.methodType(type).wrap().returnType() == value.getClass())
+				: (value == null) || type.isInstance(value);
+			if ( !fits )
+				throw new ScriptException("binding " + names[index] + " does not fit its parameter: " + value);
+			values[index] = value;
+		}
+		return values;
+	}
+
+	/**
+	 * Call the main method with the values of the binding parameters.
+	 *
+	 * @param args The arguments of the main method.
+	 * @param values The values from {@link #values(Bindings)}.
+	 *
+	 * @throws Throwable Any exception thrown by the main method.
+	 */
+	void main(String[] args, Object[] values)
+		throws Throwable
+	{
+		main.invokeExact(args, values);
+	}
+
+	/**
+	 * Declare the bindings as binding parameters.
+	 *
+	 * @param bindings The engine scope bindings.
+	 *
+	 * @return The parameter declarations, or null when no binding is a Java identifier.
+	 */
+	static String declare(Bindings bindings)
+	{
+		if ( bindings == null )
+			return null;
+		// Sort by name, so that the same bindings declare the same source.
+		Map<String, String> parameters = new TreeMap<String, String>();
+		for (Map.Entry<String, Object> binding : bindings.entrySet())
+		{
+			String name = binding.getKey();
+			if ( SourceVersion.isName(name) && (name.indexOf('.') < 0) && !CONFIGURATION.contains(name) )
+				parameters.put(name, typeName(binding.getValue()));
+		}
+		if ( parameters.isEmpty() )
+			return null;
+		StringBuilder declarations = new StringBuilder();
+		for (Map.Entry<String, String> parameter : parameters.entrySet())
+		{
+			declarations.append(parameter.getValue()).append(' ')
+				.append(parameter.getKey()).append(", ");
+		}
+		return declarations.toString();
+	}
+
+	/**
+	 * Add the option that keeps the names of the parameters in the class file.
+	 *
+	 * @param options The compiler options.
+	 *
+	 * @return The options with <code>-parameters</code>.
+	 */
+	static String[] options(String[] options)
+	{
+		if ( Arrays.asList(options).contains(PARAMETERS_OPTION) )
+			return options;
+		String[] withParameters = Arrays.copyOf(options, options.length + 1);
+		withParameters[options.length] = PARAMETERS_OPTION;
+		return withParameters;
+	}
+
+	/**
+	 * Insert the binding parameters before the arguments of the main method
+	 * of a class, the named class when the source declares it, otherwise its
+	 * first class, and mark the class. Comments and literals are skipped.
+	 *
+	 * @param source The source of a script.
+	 * @param className The simple name of the main class.
+	 * @param declarations The declarations of the binding parameters.
+	 *
+	 * @return The source with the parameters or the source as is when its class declares no main method.
+	 */
+	static String inject(String source, String className, String declarations)
+	{
+		String code = blank(source);
+		Matcher declaration = CLASS_DECLARATION.matcher(code);
+		int brace = -1;
+		while ( declaration.find() )
+		{
+			if ( brace < 0 )
+				brace = declaration.end();
+			if ( declaration.group(1).equals(className) )
+			{
+				brace = declaration.end();
+				break;
+			}
+		}
+		if ( brace < 0 )
+			return source;
+		// The main method is a member of the class, at a depth of one brace.
+		Matcher main = MAIN_DECLARATION.matcher(code);
+		int depth = 1;
+		int position = brace;
+		while ( main.find(position) )
+		{
+			for (int index = position; index < main.start(); ++index)
+			{
+				char c = code.charAt(index);
+				if ( c == '{' )
+					++depth;
+				else if ( c == '}' && (--depth == 0) )
+					return source;
+			}
+			if ( depth == 1 )
+			{
+				int parameters = code.indexOf('(', main.start()) + 1;
+				return source.substring(0, brace) +
+					" public static final boolean " + MARKER + " = true;" +
+					" public static void main(String[] args) { throw new UnsupportedOperationException(\"typed bindings\"); }" +
+					source.substring(brace, parameters) + declarations + source.substring(parameters);
+			}
+			position = main.start() + 1;
+		}
+		return source;
+	}
+
+	// Replace comments and literals by spaces, keeping the line breaks, so
+	// that declarations are matched in code only, at the same offsets.
+	private static String blank(String source)
+	{
+		StringBuilder code = new StringBuilder(source);
+		int index = 0;
+		while ( index < code.length() )
+		{
+			char c = code.charAt(index);
+			int end = index + 1;
+			if ( source.startsWith("//", index) )
+				end = indexOrEnd(source, "\n", index);
+			else if ( source.startsWith("/*", index) )
+				end = indexOrEnd(source, "*/", index + 2) + 2;
+			else if ( (c == '"') || (c == '\'') )
+			{
+				while ( (end < source.length()) && (source.charAt(end) != c) && (source.charAt(end) != '\n') )
+					end += (source.charAt(end) == '\\') ? 2 : 1;
+				++end;
+			}
+			else
+			{
+				++index;
+				continue;
+			}
+			end = Math.min(end, code.length());
+			for (int blank = index; blank < end; ++blank)
+			{
+				if ( code.charAt(blank) != '\n' )
+					code.setCharAt(blank, ' ');
+			}
+			index = end;
+		}
+		return code.toString();
+	}
+
+	private static int indexOrEnd(String source, String token, int from)
+	{
+		int index = source.indexOf(token, from);
+		return (index < 0) ? source.length() : index;
+	}
+
+	// The type of the parameter of a value.
+	private static String typeName(Object value)
+	{
+		if ( value == null )
+			return Object.class.getName();
+		Class<?> type = value.getClass();
+		Class<?> primitive = MethodType.methodType(type).unwrap().returnType();
+		if ( primitive.isPrimitive() )
+			return primitive.getName();
+		return accessibleType(type).getCanonicalName();
+	}
+
+	// The class, or else the nearest super class or interface with methods,
+	// that the script can name.
+	private static Class<?> accessibleType(Class<?> type)
+	{
+		for (Class<?> c = type; c != null; c = c.getSuperclass())
+		{
+			if ( isAccessible(c) )
+				return c;
+			for (Class<?> i : c.getInterfaces())
+			{
+				if ( isAccessible(i) && (i.getMethods().length > 0) )
+					return i;
+			}
+		}
+		return Object.class;
+	}
+
+	private static boolean isAccessible(Class<?> type)
+	{
+		if ( type.getCanonicalName() == null )
+			return false;
+		for (Class<?> c = type; c != null; c = c.getEnclosingClass())
+		{
+			if ( !Modifier.isPublic(c.getModifiers()) )
+				return false;
+		}
+		return true;
+	}
+
+	// Find the main method that takes the binding parameters of a marked
+	// class and spread it to take their values as an array, after the arguments.
+	private static TypedBindings resolve(Class<?> clazz)
+	{
+		try
+		{
+			clazz.getDeclaredField(MARKER);
+		}
+		catch (NoSuchFieldException nsfe)
+		{
+			return NONE;
+		}
+		for (Method method : clazz.getDeclaredMethods())
+		{
+			Class<?>[] parameterTypes = method.getParameterTypes();
+			if ( !"main".equals(method.getName()) || !Modifier.isStatic(method.getModifiers()) ||
+				(parameterTypes.length < 2) || (parameterTypes[parameterTypes.length - 1] != String[].class) )
+				continue;
+			int count = parameterTypes.length - 1;
+			Parameter[] parameters = method.getParameters();
+			String[] names = new String[count];
+			for (int index = 0; index < count; ++index)
+			{
+				if ( !parameters[index].isNamePresent() )
+					throw new IllegalStateException("no parameter names in " + method);
+				names[index] = parameters[index].getName();
+			}
+			try
+			{
+				if ( !Modifier.isPublic(method.getModifiers()) || !Modifier.isPublic(clazz.getModifiers()) )
+				{
+					// try to relax access
+					method.setAccessible(true);
+				}
+				MethodHandle handle = MethodHandles.publicLookup().unreflect(method);
+				// Move the arguments first, then spread the values after them.
+				Class<?>[] objects = new Class<?>[count];
+				Arrays.fill(objects, Object.class);
+				handle = handle.asType(MethodType.methodType(void.class, objects).appendParameterTypes(String[].class));
+				int[] reorder = new int[count + 1];
+				for (int index = 0; index < count; ++index)
+					reorder[index] = index + 1;
+				MethodType runType = MethodType.methodType(void.class, String[].class).appendParameterTypes(objects);
+				handle = MethodHandles.permuteArguments(handle, runType, reorder);
+				return new TypedBindings(names, Arrays.copyOf(parameterTypes, count),
+					handle.asSpreader(Object[].class, count).asType(RUN_TYPE));
+			}
+			catch (IllegalAccessException | RuntimeException ex)
+			{
+				throw new IllegalStateException(ex);
+			}
+		}
+		return NONE;
+	}
+}
+// vi:set tabstop=4 hardtabs=4 shiftwidth=4:
@@ -2,17 +2,23 @@
 // Released under LGPL license. See terms at http://www.gnu.org.
 package org.patrodyne.scripting.javabang;
 
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileFilter;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.LineNumberReader;
 import java.io.Reader;
+import java.io.StringReader;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 
 import javax.script.ScriptContext;
@@ -23,13 +29,19 @@ import javax.script.SimpleScriptContext;
 
 import org.eclipse.aether.RepositoryException;
 import org.eclipse.aether.resolution.ArtifactResult;
+import org.patrodyne.scripting.java.ClassFileInfo;
+import org.patrodyne.scripting.java.CompilationResult;
 import org.patrodyne.scripting.java.Console;
 import org.patrodyne.scripting.java.JavaCodeScriptEngine;
 import org.patrodyne.scripting.java.JavaCodeScriptEngineFactory;
+import org.patrodyne.scripting.java.JavaCompiler;
 import org.patrodyne.scripting.java.MemoryClassLoader;
+import org.patrodyne.scripting.java.Repl;
 import org.patrodyne.scripting.java.ScriptReader;
+import org.patrodyne.scripting.java.StartupProfiler;
 import org.patrodyne.scripting.java.Verbose;
 import org.patrodyne.scripting.javabang.aether.ResolveTransitiveDependencies;
+import org.patrodyne.scripting.javabang.daemon.Daemon;
 
 /**
  * Execute a program using the JavaCode script engine
@@ -78,6 +90,11 @@ public class Execute implements ScriptReader
 	public static String DIRECTIVE_EXCLUDE_DEPENDENCY = DIRECTIVE_COMMENT+"-";
 	public static String DIRECTIVE_INCLUDE_SOURCEPATH = DIRECTIVE_COMMENT+"&";
 
+	// Commands
+	public static String COMMAND_DAEMON = "--daemon";
+	public static String COMMAND_PACKAGE = "--package";
+	public static String COMMAND_PACKAGE_FAT = "--fat";
+
 	// Directive Default Values
 	private static String DEFAULT_LOCAL_REPOSITORY =
 		System.getProperty("user.home")+"/.m2/repository";
@@ -266,6 +283,87 @@ public class Execute implements ScriptReader
 		return options;
 	}
 
+	private File workingDirectory;
+	/**
+	 * Get the directory used to resolve a relative script file name.
+	 * @return The working directory or null for the process working directory.
+	 */
+	public File getWorkingDirectory()
+	{
+		return workingDirectory;
+	}
+	/**
+	 * Set the directory used to resolve a relative script file name.
+	 * @param workingDirectory The working directory to set.
+	 */
+	public void setWorkingDirectory(File workingDirectory)
+	{
+		this.workingDirectory = workingDirectory;
+	}
+
+	private ScriptEngineFactory scriptEngineFactory;
+	/**
+	 * Get the factory used to create the script engine. The default
+	 * is a new factory that uses this instance as the ScriptReader.
+	 * @return The script engine factory.
+	 */
+	public ScriptEngineFactory getScriptEngineFactory()
+	{
+		if ( scriptEngineFactory == null )
+			setScriptEngineFactory(new JavaCodeScriptEngineFactory(this));
+		return scriptEngineFactory;
+	}
+	/**
+	 * Set the factory used to create the script engine. A shared
+	 * factory keeps its compiled scripts warm between runs.
+	 * @param scriptEngineFactory The script engine factory to set.
+	 */
+	public void setScriptEngineFactory(ScriptEngineFactory scriptEngineFactory)
+	{
+		this.scriptEngineFactory = scriptEngineFactory;
+	}
+
+	private Map<String, Object> attributes;
+	/**
+	 * Get additional attributes for the engine scope of the script
+	 * context. A <code>classpath</code> attribute replaces the
+	 * declared class path system property.
+	 * @return The additional script context attributes.
+	 */
+	public Map<String, Object> getAttributes()
+	{
+		if ( attributes == null )
+			setAttributes(new HashMap<String, Object>());
+		return attributes;
+	}
+	/**
+	 * Set additional attributes for the engine scope of the script context.
+	 * @param attributes The additional script context attributes to set.
+	 */
+	public void setAttributes(Map<String, Object> attributes)
+	{
+		this.attributes = attributes;
+	}
+
+	private Map<String, DynamicURLClassLoader> parentLoaders;
+	/**
+	 * Get the parent class loaders, by class path, to reuse between runs.
+	 * @return The parent class loaders or null, when not reused.
+	 */
+	public Map<String, DynamicURLClassLoader> getParentLoaders()
+	{
+		return parentLoaders;
+	}
+	/**
+	 * Set the parent class loaders, by class path, to reuse between runs;
+	 * thus, keep their jars open. A null map disables reuse.
+	 * @param parentLoaders The parent class loaders to set.
+	 */
+	public void setParentLoaders(Map<String, DynamicURLClassLoader> parentLoaders)
+	{
+		this.parentLoaders = parentLoaders;
+	}
+
 	/**
 	 * Entry point for command line invocation of the JavaCode
 	 * Script Engine.
@@ -276,11 +374,39 @@ public class Execute implements ScriptReader
 	{
 		if ( args.length > 0 )
 		{
-			Execute executor = new Execute();
-			executor.run(args);
+			if ( COMMAND_DAEMON.equals(args[0]) )
+				Daemon.main(Arrays.copyOfRange(args, 1, args.length));
+			else if ( org.patrodyne.scripting.java.Execute.COMMAND_REPL.equals(args[0]) )
+			{
+				int status = new Execute().repl(Arrays.copyOfRange(args, 1, args.length));
+				if ( status != 0 )
+					System.exit(status);
+			}
+			else if ( COMMAND_PACKAGE.equals(args[0]) && (args.length > 1) )
+			{
+				int status = new Execute().pack(Arrays.copyOfRange(args, 1, args.length));
+				if ( status != 0 )
+					System.exit(status);
+			}
+			else if ( !org.patrodyne.scripting.java.Execute.cache(args[0]) )
+			{
+				Execute executor = new Execute();
+				int status = executor.run(args);
+				if ( status != 0 )
+					System.exit(status);
+			}
 		}
 		else
+		{
 			errorln("Usage: java -jar patrodyne-scripting-javabang-X.X.X.jar <filename> [args]");
+			errorln("       java -jar patrodyne-scripting-javabang-X.X.X.jar "+COMMAND_DAEMON);
+			errorln("       java -jar patrodyne-scripting-javabang-X.X.X.jar "+COMMAND_PACKAGE+" ["+COMMAND_PACKAGE_FAT+"] <filename> [jarfile]");
+			errorln("       java -jar patrodyne-scripting-javabang-X.X.X.jar "
+				+ org.patrodyne.scripting.java.Execute.COMMAND_REPL + " [filename]");
+			errorln("       java -jar patrodyne-scripting-javabang-X.X.X.jar "
+				+ org.patrodyne.scripting.java.Execute.COMMAND_CACHE_STATS + "|"
+				+ org.patrodyne.scripting.java.Execute.COMMAND_CACHE_PURGE);
+		}
 	}
 
 	/**
@@ -342,17 +468,30 @@ public class Execute implements ScriptReader
 		return s.substring(head.length()).trim();
 	}
 
-	// Run a program using the JavaCode script engine.
-	private void run(String[] args)
+	/**
+	 * Run a program using the JavaCode script engine.
+	 *
+	 * @param args The script file name followed by the script arguments.
+	 *
+	 * @return The exit status: zero on success; otherwise, non-zero.
+	 */
+	public int run(String[] args)
 	{
 		// Create script file.
 		File scriptFile = new File(args[0]);
+		if ( !scriptFile.isAbsolute() && (getWorkingDirectory() != null) )
+			scriptFile = new File(getWorkingDirectory(), args[0]);
 
 		// Verify script exists.
 		if ( scriptFile.exists() )
 		{
-			// Create a script engine manager and use this instance as the ScriptReader.
-			ScriptEngineFactory factory = new JavaCodeScriptEngineFactory(this);
+			// Profile the phases of this run, when enabled by the directives.
+			StartupProfiler profiler = new StartupProfiler();
+			profiler.setScriptName(scriptFile.getName());
+			String profilerSetting = null;
+
+			// Get the script engine factory, by default use this instance as the ScriptReader.
+			ScriptEngineFactory factory = getScriptEngineFactory();
 
 			// Create a script engine.
 			ScriptEngine engine = factory.getScriptEngine();
@@ -376,7 +515,10 @@ public class Execute implements ScriptReader
 			try (Reader reader = new FileReader(scriptFile))
 			{
 				// Load script into a string and parse directives.
+				profiler.begin("directives");
 				String script = loadScript(reader);
+				profiler.end("directives");
+				profilerSetting = StartupProfiler.getSetting(getProperties());
 
 				// Set scripting context attribute to add a Main method.
 				ctx.setAttribute(JavaCodeScriptEngine.ADDMAIN, getAddMain(), ScriptContext.ENGINE_SCOPE);
@@ -385,21 +527,38 @@ public class Execute implements ScriptReader
 				getConsole().setVerbose(getVerbose());
 
 				// Resolve Transitive Dependencies
+				profiler.begin("resolve");
 				ResolveTransitiveDependencies rtd = new ResolveTransitiveDependencies(this);
 				List<ArtifactResult> artifactResults = rtd.execute();
+				profiler.end("resolve");
 
-				DynamicURLClassLoader ducl = new DynamicURLClassLoader();
-				addClassPath(ducl);
-				for ( ArtifactResult artifactResult : artifactResults )
-					ducl.addURL(artifactResult.getArtifact().getFile().toURI().toURL());
+				profiler.begin("classpath");
+				String classPath = classpath(artifactResults);
+				DynamicURLClassLoader ducl = getParentLoader(classPath, artifactResults);
+				profiler.end("classpath");
 
 				// Add scripting context attributes.
+				for ( Map.Entry<String, Object> attribute : getAttributes().entrySet() )
+					ctx.setAttribute(attribute.getKey(), attribute.getValue(), ScriptContext.ENGINE_SCOPE);
+				if ( getAttributes().containsKey(JavaCodeScriptEngine.CLASSPATH) )
+					classPath = join(getDeclaredClassPath(), classPath);
 				ctx.setAttribute(JavaCodeScriptEngine.OPTIONS, getOptions(), ScriptContext.ENGINE_SCOPE);
-				ctx.setAttribute(JavaCodeScriptEngine.CLASSPATH, classpath(artifactResults), ScriptContext.ENGINE_SCOPE);
+				ctx.setAttribute(JavaCodeScriptEngine.CLASSPATH, classPath, ScriptContext.ENGINE_SCOPE);
 				ctx.setAttribute(JavaCodeScriptEngine.PARENTLOADER, ducl, ScriptContext.ENGINE_SCOPE);
+				if ( profilerSetting != null )
+					ctx.setAttribute(JavaCodeScriptEngine.PROFILER, profiler, ScriptContext.ENGINE_SCOPE);
+				if ( getProperties().containsKey(JavaCodeScriptEngine.CACHE) )
+					ctx.setAttribute(JavaCodeScriptEngine.CACHE, getProperties().getProperty(JavaCodeScriptEngine.CACHE), ScriptContext.ENGINE_SCOPE);
+				if ( getProperties().containsKey(JavaCodeScriptEngine.TIERED) )
+					ctx.setAttribute(JavaCodeScriptEngine.TIERED, getProperties().getProperty(JavaCodeScriptEngine.TIERED), ScriptContext.ENGINE_SCOPE);
+				if ( getProperties().containsKey(JavaCodeScriptEngine.SOURCEPATHCACHE.toLowerCase()) )
+					ctx.setAttribute(JavaCodeScriptEngine.SOURCEPATHCACHE, getProperties().getProperty(JavaCodeScriptEngine.SOURCEPATHCACHE.toLowerCase()), ScriptContext.ENGINE_SCOPE);
 
 				// Execute script code using a file reader.
+				profiler.begin("eval");
 				engine.eval(script, ctx);
+				profiler.end("eval");
+				return 0;
 			}
 			catch (RepositoryException rex)
 			{
@@ -413,17 +572,264 @@ public class Execute implements ScriptReader
 			{
 				errorln("cannot read script", ioe);
 			}
+			finally
+			{
+				if ( profilerSetting != null )
+					profiler.report(profilerSetting);
+			}
 		}
 		else
 			errorln("script does not exist: "+scriptFile);
+		return 1;
+	}
+
+	/**
+	 * <p>Compile a script with its resolved dependencies and write an executable
+	 * jar, so that production runs start with <code>java -jar</code> and never
+	 * load the compiler or the repository system.</p>
+	 *
+	 * <p>The jar holds the classes compiled from the script and the source path,
+	 * and names the class with a main method in its manifest. The dependencies,
+	 * the entries of the declared class path and the resolved artifacts, are
+	 * copied into a <code>lib</code> directory beside the jar or, with
+	 * <code>--fat</code>, flattened into the jar. The script context is not
+	 * available when the jar runs; thus, <code>setScriptContext</code> is not
+	 * called.</p>
+	 *
+	 * @param args An optional <code>--fat</code>, the script file name and the jar
+	 *             file name, by default the script name with a <code>.jar</code> extension.
+	 *
+	 * @return The exit status: zero on success; otherwise, non-zero.
+	 */
+	public int pack(String[] args)
+	{
+		boolean fat = COMMAND_PACKAGE_FAT.equals(args[0]);
+		if ( fat )
+			args = Arrays.copyOfRange(args, 1, args.length);
+		if ( args.length == 0 )
+		{
+			errorln("script file name expected");
+			return 1;
+		}
+
+		File scriptFile = new File(args[0]);
+		if ( !scriptFile.isAbsolute() && (getWorkingDirectory() != null) )
+			scriptFile = new File(getWorkingDirectory(), args[0]);
+		String scriptName = scriptFile.getName();
+		File jarFile = (args.length > 1) ? new File(args[1])
+			: new File(scriptName.replaceFirst("\\.java$", "") + ".jar");
+		if ( !jarFile.isAbsolute() && (getWorkingDirectory() != null) )
+			jarFile = new File(getWorkingDirectory(), jarFile.getPath());
+
+		if ( !scriptFile.exists() )
+		{
+			errorln("script does not exist: "+scriptFile);
+			return 1;
+		}
+
+		try (Reader reader = new FileReader(scriptFile))
+		{
+			// Load script into a string and parse directives.
+			String script = loadScript(reader);
+			getConsole().setVerbose(getVerbose());
+
+			// Resolve Transitive Dependencies
+			ResolveTransitiveDependencies rtd = new ResolveTransitiveDependencies(this);
+			List<ArtifactResult> artifactResults = rtd.execute();
+			String classPath = join(getDeclaredClassPath(), classpath(artifactResults));
+
+			// When directed, wrap the source in a program by adding a main method and class.
+			if ( getAddMain() )
+				script = getScriptEngineFactory().getProgram(script.split("[\\r\\n]+"));
+
+			// Compile, as the script engine would.
+			String sourcePath = System.getProperty(JavaCodeScriptEngine.SYSPROP_PREFIX + JavaCodeScriptEngine.SOURCEPATH);
+			CompilationResult result = new JavaCompiler().compileAll(Collections.singletonMap(scriptName, script),
+				null, sourcePath, classPath, getOptions()).get(scriptName);
+			if ( !result.isSuccess() )
+			{
+				errorln("cannot compile script: "+scriptFile);
+				return 1;
+			}
+
+			ScriptPackager packager = new ScriptPackager();
+			packager.setFat(fat);
+			packager.setClasses(result.getMemoryMap());
+			packager.setMainClass(getMainClass(result.getMemoryMap()));
+			if ( packager.getMainClass() == null )
+			{
+				errorln("no main method in "+scriptFile);
+				return 1;
+			}
+			// Package what the script was compiled against: the declared class path, then the artifacts.
+			String declaredClassPath = getDeclaredClassPath();
+			if ( (declaredClassPath != null) && !declaredClassPath.isEmpty() )
+			{
+				for ( String entry : declaredClassPath.split(File.pathSeparator) )
+				{
+					if ( entry.isEmpty() )
+						continue;
+					File dependency = new File(entry);
+					if ( !dependency.isAbsolute() && (getWorkingDirectory() != null) )
+						dependency = new File(getWorkingDirectory(), entry);
+					if ( !dependency.exists() )
+					{
+						errorln("class path entry does not exist: "+dependency);
+						return 1;
+					}
+					packager.getDependencies().add(dependency);
+				}
+			}
+			for ( ArtifactResult artifactResult : artifactResults )
+			{
+				if ( artifactResult.isResolved() )
+					packager.getDependencies().add(artifactResult.getArtifact().getFile());
+			}
+			packager.write(jarFile);
+			System.out.println("Packaged "+scriptFile+" into "+jarFile
+				+ (fat || packager.getDependencies().isEmpty() ? "" : " with "+ScriptPackager.LIBDIR+"/"));
+			return 0;
+		}
+		catch (RepositoryException rex)
+		{
+			errorln("cannot resolve dependencies", rex);
+		}
+		catch (ScriptException sex)
+		{
+			errorln("cannot compile script", sex);
+		}
+		catch (IOException ioe)
+		{
+			errorln("cannot package script", ioe);
+		}
+		return 1;
+	}
+
+	/**
+	 * <p>Read, evaluate and print snippets interactively, see {@link Repl}.</p>
+	 *
+	 * <p>The dependencies and properties declared by the directives of the
+	 * optional script are resolved once, before the first snippet; the rest of
+	 * the script is ignored. Every snippet is compiled against them by the same
+	 * warm compiler and loaded by the same parent class loader.</p>
+	 *
+	 * @param args The optional script file name.
+	 *
+	 * @return The exit status: zero on success; otherwise, non-zero.
+	 */
+	public int repl(String[] args)
+	{
+		File scriptFile = null;
+		if ( args.length > 0 )
+		{
+			scriptFile = new File(args[0]);
+			if ( !scriptFile.isAbsolute() && (getWorkingDirectory() != null) )
+				scriptFile = new File(getWorkingDirectory(), args[0]);
+			if ( !scriptFile.exists() )
+			{
+				errorln("script does not exist: "+scriptFile);
+				return 1;
+			}
+		}
+
+		try (Reader reader = (scriptFile != null) ? new FileReader(scriptFile) : new StringReader(""))
+		{
+			// Parse the directives.
+			loadScript(reader);
+			getConsole().setVerbose(getVerbose());
+
+			// Resolve Transitive Dependencies, once.
+			ResolveTransitiveDependencies rtd = new ResolveTransitiveDependencies(this);
+			List<ArtifactResult> artifactResults = rtd.execute();
+			String classPath = classpath(artifactResults);
+			DynamicURLClassLoader ducl = getParentLoader(classPath, artifactResults);
+
+			// Add scripting context attributes.
+			ScriptContext ctx = new SimpleScriptContext();
+			for ( Map.Entry<String, Object> attribute : getAttributes().entrySet() )
+				ctx.setAttribute(attribute.getKey(), attribute.getValue(), ScriptContext.ENGINE_SCOPE);
+			ctx.setAttribute(JavaCodeScriptEngine.OPTIONS, getOptions(), ScriptContext.ENGINE_SCOPE);
+			ctx.setAttribute(JavaCodeScriptEngine.CLASSPATH, join(getDeclaredClassPath(), classPath), ScriptContext.ENGINE_SCOPE);
+			ctx.setAttribute(JavaCodeScriptEngine.PARENTLOADER, ducl, ScriptContext.ENGINE_SCOPE);
+
+			BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+			new Repl(getScriptEngineFactory().getScriptEngine(), ctx).run(in, getConsole().getOutput());
+			return 0;
+		}
+		catch (RepositoryException rex)
+		{
+			errorln("cannot resolve dependencies", rex);
+		}
+		catch (ScriptException sex)
+		{
+			errorln("cannot read script", sex);
+		}
+		catch (IOException ioe)
+		{
+			errorln("cannot read snippet", ioe);
+		}
+		return 1;
+	}
+
+	// Get the main class from the first of:
+	// 1) Directive: mainclass
+	// 2) -Dorg.patrodyne.scripting.java.mainClass
+	// 3) A public class with a main method, then any class with a main method.
+	private String getMainClass(Map<String, byte[]> memoryMap)
+		throws IOException
+	{
+		String mainClass = getProperties().getProperty(JavaCodeScriptEngine.MAINCLASS.toLowerCase(),
+			System.getProperty(JavaCodeScriptEngine.SYSPROP_PREFIX + JavaCodeScriptEngine.MAINCLASS));
+		return (mainClass != null) ? mainClass : ClassFileInfo.findMainClass(memoryMap);
+	}
+
+	// Get the parent class loader for the declared and resolved class paths,
+	// reusing an earlier loader when enabled.
+	private DynamicURLClassLoader getParentLoader(String classPath, List<ArtifactResult> artifactResults)
+		throws MalformedURLException
+	{
+		String key = getDeclaredClassPath() + File.pathSeparator + classPath;
+		DynamicURLClassLoader ducl = (getParentLoaders() != null) ? getParentLoaders().get(key) : null;
+		if ( ducl == null )
+		{
+			ducl = new DynamicURLClassLoader();
+			addClassPath(ducl);
+			for ( ArtifactResult artifactResult : artifactResults )
+				ducl.addURL(artifactResult.getArtifact().getFile().toURI().toURL());
+			if ( getParentLoaders() != null )
+				getParentLoaders().put(key, ducl);
+		}
+		return ducl;
+	}
+
+	// Get the declared classpath from the first of:
+	// 1) Attribute: classpath
+	// 2) -Dorg.patrodyne.scripting.java.classpath
+	private String getDeclaredClassPath()
+	{
+		Object path = getAttributes().get(JavaCodeScriptEngine.CLASSPATH);
+		if ( path != null )
+			return path.toString();
+		else
+			return System.getProperty(JavaCodeScriptEngine.SYSPROP_PREFIX + JavaCodeScriptEngine.CLASSPATH);
+	}
+
+	// Join two paths with the path separator.
+	private static String join(String path1, String path2)
+	{
+		if ( (path1 == null) || path1.isEmpty() )
+			return path2;
+		else if ( (path2 == null) || path2.isEmpty() )
+			return path1;
+		else
+			return path1 + File.pathSeparator + path2;
 	}
 
 	// Need to add the declared classpath to the DUCL,
 	// so the dynamic artifacts can find resources (example: log4j.properties)
 	private void addClassPath(DynamicURLClassLoader ducl)
 	{
-		String path =
-			System.getProperty(JavaCodeScriptEngine.SYSPROP_PREFIX + JavaCodeScriptEngine.CLASSPATH);
+		String path = getDeclaredClassPath();
 		if ((path != null) && !path.isEmpty())
 		{
 			for (URL url : MemoryClassLoader.toURLs(path))
@@ -0,0 +1,308 @@
+// PatroDyne: Patron Supported Dynamic Executables, http://patrodyne.org
+// Released under LGPL license. See terms at http://www.gnu.org.
+package org.patrodyne.scripting.javabang;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import org.patrodyne.scripting.java.Console;
+
+/**
+ * <p>Write compiled script classes into an executable jar.</p>
+ *
+ * <p>By default, the dependencies are copied into a <code>lib</code>
+ * directory beside the jar and named by the <code>Class-Path</code> of its
+ * manifest. A fat jar holds the entries of the dependencies instead: their
+ * service files are merged, their signatures and module descriptors are
+ * dropped and the first of any other duplicate entry wins. A dependency is
+ * a jar or a directory of classes and resources.</p>
+ *
+ * @author Rick O'Sullivan
+ */
+public class ScriptPackager
+{
+	/** Represents the directory, beside the jar, for the dependencies of a thin jar. */
+	public static final String LIBDIR = "lib";
+
+	private static final String MANIFEST = "META-INF/MANIFEST.MF";
+	private static final String SERVICES = "META-INF/services/";
+	private static final String MODULE_INFO = "module-info.class";
+
+	private String mainClass;
+	/**
+	 * Get the name of the class whose main method runs the jar.
+	 * @return The main class name.
+	 */
+	public String getMainClass()
+	{
+		return mainClass;
+	}
+	/**
+	 * Set the name of the class whose main method runs the jar.
+	 * @param mainClass The main class name.
+	 */
+	public void setMainClass(String mainClass)
+	{
+		this.mainClass = mainClass;
+	}
+
+	private Map<String, byte[]> classes;
+	/**
+	 * Get the class name and byte code pairs to package.
+	 * @return The compiled classes.
+	 */
+	public Map<String, byte[]> getClasses()
+	{
+		if ( classes == null )
+			setClasses(new LinkedHashMap<String, byte[]>());
+		return classes;
+	}
+	/**
+	 * Set the class name and byte code pairs to package.
+	 * @param classes The compiled classes.
+	 */
+	public void setClasses(Map<String, byte[]> classes)
+	{
+		this.classes = classes;
+	}
+
+	private List<File> dependencies;
+	/**
+	 * Get the jars and directories the classes depend on.
+	 * @return The dependency jars and directories.
+	 */
+	public List<File> getDependencies()
+	{
+		if ( dependencies == null )
+			setDependencies(new ArrayList<File>());
+		return dependencies;
+	}
+	/**
+	 * Set the jars and directories the classes depend on.
+	 * @param dependencies The dependency jars and directories.
+	 */
+	public void setDependencies(List<File> dependencies)
+	{
+		this.dependencies = dependencies;
+	}
+
+	private boolean fat;
+	/**
+	 * Are the dependencies flattened into the jar?
+	 * @return True for a fat jar; otherwise, false.
+	 */
+	public boolean isFat()
+	{
+		return fat;
+	}
+	/**
+	 * Set whether the dependencies are flattened into the jar.
+	 * @param fat True for a fat jar; otherwise, false.
+	 */
+	public void setFat(boolean fat)
+	{
+		this.fat = fat;
+	}
+
+	/**
+	 * Write the executable jar and, for a thin jar, copy the dependencies
+	 * into the <code>lib</code> directory beside it.
+	 *
+	 * @param jar The jar file to write.
+	 *
+	 * @throws IOException When the jar or a dependency cannot be written or read.
+	 */
+	public void write(File jar)
+		throws IOException
+	{
+		Manifest manifest = new Manifest();
+		Attributes attributes = manifest.getMainAttributes();
+		attributes.put(Attributes.Name.MANIFEST_VERSION, "1.0");
+		attributes.put(new Attributes.Name("Created-By"), "patrodyne-scripting-javabang");
+		if ( getMainClass() != null )
+			attributes.put(Attributes.Name.MAIN_CLASS, getMainClass());
+		if ( !isFat() && !getDependencies().isEmpty() )
+			attributes.put(Attributes.Name.CLASS_PATH, copyDependencies(jar.getAbsoluteFile().getParentFile()));
+
+		try (OutputStream os = new FileOutputStream(jar);
+			JarOutputStream out = new JarOutputStream(os, manifest))
+		{
+			Set<String> names = new HashSet<String>();
+			names.add(MANIFEST);
+			for (Map.Entry<String, byte[]> entry : getClasses().entrySet())
+				put(out, names, entry.getKey().replace('.', '/') + ".class", entry.getValue());
+			if ( isFat() )
+				flatten(out, names);
+		}
+	}
+
+	// Copy the dependencies into the lib directory and return the Class-Path of the jar.
+	private String copyDependencies(File dir)
+		throws IOException
+	{
+		File libDir = new File(dir, LIBDIR);
+		if ( !libDir.isDirectory() && !libDir.mkdirs() )
+			throw new IOException("cannot create "+libDir);
+		StringBuilder classPath = new StringBuilder();
+		Set<String> names = new HashSet<String>();
+		for (File dependency : getDependencies())
+		{
+			// Artifacts of different groups may share a file name.
+			String name = dependency.getName();
+			for (int index = 2; !names.add(name); ++index)
+				name = index + "-" + dependency.getName();
+			if ( classPath.length() > 0 )
+				classPath.append(' ');
+			classPath.append(LIBDIR).append('/').append(name);
+			if ( dependency.isDirectory() )
+			{
+				// A Class-Path directory ends with a slash.
+				copyDirectory(dependency.toPath(), new File(libDir, name).toPath());
+				classPath.append('/');
+			}
+			else
+				Files.copy(dependency.toPath(), new File(libDir, name).toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+		return classPath.toString();
+	}
+
+	// Copy a directory dependency, replacing the files of an earlier copy.
+	private static void copyDirectory(final Path source, final Path target)
+		throws IOException
+	{
+		Files.walkFileTree(source, new SimpleFileVisitor<Path>()
+		{
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs)
+				throws IOException
+			{
+				Files.createDirectories(target.resolve(source.relativize(dir).toString()));
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+				throws IOException
+			{
+				Files.copy(file, target.resolve(source.relativize(file).toString()), StandardCopyOption.REPLACE_EXISTING);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	// Copy the entries of the dependencies into the jar.
+	private void flatten(final JarOutputStream out, final Set<String> names)
+		throws IOException
+	{
+		final Map<String, ByteArrayOutputStream> services = new LinkedHashMap<String, ByteArrayOutputStream>();
+		for (final File dependency : getDependencies())
+		{
+			if ( dependency.isDirectory() )
+			{
+				// The entries of a directory are its files, named relative to it.
+				final Path root = dependency.toPath();
+				Files.walkFileTree(root, new SimpleFileVisitor<Path>()
+				{
+					@Override
+					public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+						throws IOException
+					{
+						String name = root.relativize(file).toString().replace(File.separatorChar, '/');
+						try (InputStream in = Files.newInputStream(file))
+						{
+							add(out, names, services, dependency, name, in);
+						}
+						return FileVisitResult.CONTINUE;
+					}
+				});
+				continue;
+			}
+			try (JarFile jarFile = new JarFile(dependency))
+			{
+				for (JarEntry entry : Collections.list(jarFile.entries()))
+				{
+					if ( entry.isDirectory() )
+						continue;
+					try (InputStream in = jarFile.getInputStream(entry))
+					{
+						add(out, names, services, dependency, entry.getName(), in);
+					}
+				}
+			}
+		}
+		for (Map.Entry<String, ByteArrayOutputStream> service : services.entrySet())
+			put(out, names, service.getKey(), service.getValue().toByteArray());
+	}
+
+	// Add an entry of a dependency: merge a service file, drop a signature
+	// or module descriptor, otherwise write the entry once.
+	private static void add(JarOutputStream out, Set<String> names, Map<String, ByteArrayOutputStream> services,
+		File dependency, String name, InputStream in)
+		throws IOException
+	{
+		if ( isSignature(name) || name.endsWith(MODULE_INFO) )
+			return;
+		if ( name.startsWith(SERVICES) )
+		{
+			ByteArrayOutputStream service = services.get(name);
+			if ( service == null )
+			{
+				service = new ByteArrayOutputStream();
+				services.put(name, service);
+			}
+			in.transferTo(service);
+			service.write('\n');
+		}
+		else if ( !put(out, names, name, in.readAllBytes()) )
+			getConsole().println("package: duplicate "+name+" in "+dependency.getName());
+	}
+
+	// Write an entry once; return false when the name was written before.
+	private static boolean put(JarOutputStream out, Set<String> names, String name, byte[] bytes)
+		throws IOException
+	{
+		if ( !names.add(name) )
+			return false;
+		out.putNextEntry(new JarEntry(name));
+		out.write(bytes);
+		out.closeEntry();
+		return true;
+	}
+
+	// Is the entry a manifest or a signature of a signed jar?
+	private static boolean isSignature(String name)
+	{
+		String upper = name.toUpperCase();
+		return upper.equals(MANIFEST) || (upper.startsWith("META-INF/") &&
+			(upper.endsWith(".SF") || upper.endsWith(".DSA") || upper.endsWith(".RSA") || upper.endsWith(".EC")));
+	}
+
+	// Get the console for this thread.
+	private static Console getConsole()
+	{
+		return Console.getStandard();
+	}
+}
+// vi:set tabstop=4 hardtabs=4 shiftwidth=4:
@@ -59,6 +59,14 @@ public class ResolveTransitiveDependencies
 		setContext(context);
 	}
 
+	/**
+	 * Boot the shared repository system ahead of the first resolution.
+	 */
+	public static void warmUp()
+	{
+		RepositorySystemFactory.getRepositorySystem();
+	}
+
 	/**
 	 * Execute context to Resolve Transitive Dependencies.
 	 * @return A list of artifact results.
@@ -75,8 +83,8 @@ public class ResolveTransitiveDependencies
 				getContext().getVerbose().atLeast(Verbose.TRACE)
 			);
 
-		// The main entry point to the repository system.
-		RepositorySystem system = factory.newRepositorySystem();
+		// The main entry point to the repository system, shared between resolutions.
+		RepositorySystem system = RepositorySystemFactory.getRepositorySystem();
 
 		// Defines settings and components that control the repository system.
 		RepositorySystemSession session = factory.newRepositorySystemSession( system );
@@ -115,6 +115,21 @@ public class RepositorySystemFactory
 		setTrace(debug);
 	}
 
+	// Represents the repository system shared by all factories.
+	private static RepositorySystem repositorySystem;
+	/**
+	 * Get the repository system shared by all factories, booting it on
+	 * first use; thus, a resident process boots it only once.
+	 *
+	 * @return An instance of Aether's repository system.
+	 */
+	public static synchronized RepositorySystem getRepositorySystem()
+	{
+		if ( repositorySystem == null )
+			repositorySystem = ManualRepositorySystemFactory.newRepositorySystem();
+		return repositorySystem;
+	}
+
 	/**
 	 * Produce a new RepositorySystem instance that employs Aether's
 	 * built-in service locator infrastructure to wire up the system's components.
@@ -0,0 +1,226 @@
+// PatroDyne: Patron Supported Dynamic Executables, http://patrodyne.org
+// Released under LGPL license. See terms at http://www.gnu.org.
+package org.patrodyne.scripting.javabang.daemon;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.StringTokenizer;
+
+import org.patrodyne.scripting.java.JavaCodeScriptEngine;
+import org.patrodyne.scripting.java.ScriptCache;
+import org.patrodyne.scripting.javabang.Execute;
+
+/**
+ * <p>A thin client that runs a javabang script in a resident {@link Daemon}.</p>
+ *
+ * <p>The client forwards its arguments, working directory, environment,
+ * scripting system properties and standard input to the daemon, copies
+ * the script's standard output and error back and exits with the
+ * script's exit status. It loads neither the compiler nor the repository
+ * system; when no daemon is running, the script is run in this process.</p>
+ *
+ * <pre>
+ * java -cp patrodyne-scripting-javabang-X.X.X.jar org.patrodyne.scripting.javabang.daemon.Client &lt;filename&gt; [args]
+ * java -cp patrodyne-scripting-javabang-X.X.X.jar org.patrodyne.scripting.javabang.daemon.Client --stop
+ * </pre>
+ *
+ * @author Rick O'Sullivan
+ */
+public class Client
+{
+	/** Command: stop the daemon. */
+	public static final String COMMAND_STOP = "--stop";
+
+	// Scripting system properties to forward.
+	private static final String SYSPROP_PREFIX = "org.patrodyne.scripting.";
+
+	// The forwarded properties whose values are paths, resolved against the
+	// client's working directory; the constants are inlined by javac, so the
+	// client does not load the engine.
+	private static final List<String> PATH_PROPERTIES = Arrays.asList
+	(
+		JavaCodeScriptEngine.SYSPROP_PREFIX + JavaCodeScriptEngine.SOURCEPATH,
+		JavaCodeScriptEngine.SYSPROP_PREFIX + JavaCodeScriptEngine.CLASSPATH,
+		JavaCodeScriptEngine.SYSPROP_PREFIX + JavaCodeScriptEngine.BUNDLE,
+		ScriptCache.CACHE_DIR
+	);
+
+	/**
+	 * Entry point for the thin client.
+	 *
+	 * @param args The script file name and arguments, or --stop.
+	 */
+	public static void main(String[] args)
+	{
+		String[] address = address();
+		Socket socket = connect(address);
+		if ( socket == null )
+		{
+			if ( COMMAND_STOP.equals(firstOf(args)) )
+				System.err.println("javabang daemon is not running");
+			else
+				Execute.main(args);
+			return;
+		}
+		System.exit(run(socket, address[1], args));
+	}
+
+	// Read the published port and token, null when there is no daemon.
+	private static String[] address()
+	{
+		File daemonFile = Protocol.getDaemonFile();
+		try
+		{
+			if ( daemonFile.isFile() )
+			{
+				String[] address = new String(Files.readAllBytes(daemonFile.toPath()), StandardCharsets.UTF_8).trim().split("\\s+");
+				if ( address.length == 2 )
+					return address;
+			}
+		}
+		catch (IOException ioe)
+		{
+			// Not readable, run in process.
+		}
+		return null;
+	}
+
+	// Connect to the published daemon, null when it is not running.
+	private static Socket connect(String[] address)
+	{
+		if ( address == null )
+			return null;
+		try
+		{
+			return new Socket(InetAddress.getLoopbackAddress(), Integer.parseInt(address[0]));
+		}
+		catch (IOException | NumberFormatException ex)
+		{
+			return null;
+		}
+	}
+
+	// Send the request, relay the streams and return the exit status.
+	private static int run(Socket socket, String token, String[] args)
+	{
+		try (Socket connection = socket)
+		{
+			final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(connection.getOutputStream()));
+			DataInputStream in = new DataInputStream(new BufferedInputStream(connection.getInputStream()));
+
+			Protocol.Request request = new Protocol.Request();
+			request.token = token;
+			request.workingDirectory = System.getProperty("user.dir");
+			if ( COMMAND_STOP.equals(firstOf(args)) )
+				request.command = Protocol.STOP;
+			else
+			{
+				request.command = Protocol.RUN;
+				request.arguments.addAll(Arrays.asList(args));
+				request.environment.putAll(System.getenv());
+				for (String name : System.getProperties().stringPropertyNames())
+				{
+					if ( PATH_PROPERTIES.contains(name) )
+						request.properties.put(name, absolute(System.getProperty(name), request.workingDirectory));
+					else if ( name.startsWith(SYSPROP_PREFIX) )
+						request.properties.put(name, System.getProperty(name));
+				}
+			}
+			Protocol.writeRequest(out, request);
+
+			// Forward standard input.
+			Thread pump = new Thread("javabang-stdin")
+			{
+				@Override
+				public void run()
+				{
+					pump(System.in, out);
+				}
+			};
+			pump.setDaemon(true);
+			pump.start();
+
+			// Relay standard output and error until the exit status.
+			while ( true )
+			{
+				int type = in.readByte();
+				byte[] bytes = new byte[in.readInt()];
+				in.readFully(bytes);
+				if ( type == Protocol.STDOUT )
+					System.out.write(bytes);
+				else if ( type == Protocol.STDERR )
+					System.err.write(bytes);
+				else if ( type == Protocol.EXIT )
+				{
+					System.out.flush();
+					System.err.flush();
+					return new DataInputStream(new ByteArrayInputStream(bytes)).readInt();
+				}
+			}
+		}
+		catch (EOFException eofe)
+		{
+			System.err.println("javabang daemon: connection closed");
+		}
+		catch (IOException ioe)
+		{
+			System.err.println("javabang daemon: "+ioe.getMessage());
+		}
+		return 1;
+	}
+
+	// Copy standard input as frames, then an empty frame at end of input.
+	private static void pump(InputStream stdin, DataOutputStream out)
+	{
+		byte[] buffer = new byte[8 * 1024];
+		try
+		{
+			int length;
+			while ( (length = stdin.read(buffer)) > 0 )
+				Protocol.writeFrame(out, Protocol.STDIN, buffer, 0, length);
+			Protocol.writeFrame(out, Protocol.STDIN, buffer, 0, 0);
+		}
+		catch (IOException ioe)
+		{
+			// The connection is closed.
+		}
+	}
+
+	// Resolve relative entries of a path property against the working directory.
+	private static String absolute(String path, String workingDirectory)
+	{
+		StringBuilder absolute = new StringBuilder();
+		StringTokenizer st = new StringTokenizer(path, File.pathSeparator);
+		while (st.hasMoreTokens())
+		{
+			String token = st.nextToken();
+			File file = new File(token);
+			if ( absolute.length() > 0 )
+				absolute.append(File.pathSeparator);
+			if ( !file.isAbsolute() && (token.startsWith(".") || new File(workingDirectory, token).exists()) )
+				absolute.append(new File(workingDirectory, token).getAbsolutePath());
+			else
+				absolute.append(token);
+		}
+		return absolute.toString();
+	}
+
+	private static String firstOf(String[] args)
+	{
+		return (args.length > 0) ? args[0] : null;
+	}
+}
+// vi:set tabstop=4 hardtabs=4 shiftwidth=4:
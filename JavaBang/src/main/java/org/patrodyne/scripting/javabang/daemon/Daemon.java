@@ -0,0 +1,356 @@
+// PatroDyne: Patron Supported Dynamic Executables, http://patrodyne.org
+// Released under LGPL license. See terms at http://www.gnu.org.
+package org.patrodyne.scripting.javabang.daemon;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.SecureRandom;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.script.ScriptEngineFactory;
+import javax.script.ScriptException;
+
+import org.patrodyne.scripting.java.Console;
+import org.patrodyne.scripting.java.JavaCodeScriptEngine;
+import org.patrodyne.scripting.java.JavaCodeScriptEngineFactory;
+import org.patrodyne.scripting.java.JavaCompiler;
+import org.patrodyne.scripting.javabang.DynamicURLClassLoader;
+import org.patrodyne.scripting.javabang.Execute;
+import org.patrodyne.scripting.javabang.aether.ResolveTransitiveDependencies;
+
+/**
+ * <p>A resident javabang process that keeps the Java compiler, the
+ * repository system, compiled scripts and class path jars warm, and runs
+ * scripts on behalf of the thin {@link Client}.</p>
+ *
+ * <p>The daemon listens on a loopback port and publishes the port and a
+ * secret token in an owner-only file, see {@link Protocol#getDaemonFile()}.
+ * Each request runs in its own thread with its standard streams routed to
+ * the client, see {@link Redirect}. The client's environment is available
+ * to scripts as the <code>environment</code> attribute of the script
+ * context.</p>
+ *
+ * <p>Note: a script that calls <code>System.exit</code> stops the daemon
+ * and a script cannot change the daemon's working directory; relative
+ * script names are resolved against the client's working directory.</p>
+ *
+ * @author Rick O'Sullivan
+ */
+public class Daemon
+{
+	/** Represents the name of the context property for the client's environment. */
+	public static final String ENVIRONMENT = "environment";
+
+	// Scripting system properties forwarded by the client.
+	private static final String SYSPROP_PREFIX = JavaCodeScriptEngine.SYSPROP_PREFIX;
+
+	private ServerSocket serverSocket;
+	private ServerSocket getServerSocket()
+	{
+		return serverSocket;
+	}
+	private void setServerSocket(ServerSocket serverSocket)
+	{
+		this.serverSocket = serverSocket;
+	}
+
+	private String token;
+	private String getToken()
+	{
+		return token;
+	}
+	private void setToken(String token)
+	{
+		this.token = token;
+	}
+
+	private ScriptEngineFactory scriptEngineFactory;
+	/**
+	 * Get the script engine factory shared by all requests.
+	 * @return The shared script engine factory.
+	 */
+	public ScriptEngineFactory getScriptEngineFactory()
+	{
+		if ( scriptEngineFactory == null )
+			scriptEngineFactory = new JavaCodeScriptEngineFactory();
+		return scriptEngineFactory;
+	}
+
+	private Map<String, DynamicURLClassLoader> parentLoaders =
+		new ConcurrentHashMap<String, DynamicURLClassLoader>();
+	/**
+	 * Get the parent class loaders, by class path, shared by all requests.
+	 * @return The shared parent class loaders.
+	 */
+	public Map<String, DynamicURLClassLoader> getParentLoaders()
+	{
+		return parentLoaders;
+	}
+
+	/**
+	 * Start a daemon and serve requests until stopped.
+	 *
+	 * @param args Not used.
+	 */
+	public static void main(String[] args)
+	{
+		try
+		{
+			new Daemon().serve();
+		}
+		catch (IOException ioe)
+		{
+			Console.getStandard().errorln("daemon failed", ioe);
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Publish this daemon's address, warm up and serve requests until stopped.
+	 *
+	 * @throws IOException When the daemon cannot listen or publish its address.
+	 */
+	public void serve()
+		throws IOException
+	{
+		Redirect.install();
+		setServerSocket(new ServerSocket(0, 50, InetAddress.getLoopbackAddress()));
+		setToken(newToken());
+		final File daemonFile = Protocol.getDaemonFile();
+		publish(daemonFile, getServerSocket().getLocalPort(), getToken());
+		Runtime.getRuntime().addShutdownHook(new Thread()
+		{
+			@Override
+			public void run()
+			{
+				daemonFile.delete();
+			}
+		});
+		warmUp();
+		println("javabang daemon: listening on port "+getServerSocket().getLocalPort());
+		try
+		{
+			while ( !getServerSocket().isClosed() )
+			{
+				final Socket socket = getServerSocket().accept();
+				Thread handler = new Thread("javabang-request-"+socket.getPort())
+				{
+					@Override
+					public void run()
+					{
+						handle(socket);
+					}
+				};
+				handler.start();
+			}
+		}
+		catch (SocketException se)
+		{
+			// Stopped.
+		}
+		finally
+		{
+			daemonFile.delete();
+		}
+	}
+
+	/** Stop accepting requests. */
+	public void stop()
+	{
+		try
+		{
+			getServerSocket().close();
+		}
+		catch (IOException ioe)
+		{
+			errorln("cannot stop daemon", ioe);
+		}
+	}
+
+	// Load and exercise the compiler and the repository system.
+	private void warmUp()
+	{
+		try
+		{
+			new JavaCompiler().compile("Warmup.java", "class Warmup { }");
+		}
+		catch (ScriptException sex)
+		{
+			errorln("cannot warm up compiler", sex);
+		}
+		ResolveTransitiveDependencies.warmUp();
+	}
+
+	// Serve one client connection.
+	private void handle(Socket socket)
+	{
+		PipedInputStream stdin = null;
+		try (Socket connection = socket)
+		{
+			final DataInputStream in = new DataInputStream(new BufferedInputStream(connection.getInputStream()));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(connection.getOutputStream()));
+			Protocol.Request request = Protocol.readRequest(in);
+			if ( !getToken().equals(request.token) )
+				return;
+			if ( Protocol.STOP.equals(request.command) )
+			{
+				Protocol.writeExit(out, 0);
+				stop();
+				return;
+			}
+
+			// Pump the client's standard input into a pipe.
+			stdin = new PipedInputStream(64 * 1024);
+			final PipedOutputStream stdinPipe = new PipedOutputStream(stdin);
+			Thread pump = new Thread("javabang-stdin-"+socket.getPort())
+			{
+				@Override
+				public void run()
+				{
+					pump(in, stdinPipe);
+				}
+			};
+			pump.setDaemon(true);
+			pump.start();
+
+			PrintStream stdout = new PrintStream(new Protocol.FrameOutputStream(out, Protocol.STDOUT), true);
+			PrintStream stderr = new PrintStream(new Protocol.FrameOutputStream(out, Protocol.STDERR), true);
+			int status = 1;
+			Redirect.bind(stdin, stdout, stderr);
+			try
+			{
+				status = newExecute(request).run(request.arguments.toArray(new String[request.arguments.size()]));
+			}
+			catch (Throwable t)
+			{
+				Console.getStandard().errorln("cannot run script", t);
+			}
+			finally
+			{
+				stdout.flush();
+				stderr.flush();
+				Redirect.unbind();
+			}
+			Protocol.writeExit(out, status);
+		}
+		catch (IOException ioe)
+		{
+			errorln("request failed", ioe);
+		}
+		finally
+		{
+			close(stdin);
+		}
+	}
+
+	// Create an executor for the request that shares this daemon's warm state.
+	private Execute newExecute(Protocol.Request request)
+	{
+		Execute execute = new Execute();
+		execute.setWorkingDirectory(new File(request.workingDirectory));
+		execute.setScriptEngineFactory(getScriptEngineFactory());
+		execute.setParentLoaders(getParentLoaders());
+		execute.getAttributes().put(ENVIRONMENT, Collections.unmodifiableMap(request.environment));
+		// Forwarded system properties become script context attributes.
+		for (Map.Entry<String, String> property : request.properties.entrySet())
+		{
+			String name = property.getKey();
+			if ( name.startsWith(SYSPROP_PREFIX) && (name.indexOf('.', SYSPROP_PREFIX.length()) < 0) )
+				execute.getAttributes().put(name.substring(SYSPROP_PREFIX.length()), property.getValue());
+		}
+		return execute;
+	}
+
+	// Copy standard input frames into the pipe, until end of input.
+	private static void pump(DataInputStream in, PipedOutputStream pipe)
+	{
+		try
+		{
+			while ( true )
+			{
+				int type = in.readByte();
+				byte[] bytes = new byte[in.readInt()];
+				in.readFully(bytes);
+				if ( (type != Protocol.STDIN) || (bytes.length == 0) )
+					break;
+				pipe.write(bytes);
+				pipe.flush();
+			}
+		}
+		catch (IOException ioe)
+		{
+			// The connection or the script's input is closed.
+		}
+		finally
+		{
+			close(pipe);
+		}
+	}
+
+	// Publish the port and token in an owner-only file.
+	private static void publish(File daemonFile, int port, String token)
+		throws IOException
+	{
+		Path dir = daemonFile.getAbsoluteFile().getParentFile().toPath();
+		Files.createDirectories(dir);
+		Path temp = Files.createTempFile(dir, daemonFile.getName(), ".tmp");
+		if ( FileSystems.getDefault().supportedFileAttributeViews().contains("posix") )
+			Files.setPosixFilePermissions(temp, PosixFilePermissions.fromString("rw-------"));
+		Files.write(temp, (port+" "+token).getBytes(StandardCharsets.UTF_8));
+		Files.move(temp, daemonFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	private static String newToken()
+	{
+		byte[] bytes = new byte[16];
+		new SecureRandom().nextBytes(bytes);
+		StringBuilder hex = new StringBuilder();
+		for (byte b : bytes)
+			hex.append(String.format("%02x", b));
+		return hex.toString();
+	}
+
+	private static void close(Closeable closeable)
+	{
+		try
+		{
+			if ( closeable != null )
+				closeable.close();
+		}
+		catch (IOException ioe)
+		{
+			// Already closed.
+		}
+	}
+
+	private static void println(Object obj)
+	{
+		System.out.println(obj);
+	}
+
+	private static void errorln(Object obj, Throwable err)
+	{
+		Console.getStandard().errorln(obj, err);
+	}
+}
+// vi:set tabstop=4 hardtabs=4 shiftwidth=4:
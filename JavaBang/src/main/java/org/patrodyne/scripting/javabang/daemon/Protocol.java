@@ -0,0 +1,231 @@
+// PatroDyne: Patron Supported Dynamic Executables, http://patrodyne.org
+// Released under LGPL license. See terms at http://www.gnu.org.
+package org.patrodyne.scripting.javabang.daemon;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>The wire protocol between the javabang {@link Client} and {@link Daemon}.</p>
+ *
+ * <p>The client opens a connection and writes a {@link Request}: a version,
+ * the daemon's secret token, a command, the working directory, the script
+ * arguments, the environment and the scripting system properties. Then
+ * both sides exchange frames: a type byte, a length and the payload.
+ * The client sends {@link #STDIN} frames, an empty frame marks end of
+ * input; the daemon sends {@link #STDOUT} and {@link #STDERR} frames and
+ * a final {@link #EXIT} frame whose payload is the exit status.</p>
+ *
+ * @author Rick O'Sullivan
+ */
+public final class Protocol
+{
+	/** The protocol version, sent first by the client. */
+	public static final String VERSION = "javabang-daemon/1";
+	/** Command: run a script. */
+	public static final String RUN = "run";
+	/** Command: stop the daemon. */
+	public static final String STOP = "stop";
+
+	/** Frame type: bytes for the script's standard input. */
+	public static final int STDIN = 0;
+	/** Frame type: bytes from the script's standard output. */
+	public static final int STDOUT = 1;
+	/** Frame type: bytes from the script's standard error. */
+	public static final int STDERR = 2;
+	/** Frame type: the script's exit status. */
+	public static final int EXIT = 3;
+
+	/** Represents the name of the system property for the daemon's address file. */
+	public static final String DAEMON_FILE = "org.patrodyne.scripting.javabang.daemon";
+
+	private Protocol()
+	{
+	}
+
+	/**
+	 * Get the file where the daemon publishes its port and token. The
+	 * default is <code>~/.patrodyne/javabang.daemon</code>.
+	 *
+	 * @return The daemon's address file.
+	 */
+	public static File getDaemonFile()
+	{
+		String path = System.getProperty(DAEMON_FILE);
+		if ( (path != null) && !path.isEmpty() )
+			return new File(path);
+		else
+			return new File(new File(System.getProperty("user.home"), ".patrodyne"), "javabang.daemon");
+	}
+
+	/**
+	 * A request to run a script in the daemon.
+	 */
+	public static class Request
+	{
+		/** The secret token from the daemon file. */
+		public String token;
+		/** The command: run or stop. */
+		public String command;
+		/** The client's working directory. */
+		public String workingDirectory;
+		/** The script file name and arguments. */
+		public List<String> arguments = new ArrayList<String>();
+		/** The client's environment. */
+		public Map<String, String> environment = new LinkedHashMap<String, String>();
+		/** The client's scripting system properties. */
+		public Map<String, String> properties = new LinkedHashMap<String, String>();
+	}
+
+	/**
+	 * Write a request.
+	 *
+	 * @param out The connection's output.
+	 * @param request The request to write.
+	 * @throws IOException When the connection fails.
+	 */
+	public static void writeRequest(DataOutputStream out, Request request)
+		throws IOException
+	{
+		out.writeUTF(VERSION);
+		out.writeUTF(request.token);
+		out.writeUTF(request.command);
+		out.writeUTF(request.workingDirectory);
+		out.writeInt(request.arguments.size());
+		for (String argument : request.arguments)
+			out.writeUTF(argument);
+		writeMap(out, request.environment);
+		writeMap(out, request.properties);
+		out.flush();
+	}
+
+	/**
+	 * Read a request.
+	 *
+	 * @param in The connection's input.
+	 * @return The request.
+	 * @throws IOException When the connection fails or the version is unknown.
+	 */
+	public static Request readRequest(DataInputStream in)
+		throws IOException
+	{
+		String version = in.readUTF();
+		if ( !VERSION.equals(version) )
+			throw new IOException("unknown protocol: "+version);
+		Request request = new Request();
+		request.token = in.readUTF();
+		request.command = in.readUTF();
+		request.workingDirectory = in.readUTF();
+		int count = in.readInt();
+		for (int index=0; index < count; ++index)
+			request.arguments.add(in.readUTF());
+		readMap(in, request.environment);
+		readMap(in, request.properties);
+		return request;
+	}
+
+	/**
+	 * Write a frame. Frames from several threads are not interleaved.
+	 *
+	 * @param out The connection's output.
+	 * @param type The frame type.
+	 * @param bytes The payload.
+	 * @param offset The payload offset.
+	 * @param length The payload length.
+	 * @throws IOException When the connection fails.
+	 */
+	public static void writeFrame(DataOutputStream out, int type, byte[] bytes, int offset, int length)
+		throws IOException
+	{
+		synchronized (out)
+		{
+			out.writeByte(type);
+			out.writeInt(length);
+			out.write(bytes, offset, length);
+			out.flush();
+		}
+	}
+
+	/**
+	 * Write an exit frame.
+	 *
+	 * @param out The connection's output.
+	 * @param status The exit status.
+	 * @throws IOException When the connection fails.
+	 */
+	public static void writeExit(DataOutputStream out, int status)
+		throws IOException
+	{
+		synchronized (out)
+		{
+			out.writeByte(EXIT);
+			out.writeInt(4);
+			out.writeInt(status);
+			out.flush();
+		}
+	}
+
+	/**
+	 * An output stream that writes each chunk as a frame of one type.
+	 */
+	public static class FrameOutputStream
+		extends OutputStream
+	{
+		private final DataOutputStream out;
+		private final int type;
+
+		/**
+		 * Construct with the connection's output and a frame type.
+		 *
+		 * @param out The connection's output.
+		 * @param type The frame type.
+		 */
+		public FrameOutputStream(DataOutputStream out, int type)
+		{
+			this.out = out;
+			this.type = type;
+		}
+
+		@Override
+		public void write(int b)
+			throws IOException
+		{
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] bytes, int offset, int length)
+			throws IOException
+		{
+			if ( length > 0 )
+				writeFrame(out, type, bytes, offset, length);
+		}
+	}
+
+	private static void writeMap(DataOutputStream out, Map<String, String> map)
+		throws IOException
+	{
+		out.writeInt(map.size());
+		for (Map.Entry<String, String> entry : map.entrySet())
+		{
+			out.writeUTF(entry.getKey());
+			out.writeUTF(entry.getValue());
+		}
+	}
+
+	private static void readMap(DataInputStream in, Map<String, String> map)
+		throws IOException
+	{
+		int count = in.readInt();
+		for (int index=0; index < count; ++index)
+			map.put(in.readUTF(), in.readUTF());
+	}
+}
+// vi:set tabstop=4 hardtabs=4 shiftwidth=4:
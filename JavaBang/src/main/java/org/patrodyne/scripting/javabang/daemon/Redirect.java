@@ -0,0 +1,142 @@
+// PatroDyne: Patron Supported Dynamic Executables, http://patrodyne.org
+// Released under LGPL license. See terms at http://www.gnu.org.
+package org.patrodyne.scripting.javabang.daemon;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+/**
+ * <p>Routes <code>System.in</code>, <code>System.out</code> and
+ * <code>System.err</code> per thread, so that concurrent scripts in
+ * the daemon each talk to their own client.</p>
+ *
+ * <p>The routes are inherited by threads that a script starts. Threads
+ * without a route use the daemon's original standard streams.</p>
+ *
+ * @author Rick O'Sullivan
+ */
+public final class Redirect
+{
+	private static final InheritableThreadLocal<InputStream> in = new InheritableThreadLocal<InputStream>();
+	private static final InheritableThreadLocal<PrintStream> out = new InheritableThreadLocal<PrintStream>();
+	private static final InheritableThreadLocal<PrintStream> err = new InheritableThreadLocal<PrintStream>();
+
+	private static InputStream systemIn;
+	private static PrintStream systemOut;
+	private static PrintStream systemErr;
+
+	private Redirect()
+	{
+	}
+
+	/**
+	 * Replace the standard streams with routing streams, once.
+	 */
+	public static synchronized void install()
+	{
+		if ( systemOut == null )
+		{
+			systemIn = System.in;
+			systemOut = System.out;
+			systemErr = System.err;
+			System.setIn(new RoutedInputStream());
+			System.setOut(new PrintStream(new RoutedOutputStream(false), true));
+			System.setErr(new PrintStream(new RoutedOutputStream(true), true));
+		}
+	}
+
+	/**
+	 * Route the standard streams of this thread, and of the threads it starts.
+	 *
+	 * @param stdin The standard input for this thread.
+	 * @param stdout The standard output for this thread.
+	 * @param stderr The standard error for this thread.
+	 */
+	public static void bind(InputStream stdin, PrintStream stdout, PrintStream stderr)
+	{
+		in.set(stdin);
+		out.set(stdout);
+		err.set(stderr);
+	}
+
+	/** Restore the original standard streams for this thread. */
+	public static void unbind()
+	{
+		in.remove();
+		out.remove();
+		err.remove();
+	}
+
+	// An output stream that writes to this thread's standard output or error.
+	private static class RoutedOutputStream
+		extends OutputStream
+	{
+		private final boolean error;
+
+		private RoutedOutputStream(boolean error)
+		{
+			this.error = error;
+		}
+
+		private PrintStream target()
+		{
+			PrintStream target = error ? err.get() : out.get();
+			if ( target == null )
+				target = error ? systemErr : systemOut;
+			return target;
+		}
+
+		@Override
+		public void write(int b)
+		{
+			target().write(b);
+		}
+
+		@Override
+		public void write(byte[] bytes, int offset, int length)
+		{
+			target().write(bytes, offset, length);
+		}
+
+		@Override
+		public void flush()
+		{
+			target().flush();
+		}
+	}
+
+	// An input stream that reads from this thread's standard input.
+	private static class RoutedInputStream
+		extends InputStream
+	{
+		private InputStream target()
+		{
+			InputStream target = in.get();
+			return (target != null) ? target : systemIn;
+		}
+
+		@Override
+		public int read()
+			throws IOException
+		{
+			return target().read();
+		}
+
+		@Override
+		public int read(byte[] bytes, int offset, int length)
+			throws IOException
+		{
+			return target().read(bytes, offset, length);
+		}
+
+		@Override
+		public int available()
+			throws IOException
+		{
+			return target().available();
+		}
+	}
+}
+// vi:set tabstop=4 hardtabs=4 shiftwidth=4:
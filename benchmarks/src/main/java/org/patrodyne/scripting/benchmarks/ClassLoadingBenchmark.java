@@ -0,0 +1,68 @@
+// PatroDyne: Patron Supported Dynamic Executables, http://patrodyne.org
+// Released under LGPL license. See terms at http://www.gnu.org.
+package org.patrodyne.scripting.benchmarks;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.script.ScriptException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.patrodyne.scripting.java.JavaCompiler;
+import org.patrodyne.scripting.java.MemoryClassLoader;
+
+/**
+ * Time {@link MemoryClassLoader#loadAll()} of compiled byte code, by classes
+ * per script and class path width.
+ *
+ * @author Rick O'Sullivan
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ClassLoadingBenchmark
+{
+	@Param({ "1", "20", "200" })
+	public int classes;
+
+	@Param({ "0", "50" })
+	public int classPathWidth;
+
+	private Map<String, byte[]> memoryMap;
+	private String classPath;
+
+	@Setup
+	public void setUp()
+		throws IOException, ScriptException
+	{
+		classPath = Scripts.classPath(classPathWidth);
+		memoryMap = new JavaCompiler().compile("Script.java", Scripts.script("Script", 10, classes),
+			new StringWriter(), null, classPath, null);
+	}
+
+	@Benchmark
+	public Iterable<Class<?>> loadAll()
+		throws ClassNotFoundException, IOException
+	{
+		try (MemoryClassLoader loader = new MemoryClassLoader(memoryMap, classPath, getClass().getClassLoader()))
+		{
+			return loader.loadAll();
+		}
+	}
+}
+// vi:set tabstop=4 hardtabs=4 shiftwidth=4:
@@ -0,0 +1,158 @@
+// PatroDyne: Patron Supported Dynamic Executables, http://patrodyne.org
+// Released under LGPL license. See terms at http://www.gnu.org.
+package org.patrodyne.scripting.benchmarks;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>Compare two JMH result files written with <code>-rf csv</code> and fail
+ * when a benchmark regressed by more than a threshold.</p>
+ *
+ * <p>Results are matched by benchmark, mode, threads and parameters. For
+ * time modes (<code>avgt</code>, <code>sample</code>, <code>ss</code>) a
+ * higher score is worse; for throughput (<code>thrpt</code>) a lower score
+ * is worse.</p>
+ *
+ * <pre>
+ * java -cp benchmarks.jar org.patrodyne.scripting.benchmarks.CompareBaseline baseline.csv current.csv [threshold%]
+ * </pre>
+ *
+ * @author Rick O'Sullivan
+ */
+public class CompareBaseline
+{
+	/** The default regression threshold, in percent. */
+	public static final double DEFAULT_THRESHOLD = 10.0;
+
+	private static final String BENCHMARK = "Benchmark";
+	private static final String MODE = "Mode";
+	private static final String THREADS = "Threads";
+	private static final String SCORE = "Score";
+	private static final String UNIT = "Unit";
+	private static final String PARAM_PREFIX = "Param: ";
+	private static final String THROUGHPUT = "thrpt";
+
+	/**
+	 * Compare a current result file against a baseline.
+	 *
+	 * @param args The baseline CSV, the current CSV and an optional threshold in percent.
+	 *
+	 * @throws IOException When a result file cannot be read.
+	 */
+	public static void main(String[] args)
+		throws IOException
+	{
+		if ( args.length < 2 )
+		{
+			System.err.println("Usage: CompareBaseline baseline.csv current.csv [threshold%]");
+			System.exit(2);
+		}
+		double threshold = (args.length > 2) ? Double.parseDouble(args[2]) : DEFAULT_THRESHOLD;
+		Map<String, Map<String, String>> baseline = read(args[0]);
+		Map<String, Map<String, String>> current = read(args[1]);
+
+		int regressions = 0;
+		System.out.println(String.format("%-90s %12s %12s %8s", "Benchmark", "Baseline", "Current", "Ratio"));
+		for (Map.Entry<String, Map<String, String>> entry : current.entrySet())
+		{
+			Map<String, String> before = baseline.get(entry.getKey());
+			Map<String, String> after = entry.getValue();
+			if ( before == null )
+			{
+				System.out.println(String.format("%-90s %12s %12s %8s", entry.getKey(), "-", after.get(SCORE), "new"));
+				continue;
+			}
+			double oldScore = Double.parseDouble(before.get(SCORE));
+			double newScore = Double.parseDouble(after.get(SCORE));
+			double ratio = newScore / oldScore;
+			// Express the change so that a positive percentage is always a regression.
+			double change = THROUGHPUT.equals(after.get(MODE)) ? (1.0 / ratio - 1.0) * 100 : (ratio - 1.0) * 100;
+			String flag = "";
+			if ( change > threshold )
+			{
+				flag = String.format("  REGRESSION %+.1f%%", change);
+				++regressions;
+			}
+			System.out.println(String.format("%-90s %12.3f %12.3f %8.3f %s%s", entry.getKey(),
+				oldScore, newScore, ratio, after.get(UNIT), flag));
+		}
+		if ( regressions > 0 )
+		{
+			System.out.println(regressions+" regression(s) above "+threshold+"%");
+			System.exit(1);
+		}
+	}
+
+	// Read a JMH CSV result file into rows keyed by benchmark, mode, threads and parameters.
+	private static Map<String, Map<String, String>> read(String fileName)
+		throws IOException
+	{
+		Map<String, Map<String, String>> rows = new LinkedHashMap<String, Map<String, String>>();
+		try (BufferedReader reader = Files.newBufferedReader(Paths.get(fileName), StandardCharsets.UTF_8))
+		{
+			String line = reader.readLine();
+			if ( line == null )
+				return rows;
+			List<String> header = split(line);
+			while ( (line = reader.readLine()) != null )
+			{
+				if ( line.trim().isEmpty() )
+					continue;
+				List<String> values = split(line);
+				Map<String, String> row = new LinkedHashMap<String, String>();
+				for (int index = 0; (index < header.size()) && (index < values.size()); ++index)
+					row.put(header.get(index), values.get(index));
+				StringBuilder key = new StringBuilder(row.get(BENCHMARK));
+				key.append(" ").append(row.get(MODE)).append(" t=").append(row.get(THREADS));
+				for (Map.Entry<String, String> column : row.entrySet())
+				{
+					if ( column.getKey().startsWith(PARAM_PREFIX) && !column.getValue().isEmpty() )
+						key.append(" ").append(column.getKey().substring(PARAM_PREFIX.length()))
+							.append("=").append(column.getValue());
+				}
+				rows.put(key.toString(), row);
+			}
+		}
+		return rows;
+	}
+
+	// Split a CSV line, honoring double quoted values.
+	private static List<String> split(String line)
+	{
+		List<String> values = new ArrayList<String>();
+		StringBuilder value = new StringBuilder();
+		boolean quoted = false;
+		for (int index = 0; index < line.length(); ++index)
+		{
+			char ch = line.charAt(index);
+			if ( ch == '"' )
+			{
+				if ( quoted && (index + 1 < line.length()) && (line.charAt(index + 1) == '"') )
+				{
+					value.append(ch);
+					++index;
+				}
+				else
+					quoted = !quoted;
+			}
+			else if ( (ch == ',') && !quoted )
+			{
+				values.add(value.toString());
+				value.setLength(0);
+			}
+			else
+				value.append(ch);
+		}
+		values.add(value.toString());
+		return values;
+	}
+}
+// vi:set tabstop=4 hardtabs=4 shiftwidth=4:
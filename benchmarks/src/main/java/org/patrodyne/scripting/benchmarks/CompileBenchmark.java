@@ -0,0 +1,68 @@
+// PatroDyne: Patron Supported Dynamic Executables, http://patrodyne.org
+// Released under LGPL license. See terms at http://www.gnu.org.
+package org.patrodyne.scripting.benchmarks;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.script.ScriptException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.patrodyne.scripting.java.JavaCompiler;
+
+/**
+ * Time {@link JavaCompiler#compile(String, String, java.io.Writer, String, String, String[])}
+ * with a warm compiler, by script size, classes per script and class path width.
+ *
+ * @author Rick O'Sullivan
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CompileBenchmark
+{
+	@Param({ "10", "1000" })
+	public int scriptSize;
+
+	@Param({ "1", "20" })
+	public int classes;
+
+	@Param({ "0", "50" })
+	public int classPathWidth;
+
+	private JavaCompiler compiler;
+	private String source;
+	private String classPath;
+
+	@Setup
+	public void setUp()
+		throws IOException
+	{
+		compiler = new JavaCompiler();
+		source = Scripts.script("Script", scriptSize, classes);
+		classPath = Scripts.classPath(classPathWidth);
+	}
+
+	@Benchmark
+	public Map<String, byte[]> compile()
+		throws ScriptException
+	{
+		return compiler.compile("Script.java", source, new StringWriter(), null, classPath, null);
+	}
+}
+// vi:set tabstop=4 hardtabs=4 shiftwidth=4:
@@ -0,0 +1,111 @@
+// PatroDyne: Patron Supported Dynamic Executables, http://patrodyne.org
+// Released under LGPL license. See terms at http://www.gnu.org.
+package org.patrodyne.scripting.benchmarks;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.script.ScriptException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.patrodyne.scripting.java.JavaCompiler;
+import org.patrodyne.scripting.java.MemoryClassLoader;
+
+/**
+ * <p>Stress {@link MemoryClassLoader} with many threads loading the classes
+ * of one script from one loader, each thread in its own order.</p>
+ *
+ * <p>A new loader is shared at each iteration, so its classes are defined
+ * under contention and then found under contention. Every load is checked:
+ * a class must have its requested name, and all threads must get the same
+ * class object; otherwise the benchmark fails with an
+ * {@link IllegalStateException}.</p>
+ *
+ * @author Rick O'Sullivan
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(16)
+@Fork(1)
+public class ConcurrentClassLoadingBenchmark
+{
+	@Param({ "20", "200" })
+	public int classes;
+
+	private Map<String, byte[]> memoryMap;
+	private List<String> classNames;
+	private MemoryClassLoader loader;
+	private ConcurrentMap<String, Class<?>> loaded;
+
+	/** The order in which one thread loads the classes. */
+	@State(Scope.Thread)
+	public static class Order
+	{
+		private static final AtomicInteger threads = new AtomicInteger();
+		private final int start = threads.getAndIncrement();
+		private int next;
+	}
+
+	@Setup
+	public void setUp()
+		throws IOException, ScriptException
+	{
+		memoryMap = new JavaCompiler().compile("Script.java", Scripts.script("Script", 10, classes),
+			new StringWriter(), null, null, null);
+		classNames = new ArrayList<String>(memoryMap.keySet());
+	}
+
+	@Setup(Level.Iteration)
+	public void newLoader()
+	{
+		loader = new MemoryClassLoader(memoryMap, null, getClass().getClassLoader());
+		loaded = new ConcurrentHashMap<String, Class<?>>();
+	}
+
+	@TearDown(Level.Iteration)
+	public void closeLoader()
+		throws IOException
+	{
+		if ( loaded.size() != classNames.size() )
+			throw new IllegalStateException("loaded "+loaded.size()+" of "+classNames.size()+" classes");
+		loader.close();
+	}
+
+	@Benchmark
+	public Class<?> load(Order order)
+		throws ClassNotFoundException
+	{
+		String className = classNames.get((order.start + order.next++) % classNames.size());
+		Class<?> loadedClass = loader.load(className);
+		if ( !className.equals(loadedClass.getName()) )
+			throw new IllegalStateException("loaded "+loadedClass.getName()+" for "+className);
+		Class<?> first = loaded.putIfAbsent(className, loadedClass);
+		if ( (first != null) && (first != loadedClass) )
+			throw new IllegalStateException("defined "+className+" twice");
+		return loadedClass;
+	}
+}
+// vi:set tabstop=4 hardtabs=4 shiftwidth=4:
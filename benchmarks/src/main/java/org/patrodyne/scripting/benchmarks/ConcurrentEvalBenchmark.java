@@ -0,0 +1,140 @@
+// PatroDyne: Patron Supported Dynamic Executables, http://patrodyne.org
+// Released under LGPL license. See terms at http://www.gnu.org.
+package org.patrodyne.scripting.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.script.Compilable;
+import javax.script.CompiledScript;
+import javax.script.ScriptContext;
+import javax.script.ScriptEngine;
+import javax.script.ScriptException;
+import javax.script.SimpleScriptContext;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.patrodyne.scripting.java.JavaCodeScriptEngine;
+import org.patrodyne.scripting.java.JavaCodeScriptEngineFactory;
+
+/**
+ * <p>Measure the throughput of one engine shared by one thread and by as
+ * many threads as cores: the engine is MULTITHREADED, so the throughput
+ * should scale with the number of cores.</p>
+ *
+ * <p>Each thread evaluates with a context of its own, as JSR-223 hosts do:
+ * a compiled script, a script found in the class cache and, with the
+ * class cache off, a distinct script compiled by javac on each call.</p>
+ *
+ * @author Rick O'Sullivan
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConcurrentEvalBenchmark
+{
+	private ScriptEngine engine;
+	private CompiledScript compiledScript;
+	private String source;
+	private final AtomicLong scripts = new AtomicLong();
+
+	/** The contexts of one thread. */
+	@State(Scope.Thread)
+	public static class Contexts
+	{
+		private ScriptContext classCache;
+		private ScriptContext noCache;
+
+		@Setup
+		public void setUp()
+		{
+			classCache = newContext(JavaCodeScriptEngine.CLASSCACHE_CLASS);
+			noCache = newContext(JavaCodeScriptEngine.CLASSCACHE_NONE);
+		}
+	}
+
+	@Setup
+	public void setUp()
+		throws ScriptException
+	{
+		engine = new JavaCodeScriptEngineFactory().getScriptEngine();
+		engine.getContext().setAttribute(ScriptEngine.FILENAME, "Script.java", ScriptContext.ENGINE_SCOPE);
+		source = Scripts.script("Script", 10, 1);
+		compiledScript = ((Compilable) engine).compile(source);
+	}
+
+	@Benchmark
+	@Threads(1)
+	public Object evalCompiled1(Contexts contexts)
+		throws ScriptException
+	{
+		return compiledScript.eval(contexts.classCache);
+	}
+
+	@Benchmark
+	@Threads(Threads.MAX)
+	public Object evalCompiledMax(Contexts contexts)
+		throws ScriptException
+	{
+		return compiledScript.eval(contexts.classCache);
+	}
+
+	@Benchmark
+	@Threads(1)
+	public Object evalClassCache1(Contexts contexts)
+		throws ScriptException
+	{
+		return engine.eval(source, contexts.classCache);
+	}
+
+	@Benchmark
+	@Threads(Threads.MAX)
+	public Object evalClassCacheMax(Contexts contexts)
+		throws ScriptException
+	{
+		return engine.eval(source, contexts.classCache);
+	}
+
+	@Benchmark
+	@Threads(1)
+	public Object compile1(Contexts contexts)
+		throws ScriptException
+	{
+		return engine.eval(distinctSource(), contexts.noCache);
+	}
+
+	@Benchmark
+	@Threads(Threads.MAX)
+	public Object compileMax(Contexts contexts)
+		throws ScriptException
+	{
+		return engine.eval(distinctSource(), contexts.noCache);
+	}
+
+	// A script that no cache holds.
+	private String distinctSource()
+	{
+		return source + "// " + scripts.incrementAndGet() + "\n";
+	}
+
+	private static ScriptContext newContext(String classCache)
+	{
+		ScriptContext ctx = new SimpleScriptContext();
+		ctx.setAttribute(ScriptEngine.FILENAME, "Script.java", ScriptContext.ENGINE_SCOPE);
+		ctx.setAttribute(JavaCodeScriptEngine.CLASSCACHE, classCache, ScriptContext.ENGINE_SCOPE);
+		return ctx;
+	}
+}
+// vi:set tabstop=4 hardtabs=4 shiftwidth=4:
@@ -0,0 +1,54 @@
+// PatroDyne: Patron Supported Dynamic Executables, http://patrodyne.org
+// Released under LGPL license. See terms at http://www.gnu.org.
+package org.patrodyne.scripting.benchmarks;
+
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+import javax.script.ScriptException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.patrodyne.scripting.java.Execute;
+
+/**
+ * Time the directive parsing of {@link Execute#loadScript(java.io.Reader)}, by number of directives.
+ *
+ * @author Rick O'Sullivan
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DirectiveBenchmark
+{
+	@Param({ "0", "10", "100" })
+	public int directives;
+
+	private String script;
+
+	@Setup
+	public void setUp()
+	{
+		script = Scripts.directives(directives);
+	}
+
+	@Benchmark
+	public String loadScript()
+		throws ScriptException
+	{
+		return new Execute().loadScript(new StringReader(script));
+	}
+}
+// vi:set tabstop=4 hardtabs=4 shiftwidth=4:
@@ -0,0 +1,89 @@
+// PatroDyne: Patron Supported Dynamic Executables, http://patrodyne.org
+// Released under LGPL license. See terms at http://www.gnu.org.
+package org.patrodyne.scripting.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.script.Compilable;
+import javax.script.CompiledScript;
+import javax.script.ScriptContext;
+import javax.script.ScriptEngine;
+import javax.script.ScriptException;
+import javax.script.SimpleScriptContext;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.patrodyne.scripting.java.JavaCodeScriptEngine;
+import org.patrodyne.scripting.java.JavaCodeScriptEngineFactory;
+
+/**
+ * <p>Time {@link JavaCodeScriptEngine#eval(String, ScriptContext)}, by class
+ * cache mode and script size, and {@link CompiledScript#eval(ScriptContext)}
+ * of a compiled script.</p>
+ *
+ * <p>The engine is shared by all benchmark threads; run with <code>-t</code>
+ * to measure concurrent evaluation.</p>
+ *
+ * @author Rick O'Sullivan
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EvalBenchmark
+{
+	@Param({ JavaCodeScriptEngine.CLASSCACHE_NONE, JavaCodeScriptEngine.CLASSCACHE_BYTECODE, JavaCodeScriptEngine.CLASSCACHE_CLASS })
+	public String classCache;
+
+	@Param({ "10", "1000" })
+	public int scriptSize;
+
+	private ScriptEngine engine;
+	private String source;
+	private CompiledScript compiledScript;
+
+	@Setup
+	public void setUp()
+		throws ScriptException
+	{
+		engine = new JavaCodeScriptEngineFactory().getScriptEngine();
+		engine.getContext().setAttribute(ScriptEngine.FILENAME, "Script.java", ScriptContext.ENGINE_SCOPE);
+		engine.getContext().setAttribute(JavaCodeScriptEngine.CLASSCACHE, classCache, ScriptContext.ENGINE_SCOPE);
+		source = Scripts.script("Script", scriptSize, 1);
+		compiledScript = ((Compilable) engine).compile(source);
+	}
+
+	@Benchmark
+	public Object eval()
+		throws ScriptException
+	{
+		return engine.eval(source, newContext());
+	}
+
+	@Benchmark
+	public Object evalCompiled()
+		throws ScriptException
+	{
+		return compiledScript.eval(newContext());
+	}
+
+	private ScriptContext newContext()
+	{
+		ScriptContext ctx = new SimpleScriptContext();
+		ctx.setAttribute(ScriptEngine.FILENAME, "Script.java", ScriptContext.ENGINE_SCOPE);
+		ctx.setAttribute(JavaCodeScriptEngine.CLASSCACHE, classCache, ScriptContext.ENGINE_SCOPE);
+		return ctx;
+	}
+}
+// vi:set tabstop=4 hardtabs=4 shiftwidth=4:
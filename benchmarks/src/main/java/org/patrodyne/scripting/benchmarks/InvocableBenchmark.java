@@ -0,0 +1,95 @@
+// PatroDyne: Patron Supported Dynamic Executables, http://patrodyne.org
+// Released under LGPL license. See terms at http://www.gnu.org.
+package org.patrodyne.scripting.benchmarks;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntUnaryOperator;
+
+import javax.script.Invocable;
+import javax.script.ScriptContext;
+import javax.script.ScriptEngine;
+import javax.script.ScriptException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.patrodyne.scripting.java.JavaCodeScriptEngine;
+import org.patrodyne.scripting.java.JavaCodeScriptEngineFactory;
+
+/**
+ * Time a call to a script function through {@link Invocable#invokeFunction},
+ * through an interface from {@link Invocable#getInterface(Class)}, through a
+ * lambda from {@link JavaCodeScriptEngine#compileFunction} and, for
+ * comparison, through {@link Method#invoke}.
+ *
+ * @author Rick O'Sullivan
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InvocableBenchmark
+{
+	private static final String SCRIPT =
+		"public class Functions\n{\n" +
+		"\tpublic static void main(String[] args) { }\n" +
+		"\tpublic static int applyAsInt(int x) { return x * x + 1; }\n" +
+		"}\n";
+
+	private Invocable invocable;
+	private IntUnaryOperator operator;
+	private IntUnaryOperator function;
+	private Method method;
+	private int x;
+
+	@Setup
+	public void setUp()
+		throws ScriptException, NoSuchMethodException
+	{
+		ScriptEngine engine = new JavaCodeScriptEngineFactory().getScriptEngine();
+		engine.getContext().setAttribute(ScriptEngine.FILENAME, "Functions.java", ScriptContext.ENGINE_SCOPE);
+		engine.getContext().setAttribute(JavaCodeScriptEngine.PARENTLOADER, getClass().getClassLoader(), ScriptContext.ENGINE_SCOPE);
+		engine.eval(SCRIPT);
+		invocable = (Invocable) engine;
+		operator = invocable.getInterface(IntUnaryOperator.class);
+		method = ((JavaCodeScriptEngine) engine).getScriptClass().getMethod("applyAsInt", int.class);
+		function = ((JavaCodeScriptEngine) engine).compileFunction("x -> x * x + 1", IntUnaryOperator.class);
+	}
+
+	@Benchmark
+	public Object invokeFunction()
+		throws ScriptException, NoSuchMethodException
+	{
+		return invocable.invokeFunction("applyAsInt", ++x);
+	}
+
+	@Benchmark
+	public int getInterface()
+	{
+		return operator.applyAsInt(++x);
+	}
+
+	@Benchmark
+	public int compileFunction()
+	{
+		return function.applyAsInt(++x);
+	}
+
+	@Benchmark
+	public Object reflection()
+		throws ReflectiveOperationException
+	{
+		return method.invoke(null, ++x);
+	}
+}
+// vi:set tabstop=4 hardtabs=4 shiftwidth=4:
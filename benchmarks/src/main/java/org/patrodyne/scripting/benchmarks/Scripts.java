@@ -0,0 +1,120 @@
+// PatroDyne: Patron Supported Dynamic Executables, http://patrodyne.org
+// Released under LGPL license. See terms at http://www.gnu.org.
+package org.patrodyne.scripting.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+/**
+ * Generate the scripts and class paths that the benchmarks are parameterized by.
+ *
+ * @author Rick O'Sullivan
+ */
+public final class Scripts
+{
+	private Scripts()
+	{
+	}
+
+	/**
+	 * <p>Generate a public script class with a main method.</p>
+	 *
+	 * <p>The main method has the given number of statements and stores its
+	 * result in the static field <code>result</code>, so that the work is not
+	 * eliminated. The script declares <code>classes - 1</code> nested classes,
+	 * each used by the main method.</p>
+	 *
+	 * @param className The name of the public class.
+	 * @param statements The number of statements in the main method.
+	 * @param classes The number of classes compiled from the script.
+	 *
+	 * @return The script source.
+	 */
+	public static String script(String className, int statements, int classes)
+	{
+		StringBuilder sb = new StringBuilder();
+		sb.append("public class ").append(className).append("\n{\n");
+		sb.append("\tpublic static long result;\n");
+		sb.append("\tpublic static void main(String[] args)\n\t{\n");
+		sb.append("\t\tlong sum = args.length;\n");
+		for (int index = 0; index < statements; ++index)
+			sb.append("\t\tsum += sum * ").append(index).append(" + ").append(index % 7).append(";\n");
+		for (int index = 1; index < classes; ++index)
+			sb.append("\t\tsum += new Helper").append(index).append("().value(sum);\n");
+		sb.append("\t\tresult = sum;\n");
+		sb.append("\t}\n");
+		for (int index = 1; index < classes; ++index)
+		{
+			sb.append("\tstatic class Helper").append(index).append("\n\t{\n");
+			sb.append("\t\tlong value(long x) { return x ^ ").append(index).append("; }\n");
+			sb.append("\t}\n");
+		}
+		sb.append("}\n");
+		return sb.toString();
+	}
+
+	/**
+	 * Generate a script with the given number of directives before a small class.
+	 *
+	 * @param directives The number of <code>//=</code> property directives.
+	 *
+	 * @return The script source.
+	 */
+	public static String directives(int directives)
+	{
+		StringBuilder sb = new StringBuilder("#!/usr/bin/env javash\n");
+		for (int index = 0; index < directives; ++index)
+			sb.append("//= property").append(index).append("=value").append(index).append('\n');
+		sb.append(script("Directives", 10, 1));
+		return sb.toString();
+	}
+
+	/**
+	 * <p>Create a class path of the given number of jars in a new temporary directory.</p>
+	 *
+	 * <p>Each jar holds resources in its root and in a package of its own, so
+	 * that javac has entries to scan in every jar when it lists the unnamed
+	 * package.</p>
+	 *
+	 * @param width The number of jars.
+	 *
+	 * @return A class path or null when the width is zero.
+	 * @throws IOException When the jars cannot be written.
+	 */
+	public static String classPath(int width)
+		throws IOException
+	{
+		if ( width == 0 )
+			return null;
+		Path dir = Files.createTempDirectory("benchmark-classpath");
+		dir.toFile().deleteOnExit();
+		StringBuilder classPath = new StringBuilder();
+		for (int index = 0; index < width; ++index)
+		{
+			File jar = dir.resolve("lib"+index+".jar").toFile();
+			jar.deleteOnExit();
+			try (OutputStream os = Files.newOutputStream(jar.toPath());
+				JarOutputStream out = new JarOutputStream(os))
+			{
+				for (int entry = 0; entry < 20; ++entry)
+				{
+					out.putNextEntry(new JarEntry("resource"+entry+".txt"));
+					out.write(("resource "+entry).getBytes(StandardCharsets.UTF_8));
+					out.putNextEntry(new JarEntry("lib"+index+"/resource"+entry+".txt"));
+					out.write(("resource "+entry).getBytes(StandardCharsets.UTF_8));
+				}
+			}
+			if ( classPath.length() > 0 )
+				classPath.append(File.pathSeparator);
+			classPath.append(jar.getPath());
+		}
+		return classPath.toString();
+	}
+}
+// vi:set tabstop=4 hardtabs=4 shiftwidth=4: